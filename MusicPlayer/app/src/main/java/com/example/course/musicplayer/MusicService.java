@@ -6,9 +6,12 @@ package com.example.course.musicplayer;
  import android.content.Intent;
  import android.os.Bundle;
  import android.os.Handler;
+ import android.os.HandlerThread;
  import android.os.Message;
+ import android.os.Process;
  import android.os.RemoteException;
  import android.support.annotation.NonNull;
+ import android.support.v4.media.MediaBrowserCompat;
  import android.support.v4.media.MediaBrowserCompat.MediaItem;
  import android.support.v4.media.MediaBrowserServiceCompat;
  import android.support.v4.media.MediaMetadataCompat;
@@ -17,14 +20,18 @@ package com.example.course.musicplayer;
  import android.support.v4.media.session.PlaybackStateCompat;
 
  import com.example.course.musicplayer.model.MusicProvider;
+ import com.example.course.musicplayer.playback.HandlerScheduler;
  import com.example.course.musicplayer.playback.LocalPlayback;
  import com.example.course.musicplayer.playback.PlaybackManager;
  import com.example.course.musicplayer.playback.QueueManager;
+ import com.example.course.musicplayer.playback.ResumeStateStore;
+ import com.example.course.musicplayer.utils.AlbumArtCache;
  import com.example.course.musicplayer.utils.LogHelper;
 
 
  import java.lang.ref.WeakReference;
  import java.util.List;
+ import java.util.Set;
 
  import static com.example.course.musicplayer.utils.MediaIDHelper.MEDIA_ID_ROOT;
  import static com.example.course.musicplayer.utils.MediaIDHelper.MEDIA_ID_MUSICS_BY_ALBUM;
@@ -66,9 +73,16 @@ package com.example.course.musicplayer;
 
      private MusicProvider mMusicProvider;
      private PlaybackManager mPlaybackManager;
+     private LocalPlayback mPlayback;
+     private ResumeStateStore mResumeStateStore;
 
      private MediaSessionCompat mSession;
 
+     // Playback control runs on its own thread, so slow storage or codec setup does not block
+     // the main thread, and media buttons are not queued behind UI or browse work.
+     private HandlerThread mPlaybackThread;
+     private Handler mPlaybackHandler;
+
      /*
       * (non-Javadoc)
       * @see android.app.Service#onCreate()
@@ -79,13 +93,31 @@ package com.example.course.musicplayer;
          LogHelper.d(TAG, "onCreate");
 
          mMusicProvider = new MusicProvider(getApplicationContext());
+         mMusicProvider.setScanParallelism(Runtime.getRuntime().availableProcessors());
 
          // To make the app more responsive, fetch and cache catalog information now.
-         // This can help improve the response time in the method
+         // Browse requests arriving before it completes are queued until it does; see
          // {@link #onLoadChildren(String, Result<List<MediaItem>>) onLoadChildren()}.
          mMusicProvider.retrieveMediaAsync(null /* Callback */);
 
-         QueueManager queueManager = new QueueManager(mMusicProvider, getResources(),
+         // Keep the catalog in sync with MediaStore and only refresh the browse nodes
+         // that were actually affected.
+         mMusicProvider.setCatalogChangeListener(new MusicProvider.CatalogChangeListener() {
+             @Override
+             public void onCatalogChanged(Set<String> parentMediaIds) {
+                 for (String parentMediaId : parentMediaIds) {
+                     notifyChildrenChanged(parentMediaId);
+                 }
+             }
+         });
+         mMusicProvider.startWatchingSource();
+
+         mPlaybackThread = new HandlerThread("Playback", Process.THREAD_PRIORITY_AUDIO);
+         mPlaybackThread.start();
+         mPlaybackHandler = new Handler(mPlaybackThread.getLooper());
+
+         final QueueManager queueManager = new QueueManager(mMusicProvider, getResources(),
+                 AlbumArtCache.getInstance(this),
                  new QueueManager.MetadataUpdateListener() {
                      @Override
                      public void onMetadataChanged(MediaMetadataCompat metadata) {
@@ -112,14 +144,59 @@ package com.example.course.musicplayer;
                  });
 
 
-         LocalPlayback playback = new LocalPlayback(this, mMusicProvider);
-         mPlaybackManager = new PlaybackManager(this, getResources(), queueManager, mMusicProvider, playback);
+         mPlayback = new LocalPlayback(this, mMusicProvider, mPlaybackHandler);
+         mPlaybackManager = new PlaybackManager(this, getResources(), queueManager, mMusicProvider,
+                 mPlayback, new HandlerScheduler(mPlaybackHandler));
          // Start a new MediaSession
          mSession = new MediaSessionCompat(this, "MusicService");
          setSessionToken(mSession.getSessionToken());
-         mSession.setCallback(mPlaybackManager.getMediaSessionCallback());
+         mSession.setCallback(mPlaybackManager.getMediaSessionCallback(), mPlaybackHandler);
          mSession.setFlags(MediaSessionCompat.FLAG_HANDLES_MEDIA_BUTTONS |
                  MediaSessionCompat.FLAG_HANDLES_TRANSPORT_CONTROLS);
+         mPlaybackHandler.post(new Runnable() {
+             @Override
+             public void run() {
+                 mPlaybackManager.updatePlaybackState(null);
+             }
+         });
+
+         // Bring back the queue and position from before the service was last stopped or
+         // killed, so playback resumes where it was without rebuilding the queue.
+         mResumeStateStore = new ResumeStateStore(getFilesDir());
+         queueManager.setResumeStateStore(mResumeStateStore);
+         mMusicProvider.retrieveMediaAsync(new MusicProvider.Callback() {
+             @Override
+             public void onMusicCatalogReady(boolean success) {
+                 if (!success) {
+                     return;
+                 }
+                 mPlaybackHandler.post(new Runnable() {
+                     @Override
+                     public void run() {
+                         restoreResumeState(queueManager);
+                     }
+                 });
+             }
+         });
+     }
+
+     private void restoreResumeState(QueueManager queueManager) {
+         if (queueManager.getCurrentMusic() != null) {
+             // A queue was set up while the catalog was loading; it wins.
+             return;
+         }
+         ResumeStateStore.ResumeState state = mResumeStateStore.read();
+         if (state == null) {
+             return;
+         }
+         long position = queueManager.restoreQueue(state);
+         MediaSessionCompat.QueueItem current = queueManager.getCurrentMusic();
+         if (position < 0 || current == null) {
+             return;
+         }
+         // Play will then start from the saved position rather than from the beginning.
+         mPlayback.setCurrentMediaId(current.getDescription().getMediaId());
+         mPlayback.setCurrentStreamPosition((int) position);
          mPlaybackManager.updatePlaybackState(null);
      }
 
@@ -141,8 +218,36 @@ package com.example.course.musicplayer;
      @Override
      public void onDestroy() {
          LogHelper.d(TAG, "onDestroy");
-         mPlaybackManager.handleStopRequest(null);
-         mSession.release();
+         mMusicProvider.stopWatchingSource();
+         mMusicProvider.cancelRetrieveMedia();
+         // Stop on the playback thread, after the commands already queued, and only then
+         // release the session the stop is reported to.
+         mPlaybackHandler.post(new Runnable() {
+             @Override
+             public void run() {
+                 mPlaybackManager.handleStopRequest(null);
+                 mResumeStateStore.close();
+                 mPlayback.release();
+                 mSession.release();
+             }
+         });
+         mPlaybackThread.quitSafely();
+     }
+
+     /**
+      * (non-Javadoc)
+      * @see android.app.Service#onTrimMemory(int)
+      */
+     @Override
+     public void onTrimMemory(final int level) {
+         super.onTrimMemory(level);
+         LogHelper.d(TAG, "onTrimMemory. level=", level);
+         mPlaybackHandler.post(new Runnable() {
+             @Override
+             public void run() {
+                 mPlayback.onTrimMemory(level);
+             }
+         });
      }
 
      @Override
@@ -157,7 +262,37 @@ package com.example.course.musicplayer;
      public void onLoadChildren(@NonNull final String parentMediaId,
                                 @NonNull final Result<List<MediaItem>> result) {
          LogHelper.d(TAG, "OnLoadChildren: parentMediaId=", parentMediaId);
-         result.sendResult(mMusicProvider.getChildren(parentMediaId, getResources()));
+         loadChildren(parentMediaId, result, 0, Integer.MAX_VALUE);
+     }
+
+     @Override
+     public void onLoadChildren(@NonNull final String parentMediaId,
+                                @NonNull final Result<List<MediaItem>> result,
+                                @NonNull Bundle options) {
+         int page = options.getInt(MediaBrowserCompat.EXTRA_PAGE, -1);
+         int pageSize = options.getInt(MediaBrowserCompat.EXTRA_PAGE_SIZE, -1);
+         if (page < 0 || pageSize < 1) {
+             // Not a paged subscription, send the whole list.
+             onLoadChildren(parentMediaId, result);
+             return;
+         }
+         LogHelper.d(TAG, "OnLoadChildren: parentMediaId=", parentMediaId,
+                 " page=", page, " pageSize=", pageSize);
+         loadChildren(parentMediaId, result, page, pageSize);
+     }
+
+     private void loadChildren(String parentMediaId, final Result<List<MediaItem>> result,
+                               int page, int pageSize) {
+         // The list is built off the main thread, and possibly only once the catalog has
+         // finished loading, so the result is sent later.
+         result.detach();
+         mMusicProvider.getChildrenAsync(parentMediaId, getResources(), page, pageSize,
+                 new MusicProvider.ChildrenCallback() {
+                     @Override
+                     public void onChildrenLoaded(List<MediaItem> children) {
+                         result.sendResult(children);
+                     }
+                 });
      }
 
      @Override
@@ -0,0 +1,125 @@
+package com.example.course.musicplayer.model;
+
+import android.support.v4.media.MediaBrowserCompat;
+import android.util.LruCache;
+
+import com.example.course.musicplayer.utils.LogHelper;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * LRU cache of the MediaItem lists built for browse nodes, so navigating back and forth does
+ * not rebuild them. Entries are keyed by parent media ID and page, and sized by their number
+ * of items.
+ *
+ * Lists are built outside of the cache lock, so a list built from a catalog that changed
+ * meanwhile could be stored after its invalidation. Every invalidation bumps a generation,
+ * and {@link #put} drops lists built under an older one.
+ */
+class BrowseCache {
+
+    private static final String TAG = LogHelper.makeLogTag(BrowseCache.class);
+
+    private static final int STATS_LOG_INTERVAL = 100;
+
+    private final LruCache<Key, List<MediaBrowserCompat.MediaItem>> mCache;
+    private int mGeneration;
+
+    BrowseCache(int maxItems) {
+        mCache = new LruCache<Key, List<MediaBrowserCompat.MediaItem>>(maxItems) {
+            @Override
+            protected int sizeOf(Key key, List<MediaBrowserCompat.MediaItem> value) {
+                return Math.max(1, value.size());
+            }
+        };
+    }
+
+    /**
+     * @return the generation to pass to {@link #put} for a list built from now on.
+     */
+    synchronized int getGeneration() {
+        return mGeneration;
+    }
+
+    List<MediaBrowserCompat.MediaItem> get(String parentId, int page, int pageSize) {
+        List<MediaBrowserCompat.MediaItem> items = mCache.get(new Key(parentId, page, pageSize));
+        int lookups = mCache.hitCount() + mCache.missCount();
+        if (lookups % STATS_LOG_INTERVAL == 0) {
+            LogHelper.d(TAG, "Browse cache: hits=", mCache.hitCount(), " misses=",
+                    mCache.missCount(), " items=", mCache.size(), "/", mCache.maxSize());
+        }
+        return items;
+    }
+
+    synchronized void put(String parentId, int page, int pageSize, int generation,
+                          List<MediaBrowserCompat.MediaItem> items) {
+        if (generation == mGeneration) {
+            mCache.put(new Key(parentId, page, pageSize), items);
+        }
+    }
+
+    /**
+     * Drop every page of the given nodes.
+     */
+    synchronized void invalidate(Collection<String> parentIds) {
+        mGeneration++;
+        for (Key key : mCache.snapshot().keySet()) {
+            if (parentIds.contains(key.mParentId)) {
+                mCache.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Drop every page of the nodes whose media ID starts with the given prefix.
+     */
+    synchronized void invalidatePrefix(String prefix) {
+        mGeneration++;
+        for (Key key : mCache.snapshot().keySet()) {
+            if (key.mParentId.startsWith(prefix)) {
+                mCache.remove(key);
+            }
+        }
+    }
+
+    synchronized void invalidateAll() {
+        mGeneration++;
+        mCache.evictAll();
+    }
+
+    int getHitCount() {
+        return mCache.hitCount();
+    }
+
+    int getMissCount() {
+        return mCache.missCount();
+    }
+
+    private static final class Key {
+        final String mParentId;
+        final int mPage;
+        final int mPageSize;
+
+        Key(String parentId, int page, int pageSize) {
+            mParentId = parentId;
+            mPage = page;
+            mPageSize = pageSize;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return mPage == other.mPage && mPageSize == other.mPageSize &&
+                    mParentId.equals(other.mParentId);
+        }
+
+        @Override
+        public int hashCode() {
+            return (mParentId.hashCode() * 31 + mPage) * 31 + mPageSize;
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package com.example.course.musicplayer.model;
+
+import com.example.course.musicplayer.utils.LogHelper;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Compact binary copy of the music catalog, so MusicProvider can serve the browse tree right
+ * after startup instead of waiting for a full MediaStore scan.
+ *
+ * The file layout is a fixed header (magic, format version, track count, CRC32 of the payload)
+ * followed by one record per track, in the source's order: id, source, title, sort key,
+ * artist, album, album id, genre, year, duration and modification date. Strings are stored as a length prefix and UTF-8 bytes, with
+ * a negative length meaning null. The file is memory-mapped for reading, and written to a
+ * temporary file that is renamed over the previous snapshot, so a crash while writing never
+ * leaves a half-written catalog behind.
+ */
+class CatalogSnapshot {
+
+    private static final String TAG = LogHelper.makeLogTag(CatalogSnapshot.class);
+
+    private static final int MAGIC = 0x4d504353; // "MPCS"
+    private static final int VERSION = 6;
+    private static final int HEADER_SIZE = 4 + 4 + 4 + 8;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File mFile;
+
+    CatalogSnapshot(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Read the snapshot from disk.
+     *
+     * @return the persisted tracks, or null if there is no snapshot or it is unreadable,
+     *         of an older format version or fails its checksum.
+     */
+    TrackStore read() {
+        if (!mFile.isFile()) {
+            return null;
+        }
+        long start = System.nanoTime();
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(mFile);
+            FileChannel channel = in.getChannel();
+            if (channel.size() < HEADER_SIZE) {
+                LogHelper.w(TAG, "Ignoring truncated catalog snapshot");
+                return null;
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                LogHelper.i(TAG, "Ignoring catalog snapshot with unknown format");
+                return null;
+            }
+            int count = buffer.getInt();
+            long checksum = buffer.getLong();
+
+            ByteBuffer payload = buffer.slice();
+            if (checksum(payload.duplicate()) != checksum) {
+                LogHelper.w(TAG, "Ignoring catalog snapshot with bad checksum");
+                return null;
+            }
+
+            TrackStore tracks = new TrackStore(count);
+            for (int i = 0; i < count; i++) {
+                tracks.put(payload.getLong(), readString(payload), readString(payload),
+                        readString(payload), readString(payload), readString(payload),
+                        payload.getLong(),
+                        readString(payload), payload.getInt(), payload.getLong(),
+                        payload.getLong());
+            }
+            LogHelper.d(TAG, "Read ", count, " tracks from catalog snapshot in ",
+                    (System.nanoTime() - start) / 1000000, "ms");
+            return tracks;
+        } catch (IOException | BufferUnderflowException e) {
+            LogHelper.w(TAG, e, "Could not read catalog snapshot");
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * Atomically replace the snapshot on disk with the given tracks.
+     *
+     * @return true if the new snapshot was written
+     */
+    boolean write(TrackStore tracks) {
+        long start = System.nanoTime();
+        File tmp = new File(mFile.getPath() + ".tmp");
+        FileOutputStream out = null;
+        try {
+            ExposedByteArrayOutputStream bytes = new ExposedByteArrayOutputStream();
+            DataOutputStream payload = new DataOutputStream(bytes);
+            List<Integer> rows = sortedLiveRows(tracks);
+            int count = rows.size();
+            for (int row : rows) {
+                payload.writeLong(tracks.getId(row));
+                writeString(payload, tracks.getSource(row));
+                writeString(payload, tracks.getTitle(row));
+                writeString(payload, tracks.getSortKey(row));
+                writeString(payload, tracks.getArtist(row));
+                writeString(payload, tracks.getAlbum(row));
+                payload.writeLong(tracks.getAlbumId(row));
+                writeString(payload, tracks.getGenre(row));
+                payload.writeInt(tracks.getYear(row));
+                payload.writeLong(tracks.getDuration(row));
+                payload.writeLong(tracks.getDateModified(row));
+            }
+            payload.flush();
+
+            CRC32 crc = new CRC32();
+            crc.update(bytes.buffer(), 0, bytes.size());
+
+            out = new FileOutputStream(tmp);
+            DataOutputStream file = new DataOutputStream(new BufferedOutputStream(out));
+            file.writeInt(MAGIC);
+            file.writeInt(VERSION);
+            file.writeInt(count);
+            file.writeLong(crc.getValue());
+            file.write(bytes.buffer(), 0, bytes.size());
+            file.flush();
+            out.getFD().sync();
+            out.close();
+            out = null;
+
+            if (!tmp.renameTo(mFile)) {
+                LogHelper.w(TAG, "Could not move catalog snapshot into place");
+                return false;
+            }
+            LogHelper.d(TAG, "Wrote ", count, " tracks to catalog snapshot in ",
+                    (System.nanoTime() - start) / 1000000, "ms");
+            return true;
+        } catch (IOException e) {
+            LogHelper.w(TAG, e, "Could not write catalog snapshot");
+            return false;
+        } finally {
+            closeQuietly(out);
+            if (tmp.exists() && !tmp.delete()) {
+                LogHelper.w(TAG, "Could not delete ", tmp);
+            }
+        }
+    }
+
+    /**
+     * @return the live rows in the source's order, so that a catalog read back from the
+     *         snapshot is ordered like one loaded from the source, even after syncs
+     */
+    private static List<Integer> sortedLiveRows(final TrackStore tracks) {
+        List<Integer> rows = new ArrayList<>();
+        for (int row : tracks.liveRows()) {
+            rows.add(row);
+        }
+        Collections.sort(rows, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return tracks.compareRows(a, b);
+            }
+        });
+        return rows;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    private static long checksum(ByteBuffer buffer) {
+        CRC32 crc = new CRC32();
+        byte[] chunk = new byte[8192];
+        while (buffer.hasRemaining()) {
+            int length = Math.min(chunk.length, buffer.remaining());
+            buffer.get(chunk, 0, length);
+            crc.update(chunk, 0, length);
+        }
+        return crc.getValue();
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                LogHelper.w(TAG, e, "Error closing ", closeable);
+            }
+        }
+    }
+
+    /**
+     * ByteArrayOutputStream that gives access to its buffer without copying it.
+     */
+    private static class ExposedByteArrayOutputStream extends ByteArrayOutputStream {
+        ExposedByteArrayOutputStream() {
+            super(64 * 1024);
+        }
+
+        byte[] buffer() {
+            return buf;
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package com.example.course.musicplayer.model;
+
+import java.util.Arrays;
+
+/**
+ * Growable list of primitive ints, used to collect track rows without boxing them.
+ */
+class IntList {
+    private int[] mValues = new int[8];
+    private int mSize;
+
+    void add(int value) {
+        if (mSize == mValues.length) {
+            mValues = Arrays.copyOf(mValues, mSize * 2);
+        }
+        mValues[mSize++] = value;
+    }
+
+    int get(int index) {
+        return mValues[index];
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    void sort() {
+        Arrays.sort(mValues, 0, mSize);
+    }
+
+    int[] toArray() {
+        return Arrays.copyOf(mValues, mSize);
+    }
+}
@@ -19,6 +19,7 @@ package com.example.course.musicplayer.model;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.database.Cursor;
+import android.net.Uri;
 import android.provider.MediaStore;
 import android.support.v4.media.MediaBrowserCompat;
 import android.support.v4.media.MediaDescriptionCompat;
@@ -32,12 +33,18 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.URL;
 import java.net.URLConnection;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
 
 import static com.example.course.musicplayer.utils.MediaIDHelper.createMediaID;
 
@@ -62,63 +69,377 @@ public class LocalMediaSource implements MusicProviderSource {
     private static final String JSON_DURATION = "duration";
     private static final String MEDIA_ID_MUSICS_BY_ALBUM = "__BY_ALBUM__";
 
+    // Only the columns buildFromCursor actually reads, so the provider does not have to
+    // copy every MediaStore column across the process boundary for each row.
+    static final String[] TRACK_PROJECTION = new String[] {
+            MediaStore.Audio.Media._ID,
+            MediaStore.Audio.Media.TITLE,
+            MediaStore.Audio.Media.ARTIST,
+            MediaStore.Audio.Media.ALBUM,
+            MediaStore.Audio.Media.ALBUM_ID,
+            MediaStore.Audio.Media.YEAR,
+            MediaStore.Audio.Media.DURATION,
+            MediaStore.Audio.Media.DATA,
+            MediaStore.Audio.Media.DATE_MODIFIED,
+            MediaStore.Audio.Media.TITLE_KEY
+    };
+
+    // Ids break ties between equal title keys, so every query returns tracks in the same
+    // order.
+    private static final String TRACK_SORT_ORDER = MediaStore.Audio.Media.DEFAULT_SORT_ORDER +
+            ", " + MediaStore.Audio.Media._ID;
+
+    private static final String[] ID_RANGE_PROJECTION = new String[] {
+            "MIN(" + MediaStore.Audio.Media._ID + ")",
+            "MAX(" + MediaStore.Audio.Media._ID + ")",
+            "COUNT(*)"
+    };
+
+    private static final String[] VERSION_PROJECTION = new String[] {
+            MediaStore.Audio.Media._ID,
+            MediaStore.Audio.Media.DATE_MODIFIED
+    };
+
+    private static final String[] GENRE_PROJECTION = new String[] {
+            MediaStore.Audio.Genres._ID,
+            MediaStore.Audio.Genres.NAME
+    };
+
+    private static final String[] GENRE_MEMBER_PROJECTION = new String[] {
+            MediaStore.Audio.Genres.Members.AUDIO_ID,
+            MediaStore.Audio.Genres.Members.GENRE_ID
+    };
+
+    // Members of every genre, straight from MediaStore's genre map table.
+    private static final Uri GENRE_MEMBERS_URI = Uri.withAppendedPath(
+            MediaStore.Audio.Genres.EXTERNAL_CONTENT_URI, "all/members");
+
+    // Number of ids looked up per query when fetching individual tracks.
+    private static final int ID_QUERY_CHUNK_SIZE = 500;
+
+    // Genre of each track id. MediaStore keeps genres in their own table rather than as a
+    // column of the audio table, so they are joined in memory. Reloaded at the start of
+    // every full scan or sync, and reused by the window and id queries that follow it.
+    private volatile Map<Long, String> mGenresByTrack;
+
     public LocalMediaSource(Context context) {
         mContext = context;
     }
 
     @Override
     public Iterator<MediaMetadataCompat> iterator() {
+        ContentResolver cr = mContext.getContentResolver();
+        Cursor cursor = null;
+        if (cr != null) {
+            cursor = cr.query(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
+                    TRACK_PROJECTION, null, null, TRACK_SORT_ORDER);
+        }
+        return new CursorTrackIterator(cursor, reloadGenres());
+    }
+
+    @Override
+    public Iterator<MediaMetadataCompat> iterator(long fromId, long toId) {
+        ContentResolver cr = mContext.getContentResolver();
+        Cursor cursor = null;
+        if (cr != null) {
+            cursor = cr.query(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, TRACK_PROJECTION,
+                    MediaStore.Audio.Media._ID + " >= ? AND " + MediaStore.Audio.Media._ID + " < ?",
+                    new String[] {String.valueOf(fromId), String.valueOf(toId)},
+                    TRACK_SORT_ORDER);
+        }
+        return new CursorTrackIterator(cursor, getGenres());
+    }
+
+    @Override
+    public long[] getTrackIdRange() {
+        ContentResolver cr = mContext.getContentResolver();
+        Cursor cursor = cr != null ? cr.query(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
+                ID_RANGE_PROJECTION, null, null, null) : null;
+        if (cursor == null) {
+            return null;
+        }
+        try {
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+            return new long[] {cursor.getLong(0), cursor.getLong(1), cursor.getLong(2)};
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Override
+    public Map<String, Long> getTrackVersions() {
+        Map<String, Long> versions = new HashMap<>();
+        ContentResolver cr = mContext.getContentResolver();
+        if (cr == null) {
+            return versions;
+        }
+        reloadGenres();
+        Cursor cursor = cr.query(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
+                VERSION_PROJECTION, null, null, null);
+        if (cursor == null) {
+            return versions;
+        }
+        try {
+            int idColumn = cursor.getColumnIndexOrThrow(MediaStore.Audio.Media._ID);
+            int dateColumn = cursor.getColumnIndexOrThrow(MediaStore.Audio.Media.DATE_MODIFIED);
+            while (cursor.moveToNext()) {
+                versions.put(cursor.getString(idColumn), cursor.getLong(dateColumn));
+            }
+        } finally {
+            cursor.close();
+        }
+        return versions;
+    }
 
+    @Override
+    public Iterator<MediaMetadataCompat> iterator(Collection<String> trackIds) {
+        return new IdChunkIterator(new ArrayList<>(trackIds));
+    }
+
+    private Cursor queryByIds(List<String> trackIds) {
+        ContentResolver cr = mContext.getContentResolver();
+        if (cr == null) {
+            return null;
+        }
+        // MediaStore ids are numeric, so they can be inlined safely. This keeps us clear of
+        // the SQLite limit on bound arguments.
+        StringBuilder selection = new StringBuilder(MediaStore.Audio.Media._ID).append(" IN (");
+        for (int i = 0; i < trackIds.size(); i++) {
+            if (i > 0) {
+                selection.append(',');
+            }
+            selection.append(Long.parseLong(trackIds.get(i)));
+        }
+        selection.append(')');
+        return cr.query(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
+                TRACK_PROJECTION, selection.toString(), null, null);
+    }
+
+    private Map<Long, String> getGenres() {
+        Map<Long, String> genres = mGenresByTrack;
+        return genres != null ? genres : reloadGenres();
+    }
 
-            ArrayList<MediaMetadataCompat> tracks = new ArrayList<>();
-            ContentResolver cr = mContext.getContentResolver();
-            if (cr != null) {
-                Cursor cursor = cr.query(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
-                        null, null, null, MediaStore.Audio.Media.DEFAULT_SORT_ORDER);
+    @Override
+    public Map<Long, String> getTrackGenres() {
+        return getGenres();
+    }
 
-                if (null != cursor) {
+    /**
+     * Load the genre of every track with two queries: the genre names, and the genre map
+     * table through the members of all genres at once, rather than the members of each genre
+     * in turn.
+     */
+    private Map<Long, String> reloadGenres() {
+        Map<Long, String> genres = new HashMap<>();
+        ContentResolver cr = mContext.getContentResolver();
+        Cursor genreCursor = cr != null ? cr.query(MediaStore.Audio.Genres.EXTERNAL_CONTENT_URI,
+                GENRE_PROJECTION, null, null, null) : null;
+        if (genreCursor == null) {
+            mGenresByTrack = genres;
+            return genres;
+        }
+        Map<Long, String> names = new HashMap<>();
+        try {
+            int idColumn = genreCursor.getColumnIndexOrThrow(MediaStore.Audio.Genres._ID);
+            int nameColumn = genreCursor.getColumnIndexOrThrow(MediaStore.Audio.Genres.NAME);
+            while (genreCursor.moveToNext()) {
+                names.put(genreCursor.getLong(idColumn), genreCursor.getString(nameColumn));
+            }
+        } finally {
+            genreCursor.close();
+        }
+        if (names.isEmpty()) {
+            mGenresByTrack = genres;
+            return genres;
+        }
 
-                    if (cursor.moveToFirst()) {
-                        do {
-                            tracks.add(buildFromCursor(cursor));
-                        } while (cursor.moveToNext());
+        Cursor members = cr.query(GENRE_MEMBERS_URI, GENRE_MEMBER_PROJECTION, null, null, null);
+        if (members != null) {
+            try {
+                int audioIdColumn = members.getColumnIndexOrThrow(
+                        MediaStore.Audio.Genres.Members.AUDIO_ID);
+                int genreIdColumn = members.getColumnIndexOrThrow(
+                        MediaStore.Audio.Genres.Members.GENRE_ID);
+                while (members.moveToNext()) {
+                    String name = names.get(members.getLong(genreIdColumn));
+                    if (name != null) {
+                        genres.put(members.getLong(audioIdColumn), name);
                     }
                 }
+            } finally {
+                members.close();
+            }
+        }
+        mGenresByTrack = genres;
+        return genres;
+    }
+
+    /**
+     * Iterator over an explicit set of tracks, querying them a chunk of ids at a time.
+     */
+    private class IdChunkIterator implements Iterator<MediaMetadataCompat>, Closeable {
+
+        private final List<String> mTrackIds;
+        private int mNextChunk;
+        private CursorTrackIterator mCurrent;
+
+        IdChunkIterator(List<String> trackIds) {
+            mTrackIds = trackIds;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (mCurrent == null || !mCurrent.hasNext()) {
+                if (mNextChunk >= mTrackIds.size()) {
+                    return false;
+                }
+                int end = Math.min(mNextChunk + ID_QUERY_CHUNK_SIZE, mTrackIds.size());
+                mCurrent = new CursorTrackIterator(queryByIds(mTrackIds.subList(mNextChunk, end)),
+                        getGenres());
+                mNextChunk = end;
             }
-            return tracks.iterator();
+            return true;
+        }
 
+        @Override
+        public MediaMetadataCompat next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return mCurrent.next();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("remove");
+        }
+
+        @Override
+        public void close() {
+            mNextChunk = mTrackIds.size();
+            if (mCurrent != null) {
+                mCurrent.close();
+            }
+        }
     }
 
-    private MediaMetadataCompat buildFromCursor(Cursor cursor) {
-
-        String title = cursor.getString(cursor.getColumnIndex(MediaStore.Audio.Media.TITLE));
-        String singer = cursor.getString(cursor.getColumnIndex(MediaStore.Audio.Media.ARTIST));
-        String album = cursor.getString(cursor.getColumnIndex(MediaStore.Audio.Media.ALBUM));
-        String albumId = cursor.getString(cursor.getColumnIndex(MediaStore.Audio.Media.ALBUM_ID));
-
-        long size = cursor.getLong(cursor.getColumnIndex(MediaStore.Audio.Media.SIZE));
-        int duration = cursor.getInt(cursor.getColumnIndex(MediaStore.Audio.Media.DURATION));
-        String url = cursor.getString(cursor.getColumnIndex(MediaStore.Audio.Media.DATA));
-        Log.v("Nick", "data of url  is : " + url);
-        String artist = cursor.getString(cursor.getColumnIndex(MediaStore.Audio.Media.ARTIST));
-
-        LogHelper.d(TAG, "Found music track: ", cursor.toString());
-
-        String id = cursor.getString(cursor.getColumnIndex(MediaStore.Audio.Media._ID));
-
-        // Adding the music source to the MediaMetadata (and consequently using it in the
-        // mediaSession.setMetadata) is not a good idea for a real world music app, because
-        // the session metadata can be accessed by notification listeners. This is done in this
-        // sample for convenience only.
-        //noinspection ResourceType
-        return new MediaMetadataCompat.Builder()
-                .putString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID, id)
-                .putString(MusicProviderSource.CUSTOM_METADATA_TRACK_SOURCE, url)
-                .putString(MediaMetadataCompat.METADATA_KEY_ALBUM, album)
-                .putString(MediaMetadataCompat.METADATA_KEY_ARTIST, artist)
-                .putLong(MediaMetadataCompat.METADATA_KEY_DURATION, duration)
-                .putString(MediaMetadataCompat.METADATA_KEY_TITLE, title)
-                .build();
+    /**
+     * Iterator that builds tracks lazily while walking the MediaStore cursor, instead of
+     * materializing the whole catalog up front. Column indices are resolved once, and the
+     * cursor is closed as soon as the last row was consumed, or when {@link #close()} is
+     * called by a consumer that stops early.
+     */
+    static class CursorTrackIterator implements Iterator<MediaMetadataCompat>, Closeable,
+            MusicProviderSource.Sized {
+
+        private Cursor mCursor;
+        private final Map<Long, String> mGenres;
+        private boolean mHasNext;
+        private int mSize;
+
+        private int mIdColumn;
+        private int mTitleColumn;
+        private int mArtistColumn;
+        private int mAlbumColumn;
+        private int mAlbumIdColumn;
+        private int mYearColumn;
+        private int mDurationColumn;
+        private int mDataColumn;
+        private int mDateModifiedColumn;
+        private int mTitleKeyColumn;
+
+        CursorTrackIterator(Cursor cursor, Map<Long, String> genres) {
+            mCursor = cursor;
+            mGenres = genres;
+            if (cursor != null) {
+                mIdColumn = cursor.getColumnIndexOrThrow(MediaStore.Audio.Media._ID);
+                mTitleColumn = cursor.getColumnIndexOrThrow(MediaStore.Audio.Media.TITLE);
+                mArtistColumn = cursor.getColumnIndexOrThrow(MediaStore.Audio.Media.ARTIST);
+                mAlbumColumn = cursor.getColumnIndexOrThrow(MediaStore.Audio.Media.ALBUM);
+                mAlbumIdColumn = cursor.getColumnIndexOrThrow(MediaStore.Audio.Media.ALBUM_ID);
+                mYearColumn = cursor.getColumnIndexOrThrow(MediaStore.Audio.Media.YEAR);
+                mDurationColumn = cursor.getColumnIndexOrThrow(MediaStore.Audio.Media.DURATION);
+                mDataColumn = cursor.getColumnIndexOrThrow(MediaStore.Audio.Media.DATA);
+                mDateModifiedColumn = cursor.getColumnIndexOrThrow(
+                        MediaStore.Audio.Media.DATE_MODIFIED);
+                mTitleKeyColumn = cursor.getColumnIndexOrThrow(MediaStore.Audio.Media.TITLE_KEY);
+                mSize = cursor.getCount();
+                mHasNext = cursor.moveToFirst();
+            }
+            if (!mHasNext) {
+                close();
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return mHasNext;
+        }
+
+        @Override
+        public MediaMetadataCompat next() {
+            if (!mHasNext) {
+                throw new NoSuchElementException();
+            }
+            MediaMetadataCompat track = buildFromCursor();
+            mHasNext = mCursor.moveToNext();
+            if (!mHasNext) {
+                close();
+            }
+            return track;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("remove");
+        }
+
+        @Override
+        public int size() {
+            return mSize;
+        }
+
+        @Override
+        public void close() {
+            mHasNext = false;
+            if (mCursor != null) {
+                mCursor.close();
+                mCursor = null;
+            }
+        }
+
+        private MediaMetadataCompat buildFromCursor() {
+            // Adding the music source to the MediaMetadata (and consequently using it in the
+            // mediaSession.setMetadata) is not a good idea for a real world music app, because
+            // the session metadata can be accessed by notification listeners. This is done in
+            // this sample for convenience only.
+            long id = mCursor.getLong(mIdColumn);
+            //noinspection ResourceType
+            return new MediaMetadataCompat.Builder()
+                    .putString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID, String.valueOf(id))
+                    .putString(MusicProviderSource.CUSTOM_METADATA_TRACK_SOURCE,
+                            mCursor.getString(mDataColumn))
+                    .putLong(MusicProviderSource.CUSTOM_METADATA_DATE_MODIFIED,
+                            mCursor.getLong(mDateModifiedColumn))
+                    .putString(MusicProviderSource.CUSTOM_METADATA_SORT_KEY,
+                            mCursor.getString(mTitleKeyColumn))
+                    .putString(MediaMetadataCompat.METADATA_KEY_ALBUM,
+                            mCursor.getString(mAlbumColumn))
+                    .putLong(MusicProviderSource.CUSTOM_METADATA_ALBUM_ID,
+                            mCursor.getLong(mAlbumIdColumn))
+                    .putString(MediaMetadataCompat.METADATA_KEY_ARTIST,
+                            mCursor.getString(mArtistColumn))
+                    .putString(MediaMetadataCompat.METADATA_KEY_GENRE, mGenres.get(id))
+                    .putLong(MediaMetadataCompat.METADATA_KEY_YEAR, mCursor.getInt(mYearColumn))
+                    .putLong(MediaMetadataCompat.METADATA_KEY_DURATION,
+                            mCursor.getInt(mDurationColumn))
+                    .putString(MediaMetadataCompat.METADATA_KEY_TITLE,
+                            mCursor.getString(mTitleColumn))
+                    .build();
+        }
     }
 
 }
@@ -1,29 +1,59 @@
 package com.example.course.musicplayer.model;
 
+import android.content.ContentResolver;
 import android.content.Context;
+import android.database.ContentObserver;
 import android.content.res.Resources;
-import android.graphics.Bitmap;
 import android.net.Uri;
-import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.provider.MediaStore;
 import android.support.v4.media.MediaBrowserCompat;
 import android.support.v4.media.MediaDescriptionCompat;
 import android.support.v4.media.MediaMetadataCompat;
+import android.text.TextUtils;
 import android.util.Log;
 
 import com.example.course.musicplayer.R;
 import com.example.course.musicplayer.utils.LogHelper;
+import com.example.course.musicplayer.utils.MediaId;
 import com.example.course.musicplayer.utils.MediaIDHelper;
 
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import static com.example.course.musicplayer.utils.MediaIDHelper.MEDIA_ID_MUSICS_BY_GENRE;
 import static com.example.course.musicplayer.utils.MediaIDHelper.MEDIA_ID_MUSICS_BY_ALBUM;
+import static com.example.course.musicplayer.utils.MediaIDHelper.MEDIA_ID_MUSICS_BY_ARTIST;
+import static com.example.course.musicplayer.utils.MediaIDHelper.MEDIA_ID_MUSICS_BY_FOLDER;
+import static com.example.course.musicplayer.utils.MediaIDHelper.MEDIA_ID_MUSICS_BY_GENRE;
+import static com.example.course.musicplayer.utils.MediaIDHelper.MEDIA_ID_MUSICS_BY_SEARCH;
+import static com.example.course.musicplayer.utils.MediaIDHelper.MEDIA_ID_MUSICS_BY_YEAR;
 import static com.example.course.musicplayer.utils.MediaIDHelper.MEDIA_ID_ROOT;
 import static com.example.course.musicplayer.utils.MediaIDHelper.createMediaID;
 
@@ -35,11 +65,47 @@ public class MusicProvider {
 
     private static final String TAG = LogHelper.makeLogTag(MusicProvider.class);
 
+    private static final String SNAPSHOT_FILE_NAME = "catalog.snapshot";
+    private static final long SOURCE_SYNC_DELAY_MS = 1000;
+    private static final int PROGRESS_INTERVAL = 500;
+    private static final int LOADER_QUEUE_CAPACITY = 4;
+    private static final int BROWSE_THREADS = 2;
+    private static final int BROWSE_CACHE_MAX_ITEMS = 2000;
+    // Below this many tracks per worker, the extra queries cost more than they save.
+    private static final int MIN_PARTITION_SIZE = 2000;
+
     private MusicProviderSource mSource;
+    private CatalogSnapshot mSnapshot;
+    private ContentResolver mContentResolver;
+    private ContentObserver mSourceObserver;
+    private CatalogChangeListener mCatalogChangeListener;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    // A single loader thread keeps the initial load and later syncs from overlapping, and
+    // keeps catalog work off the process-wide AsyncTask executor.
+    private final ThreadPoolExecutor mLoaderExecutor;
+    private final List<Callback> mPendingCallbacks = new ArrayList<>();
+    private LoadTask mLoadTask;
+    // Set when the source changed while the catalog was not loaded yet; the load then syncs
+    // once it completes, as its scan may have started before the change.
+    private final AtomicBoolean mSyncDeferred = new AtomicBoolean();
+    private volatile LoadProgressListener mLoadProgressListener;
+    private volatile int mParallelism = 1;
+    // Browse lists are built on their own threads, so a sync running on the loader does not
+    // hold them up.
+    private final ThreadPoolExecutor mBrowseExecutor;
+    private final BrowseCache mBrowseCache = new BrowseCache(BROWSE_CACHE_MAX_ITEMS);
+
+    private static final int[] EMPTY_ROWS = new int[0];
+    private static final String ICON_URI_PREFIX =
+            "android.resource://com.example.course.musicplayer/mipmap/";
 
-    // Categorized caches for music track data:
-    private ConcurrentMap<String, List<MediaMetadataCompat>> mMusicListByGenre;
-    private final ConcurrentMap<String, MutableMediaMetadata> mMusicListById;
+    // Categorized caches for music track data. Each index maps its keys to rows of mTracks,
+    // in the order they are listed under the root.
+    private final List<TrackIndex> mIndexes;
+    private final Map<String, TrackIndex> mIndexesByCategory;
+    private volatile SearchIndex mSearchIndex = SearchIndex.EMPTY;
+    private volatile TrackStore mTracks;
 
     enum State {
         NON_INITIALIZED, INITIALIZING, INITIALIZED
@@ -51,38 +117,194 @@ public class MusicProvider {
         void onMusicCatalogReady(boolean success);
     }
 
+    public interface LoadProgressListener {
+        /**
+         * Called on the main thread while the catalog is being scanned.
+         *
+         * @param scanned number of tracks scanned so far
+         * @param total total number of tracks, or -1 if the source cannot tell
+         */
+        void onCatalogLoadProgress(int scanned, int total);
+    }
+
+    public interface ChildrenCallback {
+        /**
+         * Called on the main thread with the children of a browse node.
+         */
+        void onChildrenLoaded(List<MediaBrowserCompat.MediaItem> children);
+    }
+
+    public interface CatalogChangeListener {
+        /**
+         * Called on the main thread after the catalog was updated in place.
+         *
+         * @param parentMediaIds media IDs of the browse nodes whose children changed
+         */
+        void onCatalogChanged(Set<String> parentMediaIds);
+    }
+
     public MusicProvider(Context context) {
         this(new LocalMediaSource(context));
+        mSnapshot = new CatalogSnapshot(new File(context.getFilesDir(), SNAPSHOT_FILE_NAME));
+        mContentResolver = context.getContentResolver();
     }
     public MusicProvider(MusicProviderSource source) {
         mSource = source;
-        mMusicListByGenre = new ConcurrentHashMap<>();
-        mMusicListById = new ConcurrentHashMap<>();
+        mIndexes = createIndexes();
+        mIndexesByCategory = new LinkedHashMap<>();
+        for (TrackIndex index : mIndexes) {
+            mIndexesByCategory.put(index.getCategory(), index);
+        }
+        mTracks = new TrackStore();
+        mLoaderExecutor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(LOADER_QUEUE_CAPACITY), new LoaderThreadFactory("CatalogLoader"));
+        mLoaderExecutor.allowCoreThreadTimeOut(true);
+        mBrowseExecutor = new ThreadPoolExecutor(BROWSE_THREADS, BROWSE_THREADS, 30,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new LoaderThreadFactory("CatalogBrowser"));
+        mBrowseExecutor.allowCoreThreadTimeOut(true);
 
     }
 
+    private static List<TrackIndex> createIndexes() {
+        List<TrackIndex> indexes = new ArrayList<>();
+        indexes.add(new TrackIndex(MEDIA_ID_MUSICS_BY_ALBUM, R.string.browse_albums,
+                R.string.browse_album_subtitle, ICON_URI_PREFIX + "ic_album_black_24dp") {
+            @Override
+            protected String valueOf(TrackStore tracks, int row) {
+                return tracks.getAlbum(row);
+            }
+        });
+        indexes.add(new TrackIndex(MEDIA_ID_MUSICS_BY_ARTIST, R.string.browse_artists,
+                R.string.browse_artist_subtitle, ICON_URI_PREFIX + "ic_recent_actors_black_24dp") {
+            @Override
+            protected String valueOf(TrackStore tracks, int row) {
+                return tracks.getArtist(row);
+            }
+        });
+        indexes.add(new TrackIndex(MEDIA_ID_MUSICS_BY_GENRE, R.string.browse_genres,
+                R.string.browse_genre_subtitle, ICON_URI_PREFIX + "ic_by_genre") {
+            @Override
+            protected String valueOf(TrackStore tracks, int row) {
+                return tracks.getGenre(row);
+            }
+        });
+        indexes.add(new TrackIndex(MEDIA_ID_MUSICS_BY_YEAR, R.string.browse_years,
+                R.string.browse_year_subtitle, ICON_URI_PREFIX + "ic_allmusic_black_24dp") {
+            @Override
+            protected String valueOf(TrackStore tracks, int row) {
+                int year = tracks.getYear(row);
+                return year > 0 ? String.valueOf(year) : null;
+            }
+        });
+        indexes.add(new TrackIndex(MEDIA_ID_MUSICS_BY_FOLDER, R.string.browse_folders,
+                R.string.browse_folder_subtitle, ICON_URI_PREFIX + "ic_playlist_music_black_24dp") {
+            @Override
+            protected String valueOf(TrackStore tracks, int row) {
+                return tracks.getFolder(row);
+            }
+
+            @Override
+            String getTitle(String key) {
+                // Folders are keyed by their full path, but listed by their own name.
+                String path = super.getTitle(key);
+                return path.substring(path.lastIndexOf('/') + 1);
+            }
+        });
+        return indexes;
+    }
+
     /**
      * Get an iterator over the list of genres
      *
      * @return genres
      */
     public Iterable<String> getGenres() {
-        if (mCurrentState != State.INITIALIZED) {
+        return getCategoryValues(MEDIA_ID_MUSICS_BY_GENRE);
+    }
+
+    /**
+     * Get the values (album names, artist names, ...) listed under a browse category, in
+     * their media ID encoded form.
+     *
+     * @param category one of the MEDIA_ID_MUSICS_BY_* categories
+     */
+    public Iterable<String> getCategoryValues(String category) {
+        TrackIndex index = mIndexesByCategory.get(category);
+        if (mCurrentState != State.INITIALIZED || index == null) {
             return Collections.emptyList();
         }
-        return mMusicListByGenre.keySet();
+        return index.getKeys();
     }
 
-
     /**
-     * Get music tracks of the given genre
+     * Get music tracks of the given album
      *
      */
     public Iterable<MediaMetadataCompat> getMusicsByAlbum(String album) {
-        if (mCurrentState != State.INITIALIZED || !mMusicListByGenre.containsKey(album)) {
+        return getMusicsByCategory(MEDIA_ID_MUSICS_BY_ALBUM,
+                album != null ? MediaIDHelper.encodeCategoryValue(album) : null);
+    }
+
+    /**
+     * Get music tracks listed under a value of a browse category.
+     *
+     * @param category one of the MEDIA_ID_MUSICS_BY_* categories
+     * @param value the category value, as it appears in media IDs
+     */
+    public Iterable<MediaMetadataCompat> getMusicsByCategory(String category, String value) {
+        return asMetadata(mTracks, getRowsByCategory(category, value));
+    }
+
+    /**
+     * Get the music ids of the tracks listed under a value of a browse category, without
+     * building their metadata.
+     *
+     * @param category one of the MEDIA_ID_MUSICS_BY_* categories
+     * @param value the category value, as it appears in media IDs
+     */
+    public List<String> getMusicIdsByCategory(String category, String value) {
+        TrackStore tracks = mTracks;
+        int[] rows = getRowsByCategory(category, value);
+        List<String> musicIds = new ArrayList<>(rows.length);
+        for (int row : rows) {
+            musicIds.add(String.valueOf(tracks.getId(row)));
+        }
+        return musicIds;
+    }
+
+    private int[] getRowsByCategory(String category, String value) {
+        if (mCurrentState != State.INITIALIZED || value == null) {
+            return EMPTY_ROWS;
+        }
+        if (MEDIA_ID_MUSICS_BY_SEARCH.equals(category)) {
+            return searchRows(MediaIDHelper.decodeCategoryValue(value));
+        }
+        TrackIndex index = mIndexesByCategory.get(category);
+        int[] rows = index != null ? index.getRows(value) : null;
+        return rows != null ? rows : EMPTY_ROWS;
+    }
+
+    /**
+     * Full-text search over the title, artist and album of every track. Each word of the query
+     * must start a word of one of those fields; case and accents are ignored.
+     *
+     * @return the matching tracks, or an empty list if there are none or the catalog is not
+     *         loaded yet.
+     */
+    public Iterable<MediaMetadataCompat> searchMusic(String query) {
+        if (mCurrentState != State.INITIALIZED) {
             return Collections.emptyList();
         }
-        return mMusicListByGenre.get(album);
+        return asMetadata(mTracks, searchRows(query));
+    }
+
+    private int[] searchRows(String query) {
+        long start = System.nanoTime();
+        int[] rows = mSearchIndex.search(query);
+        LogHelper.d(TAG, "Search for '", query, "' matched ", rows.length, " tracks in ",
+                (System.nanoTime() - start) / 1000, "us");
+        return rows;
     }
 
     /**
@@ -91,36 +313,75 @@ public class MusicProvider {
      * @param musicId The unique, non-hierarchical music ID.
      */
     public MediaMetadataCompat getMusic(String musicId) {
-        return mMusicListById.containsKey(musicId) ? mMusicListById.get(musicId).metadata : null;
+        long id = parseTrackId(musicId);
+        TrackStore tracks = mTracks;
+        int row = tracks.getRow(id);
+        return row != TrackStore.NO_ROW ? tracks.getMetadata(row) : null;
     }
 
-    public synchronized void updateMusicArt(String musicId, Bitmap albumArt, Bitmap icon) {
-        MediaMetadataCompat metadata = getMusic(musicId);
-        metadata = new MediaMetadataCompat.Builder(metadata)
+    /**
+     * Describe a track straight from the catalog, without building its metadata first.
+     *
+     * @param musicId The unique, non-hierarchical music ID.
+     * @param mediaId media ID to describe the track with, typically a hierarchy-aware one
+     * @return the description, or null if the track is not in the catalog
+     */
+    public MediaDescriptionCompat getDescription(String musicId, String mediaId) {
+        long id = parseTrackId(musicId);
+        TrackStore tracks = mTracks;
+        int row = tracks.getRow(id);
+        return row != TrackStore.NO_ROW ? tracks.getDescription(row, mediaId) : null;
+    }
 
-                // set high resolution bitmap in METADATA_KEY_ALBUM_ART. This is used, for
-                // example, on the lockscreen background when the media session is active.
-                .putBitmap(MediaMetadataCompat.METADATA_KEY_ALBUM_ART, albumArt)
+    private static long parseTrackId(String musicId) {
+        try {
+            return Long.parseLong(musicId);
+        } catch (NumberFormatException e) {
+            return Long.MIN_VALUE;
+        }
+    }
 
-                // set small version of the album art in the DISPLAY_ICON. This is used on
-                // the MediaDescription and thus it should be small to be serialized if
-                // necessary
-                .putBitmap(MediaMetadataCompat.METADATA_KEY_DISPLAY_ICON, icon)
+    /**
+     * Lazily builds the metadata of each row as the Iterable is walked, so callers that only
+     * need part of a list, or just its size, do not pay for all of it.
+     */
+    private static Iterable<MediaMetadataCompat> asMetadata(final TrackStore tracks,
+                                                            final int[] rows) {
+        return new Iterable<MediaMetadataCompat>() {
+            @Override
+            public Iterator<MediaMetadataCompat> iterator() {
+                return new Iterator<MediaMetadataCompat>() {
+                    private int mIndex;
 
-                .build();
+                    @Override
+                    public boolean hasNext() {
+                        return mIndex < rows.length;
+                    }
 
-        MutableMediaMetadata mutableMetadata = mMusicListById.get(musicId);
-        if (mutableMetadata == null) {
-            throw new IllegalStateException("Unexpected error: Inconsistent data structures in " +
-                    "MusicProvider");
-        }
+                    @Override
+                    public MediaMetadataCompat next() {
+                        if (mIndex >= rows.length) {
+                            throw new NoSuchElementException();
+                        }
+                        return tracks.getMetadata(rows[mIndex++]);
+                    }
 
-        mutableMetadata.metadata = metadata;
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException("remove");
+                    }
+                };
+            }
+        };
     }
 
     /**
      * Get the list of music tracks from a server and caches the track information
      * for future reference, keying tracks by musicId and grouping by genre.
+     *
+     * The catalog is loaded on the provider's own loader thread. Calls made while a load is
+     * already in flight are coalesced into it, and all their callbacks are invoked on the
+     * main thread once it completes.
      */
     public void retrieveMediaAsync(final Callback callback) {
         Log.v(TAG, "retrieveMediaAsync called");
@@ -132,83 +393,698 @@ public class MusicProvider {
             return;
         }
 
-        // Asynchronously load the music catalog in a separate thread
-        new AsyncTask<Void, Void, State>() {
-            @Override
-            protected State doInBackground(Void... params) {
-                retrieveMedia();
+        synchronized (mPendingCallbacks) {
+            if (callback != null) {
+                mPendingCallbacks.add(callback);
+            }
+            if (mLoadTask != null) {
+                LogHelper.d(TAG, "Catalog load already in flight, coalescing request");
+                return;
+            }
+            mLoadTask = new LoadTask();
+            submitToLoader(mLoadTask);
+        }
+    }
 
-                return mCurrentState;
+    /**
+     * Cancel the catalog load in flight, if any. Pending callbacks are invoked with
+     * success == false, and a later {@link #retrieveMediaAsync(Callback)} starts over.
+     */
+    public void cancelRetrieveMedia() {
+        synchronized (mPendingCallbacks) {
+            if (mLoadTask != null) {
+                mLoadTask.cancel(true);
             }
+        }
+    }
 
-            @Override
-            protected void onPostExecute(State current) {
-                if (callback != null) {
-                    callback.onMusicCatalogReady(current == State.INITIALIZED);
-                }
+    /**
+     * Set how many worker threads a full catalog scan may use. With more than one, the scan is
+     * split into windows of track ids that are read and indexed in parallel.
+     */
+    public void setScanParallelism(int parallelism) {
+        mParallelism = Math.max(1, parallelism);
+    }
+
+    public void setLoadProgressListener(LoadProgressListener listener) {
+        mLoadProgressListener = listener;
+    }
+
+    private void submitToLoader(Runnable task) {
+        try {
+            mLoaderExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            LogHelper.w(TAG, e, "Catalog loader is saturated, dropping task");
+            if (task instanceof FutureTask) {
+                ((FutureTask<?>) task).cancel(false);
             }
-        }.execute();
+        }
     }
 
-    private synchronized void buildListsByGenre() {
-        ConcurrentMap<String, List<MediaMetadataCompat>> newMusicListByGenre = new ConcurrentHashMap<>();
+    /**
+     * Single in-flight catalog load. Completion, failure and cancellation all go through
+     * {@link #done()}, which hands the outcome to every coalesced callback.
+     */
+    private class LoadTask extends FutureTask<Boolean> {
+
+        LoadTask() {
+            super(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return retrieveMedia();
+                }
+            });
+        }
 
-        for (MutableMediaMetadata m : mMusicListById.values()) {
-            String album = m.metadata.getString(MediaMetadataCompat.METADATA_KEY_ALBUM);
-            List<MediaMetadataCompat> list = newMusicListByGenre.get(album);
-            if (list == null) {
-                list = new ArrayList<>();
-                newMusicListByGenre.put(album, list);
+        @Override
+        protected void done() {
+            boolean fromSnapshot = false;
+            if (!isCancelled()) {
+                try {
+                    fromSnapshot = get();
+                } catch (InterruptedException | ExecutionException e) {
+                    LogHelper.e(TAG, e, "Catalog load failed");
+                }
+            }
+            final boolean success = mCurrentState == State.INITIALIZED;
+            final List<Callback> callbacks;
+            synchronized (mPendingCallbacks) {
+                callbacks = new ArrayList<>(mPendingCallbacks);
+                mPendingCallbacks.clear();
+                mLoadTask = null;
+            }
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    for (Callback callback : callbacks) {
+                        callback.onMusicCatalogReady(success);
+                    }
+                }
+            });
+            boolean syncDeferred = mSyncDeferred.getAndSet(false);
+            if (success && (fromSnapshot || syncDeferred)) {
+                // The catalog can already be served from the snapshot, or changed while it
+                // was being scanned; bring it up to date with the actual source in the
+                // background.
+                submitToLoader(mSyncTask);
             }
-            list.add(m.metadata);
         }
-        mMusicListByGenre = newMusicListByGenre;
     }
 
-    private synchronized void retrieveMedia() {
+    private void reportProgress(final int scanned, final int total) {
+        final LoadProgressListener listener = mLoadProgressListener;
+        if (listener == null) {
+            return;
+        }
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                listener.onCatalogLoadProgress(scanned, total);
+            }
+        });
+    }
+
+    private static class LoaderThreadFactory implements ThreadFactory {
+        private final String mName;
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        LoaderThreadFactory(String name) {
+            mName = name;
+        }
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, mName + " #" + mCount.incrementAndGet());
+        }
+    }
+
+    private synchronized void buildIndexes() {
+        TrackStore tracks = mTracks;
+        List<Map<String, IntList>> collectors = TrackIndex.newCollectors(mIndexes);
+        for (int row : tracks.liveRows()) {
+            collectRow(tracks, row, collectors);
+        }
+        publishIndexes(collectors);
+    }
+
+    private void collectRow(TrackStore tracks, int row, List<Map<String, IntList>> collectors) {
+        for (int i = 0; i < mIndexes.size(); i++) {
+            mIndexes.get(i).collect(tracks, row, collectors.get(i));
+        }
+    }
+
+    private void publishIndexes(List<Map<String, IntList>> collectors) {
+        for (int i = 0; i < mIndexes.size(); i++) {
+            mIndexes.get(i).publish(collectors.get(i));
+        }
+        buildSearchIndex();
+        mBrowseCache.invalidateAll();
+    }
+
+    private void buildSearchIndex() {
+        long start = System.nanoTime();
+        SearchIndex searchIndex = SearchIndex.build(mTracks);
+        LogHelper.d(TAG, "Built search index of ", searchIndex.getTokenCount(), " tokens in ",
+                (System.nanoTime() - start) / 1000000, "ms");
+        mSearchIndex = searchIndex;
+    }
+
+    /**
+     * Load the catalog, from the on-disk snapshot if there is a valid one, or else by scanning
+     * the source.
+     *
+     * @return true if the catalog was loaded from the snapshot and still needs to be
+     *         reconciled with the source.
+     */
+    private synchronized boolean retrieveMedia() {
         try {
             if (mCurrentState == State.NON_INITIALIZED) {
                 mCurrentState = State.INITIALIZING;
 
-                Iterator<MediaMetadataCompat> tracks = mSource.iterator();
-                while (tracks.hasNext()) {
-                    MediaMetadataCompat item = tracks.next();
-                    String musicId = item.getString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID);
-                    mMusicListById.put(musicId, new MutableMediaMetadata(musicId, item));
+                TrackStore snapshot = mSnapshot != null ? mSnapshot.read() : null;
+                if (snapshot != null) {
+                    mTracks = snapshot;
+                    buildIndexes();
+                    mCurrentState = State.INITIALIZED;
+                    return true;
                 }
 
-                buildListsByGenre();
+                long start = System.nanoTime();
+                long[] idRange = mParallelism > 1 ? mSource.getTrackIdRange() : null;
+                int partitions = idRange == null ? 1 :
+                        (int) Math.min(mParallelism, idRange[2] / MIN_PARTITION_SIZE);
+                if (partitions > 1) {
+                    scanPartitioned(idRange[0], idRange[1], (int) idRange[2], partitions);
+                } else {
+                    scanSequentially();
+                    buildIndexes();
+                }
+                LogHelper.d(TAG, "Scanned ", mTracks.size(), " tracks in ",
+                        (System.nanoTime() - start) / 1000000, "ms, parallelism=", mParallelism);
                 mCurrentState = State.INITIALIZED;
+                if (mSnapshot != null) {
+                    mSnapshot.write(mTracks);
+                }
             }
         } finally {
             if (mCurrentState != State.INITIALIZED) {
                 // Something bad happened, so we reset state to NON_INITIALIZED to allow
                 // retries (eg if the network connection is temporary unavailable)
                 mCurrentState = State.NON_INITIALIZED;
+                mTracks.clear();
+                for (TrackIndex index : mIndexes) {
+                    index.clear();
+                }
+                mSearchIndex = SearchIndex.EMPTY;
+                mBrowseCache.invalidateAll();
             }
         }
+        return false;
     }
 
+    private void scanSequentially() {
+        Iterator<MediaMetadataCompat> tracks = mSource.iterator();
+        try {
+            int total = tracks instanceof MusicProviderSource.Sized ?
+                    ((MusicProviderSource.Sized) tracks).size() : -1;
+            int scanned = 0;
+            while (tracks.hasNext()) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new CancellationException("Catalog load cancelled");
+                }
+                mTracks.put(tracks.next());
+                if (++scanned % PROGRESS_INTERVAL == 0) {
+                    reportProgress(scanned, total);
+                }
+            }
+            reportProgress(scanned, total);
+        } finally {
+            closeQuietly(tracks);
+        }
+    }
+
+    /**
+     * Scan the source with several worker threads, each one reading a window of track ids and
+     * building its own track store and index rows. Windows split the id range evenly.
+     *
+     * Each window comes back in the source's order, so the partitions are merged by their
+     * sort keys, and the catalog ends up in the same order as a sequential scan would leave
+     * it in.
+     */
+    private void scanPartitioned(long minId, long maxId, int total, int partitions) {
+        AtomicInteger scanned = new AtomicInteger();
+        ExecutorService workers = Executors.newFixedThreadPool(partitions,
+                new LoaderThreadFactory("CatalogBuilder"));
+        try {
+            List<Future<Partition>> futures = new ArrayList<>(partitions);
+            long span = maxId - minId + 1;
+            for (int k = 0; k < partitions; k++) {
+                // The outer windows are open-ended, so rows added since the range query
+                // still land in some partition.
+                long fromId = k == 0 ? Long.MIN_VALUE : minId + span * k / partitions;
+                long toId = k == partitions - 1 ? Long.MAX_VALUE :
+                        minId + span * (k + 1) / partitions;
+                futures.add(workers.submit(new PartitionBuilder(fromId, toId, scanned, total)));
+            }
+            List<Partition> built = new ArrayList<>(partitions);
+            for (Future<Partition> future : futures) {
+                built.add(future.get());
+            }
+
+            int[][] mergedRows = mergePartitions(built);
+            // Map the partition-local index rows to the merged ones. Rows were merged in
+            // order, so sorting a key's rows puts them back in catalog order.
+            List<Map<String, IntList>> collectors = TrackIndex.newCollectors(mIndexes);
+            for (int p = 0; p < built.size(); p++) {
+                Partition partition = built.get(p);
+                for (int i = 0; i < collectors.size(); i++) {
+                    Map<String, IntList> merged = collectors.get(i);
+                    for (Map.Entry<String, IntList> entry :
+                            partition.collectors.get(i).entrySet()) {
+                        IntList rows = merged.get(entry.getKey());
+                        if (rows == null) {
+                            rows = new IntList();
+                            merged.put(entry.getKey(), rows);
+                        }
+                        IntList localRows = entry.getValue();
+                        for (int j = 0; j < localRows.size(); j++) {
+                            rows.add(mergedRows[p][localRows.get(j)]);
+                        }
+                    }
+                }
+            }
+            for (Map<String, IntList> collector : collectors) {
+                for (IntList rows : collector.values()) {
+                    rows.sort();
+                }
+            }
+            publishIndexes(collectors);
+            reportProgress(scanned.get(), total);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Catalog load cancelled");
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Partitioned catalog scan failed", e.getCause());
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    /**
+     * Append the rows of every partition to the catalog, in order of their sort keys and then
+     * ids, as the source orders them.
+     *
+     * @return for each partition, the catalog row of each of its rows
+     */
+    private int[][] mergePartitions(List<Partition> partitions) {
+        int[][] mergedRows = new int[partitions.size()][];
+        int[] next = new int[partitions.size()];
+        for (int p = 0; p < partitions.size(); p++) {
+            mergedRows[p] = new int[partitions.get(p).tracks.rowCount()];
+        }
+        while (true) {
+            int best = -1;
+            for (int p = 0; p < partitions.size(); p++) {
+                if (next[p] < mergedRows[p].length &&
+                        (best < 0 || compareRows(partitions.get(p).tracks, next[p],
+                                partitions.get(best).tracks, next[best]) < 0)) {
+                    best = p;
+                }
+            }
+            if (best < 0) {
+                return mergedRows;
+            }
+            Partition partition = partitions.get(best);
+            mergedRows[best][next[best]] = mTracks.append(partition.tracks, next[best]);
+            next[best]++;
+        }
+    }
+
+    private static int compareRows(TrackStore a, int rowA, TrackStore b, int rowB) {
+        int result = TrackStore.compareSortKeys(a.getSortKey(rowA), b.getSortKey(rowB));
+        if (result != 0) {
+            return result;
+        }
+        long idA = a.getId(rowA);
+        long idB = b.getId(rowB);
+        return idA < idB ? -1 : (idA == idB ? 0 : 1);
+    }
+
+    private static class Partition {
+        final TrackStore tracks = new TrackStore();
+        final List<Map<String, IntList>> collectors;
+
+        Partition(List<TrackIndex> indexes) {
+            collectors = TrackIndex.newCollectors(indexes);
+        }
+    }
+
+    private class PartitionBuilder implements Callable<Partition> {
+        private final long mFromId;
+        private final long mToId;
+        private final AtomicInteger mScanned;
+        private final int mTotal;
+
+        PartitionBuilder(long fromId, long toId, AtomicInteger scanned, int total) {
+            mFromId = fromId;
+            mToId = toId;
+            mScanned = scanned;
+            mTotal = total;
+        }
+
+        @Override
+        public Partition call() {
+            Partition partition = new Partition(mIndexes);
+            Iterator<MediaMetadataCompat> tracks = mSource.iterator(mFromId, mToId);
+            try {
+                while (tracks.hasNext()) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        throw new CancellationException("Catalog load cancelled");
+                    }
+                    int row = partition.tracks.put(tracks.next());
+                    for (int i = 0; i < mIndexes.size(); i++) {
+                        mIndexes.get(i).collect(partition.tracks, row,
+                                partition.collectors.get(i));
+                    }
+
+                    int scanned = mScanned.incrementAndGet();
+                    if (scanned % PROGRESS_INTERVAL == 0) {
+                        reportProgress(scanned, mTotal);
+                    }
+                }
+            } finally {
+                closeQuietly(tracks);
+            }
+            return partition;
+        }
+    }
+
+    /**
+     * Bring the catalog up to date with the source without rescanning it. Only the id and
+     * modification date of each track are queried; full rows are then fetched for tracks that
+     * are new or whose modification date changed. Deltas are applied to the track map and
+     * to the affected index entries only.
+     *
+     * @return the media IDs of the browse nodes whose children changed.
+     */
+    private Set<String> syncWithSource() {
+        Map<String, Long> versions = mSource.getTrackVersions();
+        Map<Long, String> genres = mSource.getTrackGenres();
+        TrackStore store = mTracks;
+
+        List<Long> removedIds = new ArrayList<>();
+        List<String> changedIds = new ArrayList<>();
+        for (int row : store.liveRows()) {
+            long id = store.getId(row);
+            Long version = versions.get(String.valueOf(id));
+            if (version == null) {
+                removedIds.add(id);
+            } else if (version != store.getDateModified(row) ||
+                    !TextUtils.equals(genres.get(id), store.getGenre(row))) {
+                changedIds.add(String.valueOf(id));
+            }
+        }
+        for (String trackId : versions.keySet()) {
+            if (!store.contains(parseTrackId(trackId))) {
+                changedIds.add(trackId);
+            }
+        }
+        if (removedIds.isEmpty() && changedIds.isEmpty()) {
+            return Collections.emptySet();
+        }
+
+        List<MediaMetadataCompat> fetched = new ArrayList<>(changedIds.size());
+        Iterator<MediaMetadataCompat> tracks = mSource.iterator(changedIds);
+        try {
+            while (tracks.hasNext()) {
+                fetched.add(tracks.next());
+            }
+        } finally {
+            closeQuietly(tracks);
+        }
+
+        Set<String> changedParents = applyDeltas(removedIds, fetched);
+        LogHelper.d(TAG, "Synced catalog: removed=", removedIds.size(),
+                " added or updated=", fetched.size(), " changed nodes=", changedParents.size());
+        if (mSnapshot != null && !changedParents.isEmpty()) {
+            mSnapshot.write(store);
+        }
+        return changedParents;
+    }
+
+    private synchronized Set<String> applyDeltas(List<Long> removedIds,
+                                                 List<MediaMetadataCompat> upserts) {
+        TrackStore store = mTracks;
+        int indexCount = mIndexes.size();
+        Set<Integer> touchedRows = new HashSet<>();
+        List<Set<String>> touchedKeys = new ArrayList<>(indexCount);
+        for (int i = 0; i < indexCount; i++) {
+            touchedKeys.add(new HashSet<String>());
+        }
+        List<Map<String, IntList>> additions = TrackIndex.newCollectors(mIndexes);
+
+        for (long trackId : removedIds) {
+            int row = store.getRow(trackId);
+            if (row != TrackStore.NO_ROW) {
+                addKeys(store, row, touchedKeys);
+                touchedRows.add(row);
+                store.remove(trackId);
+            }
+        }
+        for (MediaMetadataCompat item : upserts) {
+            // The keys a track was listed under must be read before it is overwritten.
+            int row = store.getRow(parseTrackId(
+                    item.getString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID)));
+            if (row != TrackStore.NO_ROW) {
+                addKeys(store, row, touchedKeys);
+            }
+            row = store.put(item);
+            touchedRows.add(row);
+            addKeys(store, row, touchedKeys);
+            collectRow(store, row, additions);
+        }
+
+        Set<String> changedParents = new HashSet<>();
+        for (int i = 0; i < indexCount; i++) {
+            changedParents.addAll(mIndexes.get(i).update(store, touchedKeys.get(i), touchedRows,
+                    additions.get(i)));
+        }
+        if (!touchedRows.isEmpty()) {
+            // Postings are packed per token, so a rebuild is simpler and cheap enough for
+            // the occasional sync.
+            buildSearchIndex();
+            mBrowseCache.invalidatePrefix(MEDIA_ID_MUSICS_BY_SEARCH);
+        }
+        mBrowseCache.invalidate(changedParents);
+        return changedParents;
+    }
+
+    private void addKeys(TrackStore tracks, int row, List<Set<String>> keysByIndex) {
+        for (int i = 0; i < mIndexes.size(); i++) {
+            String key = mIndexes.get(i).keyOf(tracks, row);
+            if (key != null) {
+                keysByIndex.get(i).add(key);
+            }
+        }
+    }
+
+    /**
+     * Start listening for changes in the underlying MediaStore, applying them incrementally to
+     * the catalog once it has been initialized.
+     */
+    public void startWatchingSource() {
+        if (mContentResolver == null || mSourceObserver != null) {
+            return;
+        }
+        mSourceObserver = new ContentObserver(mHandler) {
+            @Override
+            public void onChange(boolean selfChange) {
+                // MediaStore tends to fire a burst of notifications while scanning, so wait
+                // for it to settle before syncing.
+                mHandler.removeCallbacks(mSyncRunnable);
+                mHandler.postDelayed(mSyncRunnable, SOURCE_SYNC_DELAY_MS);
+            }
+        };
+        mContentResolver.registerContentObserver(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
+                true, mSourceObserver);
+        // Genre edits leave the tracks untouched, and are only notified on the genre tables.
+        mContentResolver.registerContentObserver(MediaStore.Audio.Genres.EXTERNAL_CONTENT_URI,
+                true, mSourceObserver);
+    }
+
+    public void stopWatchingSource() {
+        mHandler.removeCallbacks(mSyncRunnable);
+        if (mSourceObserver != null) {
+            mContentResolver.unregisterContentObserver(mSourceObserver);
+            mSourceObserver = null;
+        }
+    }
+
+    public void setCatalogChangeListener(CatalogChangeListener listener) {
+        mCatalogChangeListener = listener;
+    }
+
+    private final Runnable mSyncRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mCurrentState != State.INITIALIZED) {
+                // Sync once the load completes, rather than racing its scan.
+                mSyncDeferred.set(true);
+                if (mCurrentState == State.INITIALIZED && mSyncDeferred.getAndSet(false)) {
+                    // The load completed in the meantime, and did not see the flag.
+                    submitToLoader(mSyncTask);
+                }
+                return;
+            }
+            submitToLoader(mSyncTask);
+        }
+    };
+
+    // Runs on the loader thread, which also serializes it with the initial load.
+    private final Runnable mSyncTask = new Runnable() {
+        @Override
+        public void run() {
+            final Set<String> changedParents = syncWithSource();
+            if (changedParents.isEmpty()) {
+                return;
+            }
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    notifyCatalogChanged(changedParents);
+                }
+            });
+        }
+    };
+
+    private void notifyCatalogChanged(Set<String> changedParents) {
+        if (mCatalogChangeListener != null) {
+            mCatalogChangeListener.onCatalogChanged(changedParents);
+        }
+    }
+
+    private static void closeQuietly(Iterator<MediaMetadataCompat> tracks) {
+        if (tracks instanceof Closeable) {
+            try {
+                ((Closeable) tracks).close();
+            } catch (IOException e) {
+                LogHelper.w(TAG, e, "Error closing track source");
+            }
+        }
+    }
 
     public List<MediaBrowserCompat.MediaItem> getChildren(String mediaId, Resources resources) {
-        List<MediaBrowserCompat.MediaItem> mediaItems = new ArrayList<>();
+        return getChildren(mediaId, resources, 0, Integer.MAX_VALUE);
+    }
 
-        if (!MediaIDHelper.isBrowseable(mediaId)) {
-            return mediaItems;
+    /**
+     * Build a page of the children of a browse node on a background thread. Requests made
+     * before the catalog is loaded are queued with the load, and built as soon as it
+     * completes, rather than answered with an empty list.
+     *
+     * @param callback invoked on the main thread with the children
+     */
+    public void getChildrenAsync(final String mediaId, final Resources resources,
+                                 final int page, final int pageSize,
+                                 final ChildrenCallback callback) {
+        final Runnable build = new Runnable() {
+            @Override
+            public void run() {
+                List<MediaBrowserCompat.MediaItem> items;
+                try {
+                    items = getChildren(mediaId, resources, page, pageSize);
+                } catch (RuntimeException e) {
+                    // The browser is waiting on a detached result, so it must get one.
+                    LogHelper.e(TAG, e, "Error building children of ", mediaId);
+                    items = Collections.emptyList();
+                }
+                final List<MediaBrowserCompat.MediaItem> children = items;
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onChildrenLoaded(children);
+                    }
+                });
+            }
+        };
+        if (MEDIA_ID_ROOT.equals(mediaId)) {
+            // The root only lists the browse categories, which do not depend on the catalog.
+            mBrowseExecutor.execute(build);
+            return;
+        }
+        retrieveMediaAsync(new Callback() {
+            @Override
+            public void onMusicCatalogReady(boolean success) {
+                if (!success) {
+                    LogHelper.w(TAG, "Catalog not available, no children for ", mediaId);
+                    callback.onChildrenLoaded(
+                            Collections.<MediaBrowserCompat.MediaItem>emptyList());
+                    return;
+                }
+                mBrowseExecutor.execute(build);
+            }
+        });
+    }
+
+    /**
+     * Build one page of the children of a browse node. Only the items of the requested page
+     * are built, so huge nodes can be browsed without copying every track.
+     *
+     * @param page zero-based page number
+     * @param pageSize number of items per page
+     */
+    public List<MediaBrowserCompat.MediaItem> getChildren(String mediaId, Resources resources,
+                                                          int page, int pageSize) {
+        if (!MediaIDHelper.isBrowseable(mediaId) || page < 0 || pageSize <= 0) {
+            return new ArrayList<>();
+        }
+        List<MediaBrowserCompat.MediaItem> cached = mBrowseCache.get(mediaId, page, pageSize);
+        if (cached != null) {
+            return cached;
+        }
+        int generation = mBrowseCache.getGeneration();
+        List<MediaBrowserCompat.MediaItem> mediaItems = Collections.unmodifiableList(
+                buildChildren(mediaId, resources, page, pageSize));
+        // Lists built before the catalog is ready would be empty, so they are not kept.
+        if (mCurrentState == State.INITIALIZED) {
+            mBrowseCache.put(mediaId, page, pageSize, generation, mediaItems);
         }
+        return mediaItems;
+    }
+
+    private List<MediaBrowserCompat.MediaItem> buildChildren(String mediaId, Resources resources,
+                                                             int page, int pageSize) {
+        List<MediaBrowserCompat.MediaItem> mediaItems = new ArrayList<>();
+        long from = (long) page * pageSize;
 
+        MediaId parent = MediaId.parse(mediaId);
+        String category = parent.getCategory(0);
+        TrackIndex index = mIndexesByCategory.get(category);
         if (MEDIA_ID_ROOT.equals(mediaId)) {
-            mediaItems.add(createBrowsableMediaItemForRoot(resources));
+            for (TrackIndex rootCategory : pageOf(mIndexes, from, pageSize)) {
+                mediaItems.add(createBrowsableMediaItemForRoot(rootCategory, resources));
+            }
 
-        } else if (MEDIA_ID_MUSICS_BY_GENRE.equals(mediaId)) {
-            for (String genre : getGenres()) {
-                mediaItems.add(createBrowsableMediaItemForGenre(genre, resources));
+        } else if (index != null && parent.getHierarchyLength() == 1) {
+            List<String> keys = mCurrentState == State.INITIALIZED ?
+                    index.getKeys() : Collections.<String>emptyList();
+            for (String key : pageOf(keys, from, pageSize)) {
+                mediaItems.add(createBrowsableMediaItemForCategory(index, key, resources));
             }
 
-        } else if (mediaId.startsWith(MEDIA_ID_MUSICS_BY_GENRE)) {
-            String genre = MediaIDHelper.getHierarchy(mediaId)[1];
-            for (MediaMetadataCompat metadata : getMusicsByAlbum(genre)) {
-                mediaItems.add(createMediaItem(metadata));
+        } else if ((index != null || MEDIA_ID_MUSICS_BY_SEARCH.equals(category)) &&
+                parent.getHierarchyLength() == 2) {
+            TrackStore tracks = mTracks;
+            int[] rows = getRowsByCategory(category, parent.getCategory(1));
+            int end = (int) Math.min(rows.length, from + pageSize);
+            for (int i = (int) Math.min(from, end); i < end; i++) {
+                mediaItems.add(createMediaItem(tracks, rows[i], parent));
             }
 
         } else {
@@ -217,49 +1093,48 @@ public class MusicProvider {
         return mediaItems;
     }
 
+    private static <T> List<T> pageOf(List<T> items, long from, int pageSize) {
+        int end = (int) Math.min(items.size(), from + pageSize);
+        return items.subList((int) Math.min(from, end), end);
+    }
 
-
-    private MediaBrowserCompat.MediaItem createBrowsableMediaItemForRoot(Resources resources) {
+    private MediaBrowserCompat.MediaItem createBrowsableMediaItemForRoot(TrackIndex index,
+                                                                         Resources resources) {
         MediaDescriptionCompat description = new MediaDescriptionCompat.Builder()
-                .setMediaId(MEDIA_ID_MUSICS_BY_GENRE)
-                .setTitle(resources.getString(R.string.browse_genres))
-                .setSubtitle(resources.getString(R.string.browse_genre_subtitle))
-                .setIconUri(Uri.parse("android.resource://" +
-                        "com.example.android.uamp/drawable/ic_by_genre"))
+                .setMediaId(index.getCategory())
+                .setTitle(resources.getString(index.getTitleResId()))
+                .setSubtitle(resources.getString(index.getSubtitleResId()))
+                .setIconUri(Uri.parse(index.getIconUri()))
                 .build();
         return new MediaBrowserCompat.MediaItem(description,
                 MediaBrowserCompat.MediaItem.FLAG_BROWSABLE);
     }
 
-    private MediaBrowserCompat.MediaItem createBrowsableMediaItemForGenre(String genre,
-                                                                          Resources resources) {
+    private MediaBrowserCompat.MediaItem createBrowsableMediaItemForCategory(TrackIndex index,
+                                                                             String key,
+                                                                             Resources resources) {
+        String title = index.getTitle(key);
         MediaDescriptionCompat description = new MediaDescriptionCompat.Builder()
-                .setMediaId(createMediaID(null, MEDIA_ID_MUSICS_BY_GENRE, genre))
-                .setTitle(genre)
+                .setMediaId(createMediaID(null, index.getCategory(), key))
+                .setTitle(title)
                 .setSubtitle(resources.getString(
-                        R.string.browse_musics_by_genre_subtitle, genre))
+                        R.string.browse_musics_by_genre_subtitle, title))
                 .build();
         return new MediaBrowserCompat.MediaItem(description,
                 MediaBrowserCompat.MediaItem.FLAG_BROWSABLE);
     }
 
-
-
-
-    private MediaBrowserCompat.MediaItem createMediaItem(MediaMetadataCompat metadata) {
-        // Since mediaMetadata fields are immutable, we need to create a copy, so we
-        // can set a hierarchy-aware mediaID. We will need to know the media hierarchy
-        // when we get a onPlayFromMusicID call, so we can create the proper queue based
-        // on where the music was selected from (by artist, by genre, random, etc)
-        String album = metadata.getString(MediaMetadataCompat.METADATA_KEY_ALBUM);
-        String hierarchyAwareMediaID = MediaIDHelper.createMediaID(
-                metadata.getDescription().getMediaId(), MEDIA_ID_MUSICS_BY_GENRE, album);
-        MediaMetadataCompat copy = new MediaMetadataCompat.Builder(metadata)
-                .putString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID, hierarchyAwareMediaID)
-                .build();
-        return new MediaBrowserCompat.MediaItem(copy.getDescription(),
+    private MediaBrowserCompat.MediaItem createMediaItem(TrackStore tracks, int row,
+                                                         MediaId parent) {
+        // The description carries a hierarchy-aware mediaID. We will need to know the media
+        // hierarchy when we get a onPlayFromMusicID call, so we can create the proper queue
+        // based on where the music was selected from (by artist, by genre, random, etc).
+        // It is built from the store's columns directly, without going through a metadata
+        // copy.
+        String hierarchyAwareMediaID = parent.childId(String.valueOf(tracks.getId(row)));
+        return new MediaBrowserCompat.MediaItem(
+                tracks.getDescription(row, hierarchyAwareMediaID),
                 MediaBrowserCompat.MediaItem.FLAG_PLAYABLE);
-
     }
 
 }
@@ -1,11 +1,67 @@
-
 package com.example.course.musicplayer.model;
 
 import android.support.v4.media.MediaMetadataCompat;
 
+import java.util.Collection;
 import java.util.Iterator;
+import java.util.Map;
 
+/**
+ * Source of the music catalog. Tracks are identified by METADATA_KEY_MEDIA_ID, which must be
+ * the decimal string of a numeric id (such as a MediaStore _ID), so that MusicProvider can
+ * key its track store by primitive longs.
+ */
 public interface MusicProviderSource {
     String CUSTOM_METADATA_TRACK_SOURCE = "__SOURCE__";
+    String CUSTOM_METADATA_DATE_MODIFIED = "__DATE_MODIFIED__";
+    // MediaStore id of the track's album, from which its album art is found.
+    String CUSTOM_METADATA_ALBUM_ID = "__ALBUM_ID__";
+    // Key the source orders tracks by, so tracks read by separate queries can be merged back
+    // into the order a single query returns them in.
+    String CUSTOM_METADATA_SORT_KEY = "__SORT_KEY__";
+
+    /**
+     * @return an iterator over all tracks, ordered by {@link #CUSTOM_METADATA_SORT_KEY}, then
+     *         by numeric id.
+     */
     Iterator<MediaMetadataCompat> iterator();
+
+    /**
+     * @return the ids of all tracks currently available, mapped to the value their
+     *         {@link #CUSTOM_METADATA_DATE_MODIFIED} would have if they were fetched now.
+     */
+    Map<String, Long> getTrackVersions();
+
+    /**
+     * @return the genre of every track that has one, by numeric track id, as of the last call
+     *         to {@link #getTrackVersions()}. Changing the genre of a track does not change
+     *         its version, so syncs compare genres separately.
+     */
+    Map<Long, String> getTrackGenres();
+
+    /**
+     * @return an iterator over the given tracks only. Ids that are no longer available are
+     *         skipped.
+     */
+    Iterator<MediaMetadataCompat> iterator(Collection<String> trackIds);
+
+    /**
+     * @return an iterator over the tracks whose numeric id is in [fromId, toId), in the same
+     *         order as {@link #iterator()}.
+     */
+    Iterator<MediaMetadataCompat> iterator(long fromId, long toId);
+
+    /**
+     * @return the smallest and the largest numeric track id and the number of tracks, as
+     *         {min, max, count}, or null if the source cannot tell.
+     */
+    long[] getTrackIdRange();
+
+    /**
+     * Optionally implemented by source iterators that know up front how many tracks they
+     * will return, so loading progress can be reported against a total.
+     */
+    interface Sized {
+        int size();
+    }
 }
@@ -0,0 +1,152 @@
+package com.example.course.musicplayer.model;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * In-memory inverted index over the title, artist and album of every track of a TrackStore.
+ *
+ * Text is split into tokens of letters and digits, lower-cased and stripped of diacritics, so
+ * "Beyoncé" is found by "beyonce". Every query term is matched as a prefix of a token, and a
+ * track matches when all the terms do, in any of its fields.
+ *
+ * The index is immutable once built; MusicProvider builds a new one whenever the catalog
+ * changes and swaps it in.
+ */
+class SearchIndex {
+
+    static final SearchIndex EMPTY = new SearchIndex(new String[0], new int[0][], 0);
+
+    // Sorted, so all the tokens sharing a prefix form a contiguous range.
+    private final String[] mTokens;
+    private final int[][] mPostings;
+    private final int mRowCount;
+
+    private SearchIndex(String[] tokens, int[][] postings, int rowCount) {
+        mTokens = tokens;
+        mPostings = postings;
+        mRowCount = rowCount;
+    }
+
+    static SearchIndex build(TrackStore tracks) {
+        Map<String, IntList> rowsByToken = new HashMap<>();
+        List<String> tokens = new ArrayList<>();
+        for (int row : tracks.liveRows()) {
+            tokens.clear();
+            tokenize(tracks.getTitle(row), tokens);
+            tokenize(tracks.getArtist(row), tokens);
+            tokenize(tracks.getAlbum(row), tokens);
+            for (String token : tokens) {
+                IntList rows = rowsByToken.get(token);
+                if (rows == null) {
+                    rows = new IntList();
+                    rowsByToken.put(token, rows);
+                }
+                // Rows are visited in ascending order, so a repeated token can only
+                // repeat the last row.
+                if (rows.size() == 0 || rows.get(rows.size() - 1) != row) {
+                    rows.add(row);
+                }
+            }
+        }
+
+        String[] sortedTokens = rowsByToken.keySet().toArray(new String[rowsByToken.size()]);
+        Arrays.sort(sortedTokens);
+        int[][] postings = new int[sortedTokens.length][];
+        for (int i = 0; i < sortedTokens.length; i++) {
+            postings[i] = rowsByToken.get(sortedTokens[i]).toArray();
+        }
+        return new SearchIndex(sortedTokens, postings, tracks.rowCount());
+    }
+
+    /**
+     * @return the rows matching every term of the query, in ascending order. An empty or
+     *         blank query matches nothing.
+     */
+    int[] search(String query) {
+        List<String> terms = new ArrayList<>();
+        tokenize(query, terms);
+        if (terms.isEmpty() || mTokens.length == 0) {
+            return new int[0];
+        }
+
+        long[] matches = null;
+        for (String term : terms) {
+            int from = Arrays.binarySearch(mTokens, term);
+            if (from < 0) {
+                from = -from - 1;
+            }
+            long[] termMatches = new long[(mRowCount + 63) >>> 6];
+            boolean any = false;
+            for (int i = from; i < mTokens.length && mTokens[i].startsWith(term); i++) {
+                for (int row : mPostings[i]) {
+                    termMatches[row >>> 6] |= 1L << row;
+                }
+                any = true;
+            }
+            if (!any) {
+                return new int[0];
+            }
+            if (matches == null) {
+                matches = termMatches;
+            } else {
+                for (int w = 0; w < matches.length; w++) {
+                    matches[w] &= termMatches[w];
+                }
+            }
+        }
+
+        IntList rows = new IntList();
+        for (int w = 0; w < matches.length; w++) {
+            long word = matches[w];
+            while (word != 0) {
+                rows.add((w << 6) + Long.numberOfTrailingZeros(word));
+                word &= word - 1;
+            }
+        }
+        return rows.toArray();
+    }
+
+    int getTokenCount() {
+        return mTokens.length;
+    }
+
+    /**
+     * Split text into folded tokens, appending them to the given list.
+     */
+    static void tokenize(String text, List<String> tokens) {
+        if (text == null || text.isEmpty()) {
+            return;
+        }
+        if (!isAscii(text)) {
+            // Decompose accented letters so their marks can be dropped below.
+            text = Normalizer.normalize(text, Normalizer.Form.NFD);
+        }
+        StringBuilder token = new StringBuilder();
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (Character.isLetterOrDigit(c)) {
+                token.append(Character.toLowerCase(c));
+            } else if (Character.getType(c) != Character.NON_SPACING_MARK && token.length() > 0) {
+                tokens.add(token.toString());
+                token.setLength(0);
+            }
+        }
+        if (token.length() > 0) {
+            tokens.add(token.toString());
+        }
+    }
+
+    private static boolean isAscii(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) >= 0x80) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
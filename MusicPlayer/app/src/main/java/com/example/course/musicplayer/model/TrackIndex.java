@@ -0,0 +1,222 @@
+package com.example.course.musicplayer.model;
+
+import com.example.course.musicplayer.utils.MediaIDHelper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static com.example.course.musicplayer.utils.MediaIDHelper.createMediaID;
+
+/**
+ * Secondary index of the catalog, grouping track rows by one attribute (album, artist, ...)
+ * and serving one browse category. Keys are stored encoded with
+ * {@link MediaIDHelper#encodeCategoryValue(String)} so they can be used in media IDs as is.
+ *
+ * The row list of a key is never modified once published; updates replace it, so readers
+ * can iterate without locking. Writers are serialized by MusicProvider.
+ */
+abstract class TrackIndex {
+
+    private final String mCategory;
+    private final int mTitleResId;
+    private final int mSubtitleResId;
+    private final String mIconUri;
+
+    private volatile ConcurrentMap<String, int[]> mRowsByKey = new ConcurrentHashMap<>();
+    // Keys in display order, so that browse lists can be paged consistently.
+    private volatile List<String> mSortedKeys = Collections.emptyList();
+
+    TrackIndex(String category, int titleResId, int subtitleResId, String iconUri) {
+        mCategory = category;
+        mTitleResId = titleResId;
+        mSubtitleResId = subtitleResId;
+        mIconUri = iconUri;
+    }
+
+    /**
+     * @return the raw value this index groups the given row by, or null to leave the row
+     *         out of the index.
+     */
+    protected abstract String valueOf(TrackStore tracks, int row);
+
+    /**
+     * @return the title shown for one of this index's keys.
+     */
+    String getTitle(String key) {
+        return MediaIDHelper.decodeCategoryValue(key);
+    }
+
+    final String keyOf(TrackStore tracks, int row) {
+        String value = valueOf(tracks, row);
+        return value == null ? null : MediaIDHelper.encodeCategoryValue(value);
+    }
+
+    String getCategory() {
+        return mCategory;
+    }
+
+    int getTitleResId() {
+        return mTitleResId;
+    }
+
+    int getSubtitleResId() {
+        return mSubtitleResId;
+    }
+
+    String getIconUri() {
+        return mIconUri;
+    }
+
+    /**
+     * @return the keys of this index, sorted, as an unmodifiable list.
+     */
+    List<String> getKeys() {
+        return mSortedKeys;
+    }
+
+    /**
+     * @return the rows for the given key, or null if the key is not indexed.
+     */
+    int[] getRows(String key) {
+        return key == null ? null : mRowsByKey.get(key);
+    }
+
+    void clear() {
+        mRowsByKey = new ConcurrentHashMap<>();
+        mSortedKeys = Collections.emptyList();
+    }
+
+    /**
+     * Add a row to a map of rows being collected for this index.
+     */
+    void collect(TrackStore tracks, int row, Map<String, IntList> rowsByKey) {
+        String key = keyOf(tracks, row);
+        if (key == null) {
+            return;
+        }
+        IntList rows = rowsByKey.get(key);
+        if (rows == null) {
+            rows = new IntList();
+            rowsByKey.put(key, rows);
+        }
+        rows.add(row);
+    }
+
+    /**
+     * Publish a fully built set of rows, replacing the current one.
+     */
+    void publish(Map<String, IntList> rowsByKey) {
+        ConcurrentMap<String, int[]> published = new ConcurrentHashMap<>();
+        for (Map.Entry<String, IntList> entry : rowsByKey.entrySet()) {
+            published.put(entry.getKey(), entry.getValue().toArray());
+        }
+        mRowsByKey = published;
+        mSortedKeys = sortKeys(published);
+    }
+
+    /**
+     * Apply an incremental update.
+     *
+     * @param tracks the store the rows belong to, whose order they are merged in
+     * @param touchedKeys keys whose row lists may have changed
+     * @param touchedRows rows that were removed or updated and must be dropped from their
+     *                    previous lists
+     * @param additions rows to add, by key
+     * @return the media IDs of the browse nodes whose children changed
+     */
+    Set<String> update(TrackStore tracks, Set<String> touchedKeys, Set<Integer> touchedRows,
+                       Map<String, IntList> additions) {
+        if (touchedKeys.isEmpty()) {
+            return Collections.emptySet();
+        }
+        Set<String> changedParents = new HashSet<>();
+        boolean keySetChanged = false;
+        for (String key : touchedKeys) {
+            int[] current = mRowsByKey.get(key);
+            IntList updated = new IntList();
+            if (current != null) {
+                for (int row : current) {
+                    if (!touchedRows.contains(row)) {
+                        updated.add(row);
+                    }
+                }
+            }
+            IntList added = additions.get(key);
+            if (added != null) {
+                // Rows are kept in the source's order, the way a full load leaves them.
+                updated = merge(tracks, updated, added);
+            }
+            if (updated.size() == 0) {
+                keySetChanged |= mRowsByKey.remove(key) != null;
+            } else {
+                keySetChanged |= mRowsByKey.put(key, updated.toArray()) == null;
+            }
+            changedParents.add(createMediaID(null, mCategory, key));
+        }
+        if (keySetChanged) {
+            mSortedKeys = sortKeys(mRowsByKey);
+            changedParents.add(mCategory);
+        }
+        return changedParents;
+    }
+
+    /**
+     * Merge rows into a list already in the order of {@link TrackStore#compareRows}.
+     */
+    private static IntList merge(TrackStore tracks, IntList sorted, IntList added) {
+        int[] rows = added.toArray();
+        sortRows(tracks, rows);
+        IntList merged = new IntList();
+        int i = 0;
+        int j = 0;
+        while (i < sorted.size() || j < rows.length) {
+            if (j == rows.length ||
+                    (i < sorted.size() && tracks.compareRows(sorted.get(i), rows[j]) <= 0)) {
+                merged.add(sorted.get(i++));
+            } else {
+                merged.add(rows[j++]);
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * Sort rows in the order of {@link TrackStore#compareRows}.
+     */
+    private static void sortRows(TrackStore tracks, int[] rows) {
+        // Insertion sort: syncs only add a handful of rows per key.
+        for (int i = 1; i < rows.length; i++) {
+            int row = rows[i];
+            int j = i - 1;
+            while (j >= 0 && tracks.compareRows(rows[j], row) > 0) {
+                rows[j + 1] = rows[j];
+                j--;
+            }
+            rows[j + 1] = row;
+        }
+    }
+
+    private static List<String> sortKeys(Map<String, int[]> rowsByKey) {
+        List<String> keys = new ArrayList<>(rowsByKey.keySet());
+        Collections.sort(keys, String.CASE_INSENSITIVE_ORDER);
+        return Collections.unmodifiableList(keys);
+    }
+
+    /**
+     * Create one empty collection map per index, for building them in a single pass.
+     */
+    static List<Map<String, IntList>> newCollectors(List<TrackIndex> indexes) {
+        List<Map<String, IntList>> collectors = new ArrayList<>(indexes.size());
+        for (int i = 0; i < indexes.size(); i++) {
+            collectors.add(new HashMap<String, IntList>());
+        }
+        return collectors;
+    }
+}
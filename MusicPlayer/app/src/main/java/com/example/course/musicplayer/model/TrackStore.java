@@ -0,0 +1,486 @@
+package com.example.course.musicplayer.model;
+
+import android.net.Uri;
+import android.support.v4.media.MediaDescriptionCompat;
+import android.support.v4.media.MediaMetadataCompat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Columnar store for the music catalog. Each track is a row spread over primitive and string
+ * arrays, keyed by its numeric MediaStore id. Artist, album, genre and folder names are
+ * dictionary-encoded, since they repeat across many tracks. A MediaMetadataCompat is only
+ * built when a track is actually asked for.
+ *
+ * Rows are never moved: removing a track only drops its id from the index, so row numbers
+ * held by the indexes in MusicProvider stay valid. The space is reclaimed the next time
+ * the catalog is loaded from scratch.
+ *
+ * All methods are synchronized; the store is written from the catalog loader thread and
+ * read from the main and binder threads.
+ */
+class TrackStore {
+
+    static final int NO_ROW = -1;
+
+    private static final int NO_STRING = -1;
+    private static final int DEFAULT_CAPACITY = 256;
+
+    // Album art of a MediaStore album, by album id.
+    private static final String ALBUM_ART_URI_PREFIX = "content://media/external/audio/albumart/";
+
+    private final LongIntMap mRowsById = new LongIntMap();
+    private final StringDictionary mArtists = new StringDictionary();
+    private final StringDictionary mAlbums = new StringDictionary();
+    private final StringDictionary mGenres = new StringDictionary();
+    private final StringDictionary mFolders = new StringDictionary();
+
+    private long[] mIds;
+    private String[] mTitles;
+    private String[] mSortKeys;
+    private String[] mSources;
+    private int[] mArtistRefs;
+    private int[] mAlbumRefs;
+    private long[] mAlbumIds;
+    private int[] mGenreRefs;
+    private int[] mFolderRefs;
+    private int[] mYears;
+    private int[] mDurations;
+    private long[] mDatesModified;
+    private int mRowCount;
+
+    TrackStore() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    TrackStore(int capacity) {
+        allocate(Math.max(capacity, 16));
+    }
+
+    /**
+     * Insert a track, or update it in place if a track with the same id is already stored.
+     *
+     * @return the row of the track
+     */
+    synchronized int put(MediaMetadataCompat track) {
+        return put(Long.parseLong(track.getString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID)),
+                track.getString(MusicProviderSource.CUSTOM_METADATA_TRACK_SOURCE),
+                track.getString(MediaMetadataCompat.METADATA_KEY_TITLE),
+                track.getString(MusicProviderSource.CUSTOM_METADATA_SORT_KEY),
+                track.getString(MediaMetadataCompat.METADATA_KEY_ARTIST),
+                track.getString(MediaMetadataCompat.METADATA_KEY_ALBUM),
+                track.getLong(MusicProviderSource.CUSTOM_METADATA_ALBUM_ID),
+                track.getString(MediaMetadataCompat.METADATA_KEY_GENRE),
+                (int) track.getLong(MediaMetadataCompat.METADATA_KEY_YEAR),
+                track.getLong(MediaMetadataCompat.METADATA_KEY_DURATION),
+                track.getLong(MusicProviderSource.CUSTOM_METADATA_DATE_MODIFIED));
+    }
+
+    /**
+     * @param sortKey the key the source orders tracks by, as compared by
+     *                {@link #compareSortKeys(String, String)}
+     */
+    synchronized int put(long id, String source, String title, String sortKey, String artist,
+                         String album, long albumId, String genre, int year, long duration,
+                         long dateModified) {
+        int row = mRowsById.get(id);
+        if (row == NO_ROW) {
+            if (mRowCount == mIds.length) {
+                grow(mRowCount + (mRowCount >> 1));
+            }
+            row = mRowCount++;
+            mRowsById.put(id, row);
+        }
+        mIds[row] = id;
+        mSources[row] = source;
+        mTitles[row] = title;
+        mSortKeys[row] = sortKey;
+        mArtistRefs[row] = mArtists.encode(artist);
+        mAlbumRefs[row] = mAlbums.encode(album);
+        mAlbumIds[row] = albumId;
+        mGenreRefs[row] = mGenres.encode(genre);
+        mFolderRefs[row] = mFolders.encode(folderOf(source));
+        mYears[row] = year;
+        mDurations[row] = (int) duration;
+        mDatesModified[row] = dateModified;
+        return row;
+    }
+
+    /**
+     * Copy a row of another store into this one, for merging partitions built in parallel.
+     *
+     * @return the row of the copy in this store
+     */
+    synchronized int append(TrackStore other, int row) {
+        synchronized (other) {
+            return put(other.mIds[row], other.mSources[row], other.mTitles[row],
+                    other.mSortKeys[row], other.mArtists.decode(other.mArtistRefs[row]),
+                    other.mAlbums.decode(other.mAlbumRefs[row]),
+                    other.mAlbumIds[row],
+                    other.mGenres.decode(other.mGenreRefs[row]), other.mYears[row],
+                    other.mDurations[row], other.mDatesModified[row]);
+        }
+    }
+
+    /**
+     * @return the row of the removed track, or {@link #NO_ROW} if it was not stored
+     */
+    synchronized int remove(long id) {
+        return mRowsById.remove(id);
+    }
+
+    synchronized void clear() {
+        mRowsById.clear();
+        mArtists.clear();
+        mAlbums.clear();
+        mGenres.clear();
+        mFolders.clear();
+        allocate(DEFAULT_CAPACITY);
+    }
+
+    synchronized int getRow(long id) {
+        return mRowsById.get(id);
+    }
+
+    synchronized boolean contains(long id) {
+        return mRowsById.get(id) != NO_ROW;
+    }
+
+    /**
+     * @return number of live tracks
+     */
+    synchronized int size() {
+        return mRowsById.size();
+    }
+
+    /**
+     * @return number of rows ever allocated, including removed ones
+     */
+    synchronized int rowCount() {
+        return mRowCount;
+    }
+
+    synchronized boolean isLive(int row) {
+        return isLiveLocked(row);
+    }
+
+    private boolean isLiveLocked(int row) {
+        return row >= 0 && row < mRowCount && mRowsById.get(mIds[row]) == row;
+    }
+
+    synchronized long getId(int row) {
+        return mIds[row];
+    }
+
+    synchronized String getSource(int row) {
+        return mSources[row];
+    }
+
+    synchronized String getTitle(int row) {
+        return mTitles[row];
+    }
+
+    synchronized String getSortKey(int row) {
+        return mSortKeys[row];
+    }
+
+    /**
+     * Compare two rows the way the source orders tracks: by sort key, then by id.
+     */
+    synchronized int compareRows(int a, int b) {
+        int result = compareSortKeys(mSortKeys[a], mSortKeys[b]);
+        if (result != 0) {
+            return result;
+        }
+        return mIds[a] < mIds[b] ? -1 : (mIds[a] == mIds[b] ? 0 : 1);
+    }
+
+    /**
+     * Compare sort keys the way SQLite orders text by default: nulls first, then by code
+     * point, which is the order of their UTF-8 bytes.
+     */
+    static int compareSortKeys(String a, String b) {
+        if (a == null || b == null) {
+            return a == null ? (b == null ? 0 : -1) : 1;
+        }
+        int i = 0;
+        int j = 0;
+        while (i < a.length() && j < b.length()) {
+            int codePointA = a.codePointAt(i);
+            int codePointB = b.codePointAt(j);
+            if (codePointA != codePointB) {
+                return codePointA < codePointB ? -1 : 1;
+            }
+            i += Character.charCount(codePointA);
+            j += Character.charCount(codePointB);
+        }
+        return (a.length() - i) - (b.length() - j);
+    }
+
+    synchronized String getArtist(int row) {
+        return mArtists.decode(mArtistRefs[row]);
+    }
+
+    synchronized String getAlbum(int row) {
+        return mAlbums.decode(mAlbumRefs[row]);
+    }
+
+    synchronized String getGenre(int row) {
+        return mGenres.decode(mGenreRefs[row]);
+    }
+
+    /**
+     * @return the directory holding the track's file
+     */
+    synchronized String getFolder(int row) {
+        return mFolders.decode(mFolderRefs[row]);
+    }
+
+    /**
+     * @return the MediaStore id of the track's album, which keys its album art
+     */
+    synchronized long getAlbumId(int row) {
+        return mAlbumIds[row];
+    }
+
+    /**
+     * @return the release year, or 0 if unknown
+     */
+    synchronized int getYear(int row) {
+        return mYears[row];
+    }
+
+    synchronized long getDuration(int row) {
+        return mDurations[row];
+    }
+
+    synchronized long getDateModified(int row) {
+        return mDatesModified[row];
+    }
+
+    /**
+     * Build the metadata of a row. The row does not need to be live, which lets readers
+     * holding an older index list still resolve tracks removed since.
+     */
+    synchronized MediaMetadataCompat getMetadata(int row) {
+        //noinspection ResourceType
+        MediaMetadataCompat.Builder builder = new MediaMetadataCompat.Builder()
+                .putString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID, String.valueOf(mIds[row]))
+                .putString(MusicProviderSource.CUSTOM_METADATA_TRACK_SOURCE, mSources[row])
+                .putLong(MusicProviderSource.CUSTOM_METADATA_DATE_MODIFIED, mDatesModified[row])
+                .putString(MediaMetadataCompat.METADATA_KEY_ALBUM, mAlbums.decode(mAlbumRefs[row]))
+                .putString(MediaMetadataCompat.METADATA_KEY_ARTIST,
+                        mArtists.decode(mArtistRefs[row]))
+                .putString(MediaMetadataCompat.METADATA_KEY_GENRE, mGenres.decode(mGenreRefs[row]))
+                .putLong(MediaMetadataCompat.METADATA_KEY_YEAR, mYears[row])
+                .putLong(MediaMetadataCompat.METADATA_KEY_DURATION, mDurations[row])
+                .putString(MediaMetadataCompat.METADATA_KEY_TITLE, mTitles[row])
+                .putLong(MusicProviderSource.CUSTOM_METADATA_ALBUM_ID, mAlbumIds[row]);
+        if (mAlbumIds[row] > 0) {
+            // Only the URI: the art itself is loaded and cached by AlbumArtCache.
+            builder.putString(MediaMetadataCompat.METADATA_KEY_ALBUM_ART_URI,
+                    ALBUM_ART_URI_PREFIX + mAlbumIds[row]);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Build the description of a row straight from its columns, with the same fields as the
+     * description of {@link #getMetadata(int)}, without building the metadata first.
+     *
+     * @param mediaId media ID to describe the track with, typically a hierarchy-aware one
+     */
+    synchronized MediaDescriptionCompat getDescription(int row, String mediaId) {
+        MediaDescriptionCompat.Builder builder = new MediaDescriptionCompat.Builder()
+                .setMediaId(mediaId)
+                .setTitle(mTitles[row])
+                .setSubtitle(mArtists.decode(mArtistRefs[row]))
+                .setDescription(mAlbums.decode(mAlbumRefs[row]));
+        if (mAlbumIds[row] > 0) {
+            builder.setIconUri(Uri.parse(ALBUM_ART_URI_PREFIX + mAlbumIds[row]));
+        }
+        return builder.build();
+    }
+
+    /**
+     * @return the rows of all live tracks, in row order. Rows are in the source's order
+     *         after a full load, but incremental syncs append new and updated tracks.
+     */
+    synchronized int[] liveRows() {
+        int[] rows = new int[mRowsById.size()];
+        int n = 0;
+        for (int row = 0; row < mRowCount; row++) {
+            if (isLiveLocked(row)) {
+                rows[n++] = row;
+            }
+        }
+        return n == rows.length ? rows : Arrays.copyOf(rows, n);
+    }
+
+    private void allocate(int capacity) {
+        mIds = new long[capacity];
+        mTitles = new String[capacity];
+        mSortKeys = new String[capacity];
+        mSources = new String[capacity];
+        mArtistRefs = new int[capacity];
+        mAlbumRefs = new int[capacity];
+        mAlbumIds = new long[capacity];
+        mGenreRefs = new int[capacity];
+        mFolderRefs = new int[capacity];
+        mYears = new int[capacity];
+        mDurations = new int[capacity];
+        mDatesModified = new long[capacity];
+        mRowCount = 0;
+    }
+
+    private void grow(int capacity) {
+        mIds = Arrays.copyOf(mIds, capacity);
+        mTitles = Arrays.copyOf(mTitles, capacity);
+        mSortKeys = Arrays.copyOf(mSortKeys, capacity);
+        mSources = Arrays.copyOf(mSources, capacity);
+        mArtistRefs = Arrays.copyOf(mArtistRefs, capacity);
+        mAlbumRefs = Arrays.copyOf(mAlbumRefs, capacity);
+        mAlbumIds = Arrays.copyOf(mAlbumIds, capacity);
+        mGenreRefs = Arrays.copyOf(mGenreRefs, capacity);
+        mFolderRefs = Arrays.copyOf(mFolderRefs, capacity);
+        mYears = Arrays.copyOf(mYears, capacity);
+        mDurations = Arrays.copyOf(mDurations, capacity);
+        mDatesModified = Arrays.copyOf(mDatesModified, capacity);
+    }
+
+    private static String folderOf(String source) {
+        if (source == null) {
+            return null;
+        }
+        int slash = source.lastIndexOf('/');
+        return slash > 0 ? source.substring(0, slash) : null;
+    }
+
+    /**
+     * Maps each distinct string to a small int, so repeated values are stored once.
+     */
+    private static class StringDictionary {
+        private final List<String> mValues = new ArrayList<>();
+        private final Map<String, Integer> mRefs = new HashMap<>();
+
+        int encode(String value) {
+            if (value == null) {
+                return NO_STRING;
+            }
+            Integer ref = mRefs.get(value);
+            if (ref == null) {
+                ref = mValues.size();
+                mValues.add(value);
+                mRefs.put(value, ref);
+            }
+            return ref;
+        }
+
+        String decode(int ref) {
+            return ref == NO_STRING ? null : mValues.get(ref);
+        }
+
+        void clear() {
+            mValues.clear();
+            mRefs.clear();
+        }
+    }
+
+    /**
+     * Open-addressing hash map from long keys to int values, avoiding a boxed Long key and an
+     * entry object per track. Uses linear probing with backward-shift deletion.
+     */
+    private static class LongIntMap {
+        private long[] mKeys = new long[16];
+        private int[] mValues = new int[16];
+        private boolean[] mUsed = new boolean[16];
+        private int mSize;
+
+        int get(long key) {
+            int mask = mKeys.length - 1;
+            for (int i = hash(key) & mask; mUsed[i]; i = (i + 1) & mask) {
+                if (mKeys[i] == key) {
+                    return mValues[i];
+                }
+            }
+            return NO_ROW;
+        }
+
+        void put(long key, int value) {
+            if ((mSize + 1) * 4 > mKeys.length * 3) {
+                rehash(mKeys.length * 2);
+            }
+            int mask = mKeys.length - 1;
+            int i = hash(key) & mask;
+            while (mUsed[i]) {
+                if (mKeys[i] == key) {
+                    mValues[i] = value;
+                    return;
+                }
+                i = (i + 1) & mask;
+            }
+            mUsed[i] = true;
+            mKeys[i] = key;
+            mValues[i] = value;
+            mSize++;
+        }
+
+        int remove(long key) {
+            int mask = mKeys.length - 1;
+            int i = hash(key) & mask;
+            while (mUsed[i] && mKeys[i] != key) {
+                i = (i + 1) & mask;
+            }
+            if (!mUsed[i]) {
+                return NO_ROW;
+            }
+            int value = mValues[i];
+            mSize--;
+            // Shift back following entries of the same probe run into the freed slot.
+            int hole = i;
+            for (int j = (hole + 1) & mask; mUsed[j]; j = (j + 1) & mask) {
+                int home = hash(mKeys[j]) & mask;
+                if (((j - home) & mask) >= ((j - hole) & mask)) {
+                    mKeys[hole] = mKeys[j];
+                    mValues[hole] = mValues[j];
+                    hole = j;
+                }
+            }
+            mUsed[hole] = false;
+            return value;
+        }
+
+        int size() {
+            return mSize;
+        }
+
+        void clear() {
+            Arrays.fill(mUsed, false);
+            mSize = 0;
+        }
+
+        private void rehash(int capacity) {
+            long[] keys = mKeys;
+            int[] values = mValues;
+            boolean[] used = mUsed;
+            mKeys = new long[capacity];
+            mValues = new int[capacity];
+            mUsed = new boolean[capacity];
+            mSize = 0;
+            for (int i = 0; i < keys.length; i++) {
+                if (used[i]) {
+                    put(keys[i], values[i]);
+                }
+            }
+        }
+
+        private static int hash(long key) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32));
+        }
+    }
+}
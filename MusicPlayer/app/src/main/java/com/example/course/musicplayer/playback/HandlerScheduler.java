@@ -0,0 +1,30 @@
+package com.example.course.musicplayer.playback;
+
+import android.os.Handler;
+
+/**
+ * Scheduler running tasks on the thread of a Handler.
+ */
+public class HandlerScheduler implements Scheduler {
+
+    private final Handler mHandler;
+
+    public HandlerScheduler(Handler handler) {
+        mHandler = handler;
+    }
+
+    @Override
+    public void post(Runnable task) {
+        mHandler.post(task);
+    }
+
+    @Override
+    public void postDelayed(Runnable task, long delayMs) {
+        mHandler.postDelayed(task, delayMs);
+    }
+
+    @Override
+    public void cancel(Runnable task) {
+        mHandler.removeCallbacks(task);
+    }
+}
@@ -3,7 +3,9 @@ package com.example.course.musicplayer.playback;
 import android.content.Context;
 import android.media.AudioManager;
 import android.media.MediaPlayer;
+import android.os.Handler;
 import android.os.PowerManager;
+import android.os.SystemClock;
 import android.support.v4.media.MediaMetadataCompat;
 import android.support.v4.media.session.MediaSessionCompat;
 import android.support.v4.media.session.PlaybackStateCompat;
@@ -16,7 +18,16 @@ import com.example.course.musicplayer.utils.LogHelper;
 import com.example.course.musicplayer.utils.MediaIDHelper;
 
 import java.io.IOException;
-
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Playback on a local MediaPlayer.
+ *
+ * Apart from the state and position getters, every method must be called on the thread of the
+ * Handler given to the constructor, and the MediaPlayers are created there so their callbacks
+ * arrive on it too. Audio focus changes are posted to it.
+ */
 public class LocalPlayback implements Playback, AudioManager.OnAudioFocusChangeListener,
         MediaPlayer.OnCompletionListener, MediaPlayer.OnErrorListener, MediaPlayer.OnPreparedListener, MediaPlayer.OnSeekCompleteListener{
 
@@ -36,23 +47,59 @@ public class LocalPlayback implements Playback, AudioManager.OnAudioFocusChangeL
     private static final int AUDIO_FOCUSED  = 2;
 
     private final Context mContext;
-    private int mState;
+    private final Handler mHandler;
+    // Written on the playback thread, but read from any thread.
+    private volatile int mState;
     private final MusicProvider mMusicProvider;
     private Playback.Callback mCallback;
 
     private MediaPlayer mMediaPlayer;
     private final AudioManager mAudioManager;
     private volatile String mCurrentMediaId;
+    // Position to start or resume the current item from.
     private volatile int mCurrentPosition;
+    // MediaPlayer does not report its speed before API 23, and is never asked to change it.
+    private static final float PLAYBACK_SPEED = 1.0f;
+    private final PositionClock mPositionClock = new PositionClock(PLAYBACK_SPEED);
     private boolean mPlayOnFocusGain;
+    // The current player is preparing its item, and cannot be started before onPrepared.
+    private boolean mPreparing;
     private int mAudioFocus = AUDIO_NO_FOCUS_NO_DUCK;
 
-    public LocalPlayback(Context context, MusicProvider musicProvider) {
+    // Idle players kept between tracks: one for the current item and one for the next.
+    private static final int MAX_IDLE_PLAYERS = 2;
+    private final MediaPlayerPool mPlayerPool;
+
+    // Read-ahead of the upcoming items: the first seconds of each, within a byte budget.
+    private static final long READ_AHEAD_BUDGET_BYTES = 8 * 1024 * 1024;
+    private static final int READ_AHEAD_SECONDS = 10;
+    private final ReadAheadPrefetcher mPrefetcher;
+    private long mPlayRequestedAt;
+    private boolean mPlayWasReadAhead;
+
+    // Gapless playback: the item after the current one is prepared on a second player, which
+    // is chained to the current one with setNextMediaPlayer and takes over when it completes.
+    private boolean mGaplessEnabled = true;
+    private MediaSessionCompat.QueueItem mNextItem;
+    private MediaPlayer mNextMediaPlayer;
+    private boolean mNextPrepared;
+    private long mNextPreparedAt;
+
+    public LocalPlayback(Context context, MusicProvider musicProvider, Handler playbackHandler) {
         this.mContext = context;
+        this.mHandler = playbackHandler;
         this.mMusicProvider = musicProvider;
 
         this.mAudioManager = (AudioManager) context.getSystemService(Context.AUDIO_SERVICE);
         this.mState = PlaybackStateCompat.STATE_NONE;
+        this.mPlayerPool = new MediaPlayerPool(MAX_IDLE_PLAYERS) {
+            @Override
+            protected MediaPlayer create() {
+                return newMediaPlayer();
+            }
+        };
+        this.mPrefetcher = new ReadAheadPrefetcher(musicProvider, READ_AHEAD_BUDGET_BYTES,
+                READ_AHEAD_SECONDS);
     }
 
     @Override
@@ -66,6 +113,7 @@ public class LocalPlayback implements Playback, AudioManager.OnAudioFocusChangeL
         if (notifyListeners && mCallback != null) {
             mCallback.onPlaybackStatusChanged(mState);
         }
+        mPositionClock.freeze();
         mCurrentPosition = getCurrentStreamPosition();
         // Give up Audio focus
         giveUpAudioFocus();
@@ -95,36 +143,63 @@ public class LocalPlayback implements Playback, AudioManager.OnAudioFocusChangeL
 
     @Override
     public int getCurrentStreamPosition() {
-        return mMediaPlayer != null ?
-                mMediaPlayer.getCurrentPosition() : mCurrentPosition;
+        // Extrapolated from the last position read from the player, see PositionClock.
+        return (int) mPositionClock.getPosition();
     }
 
     @Override
     public void setCurrentStreamPosition(int pos) {
         this.mCurrentPosition = pos;
+        if (mMediaPlayer == null) {
+            mPositionClock.set(pos, false);
+        }
     }
 
     @Override
     public void updateLastKnownStreamPosition() {
         if (mMediaPlayer != null) {
             mCurrentPosition = mMediaPlayer.getCurrentPosition();
+            mPositionClock.resync(mCurrentPosition, mState == PlaybackStateCompat.STATE_PLAYING);
         }
     }
 
     @Override
     public void play(MediaSessionCompat.QueueItem item) {
-        mPlayOnFocusGain = true;
-        tryToGetAudioFocus();
-
         String mediaId = item.getDescription().getMediaId();
         boolean mediaHasChanged = !TextUtils.equals(mediaId, mCurrentMediaId);
+        if (!mediaHasChanged && mState == PlaybackStateCompat.STATE_PLAYING &&
+                mMediaPlayer != null) {
+            // Already playing it, typically because the next player took over gaplessly.
+            // Nothing changed for the player, but the queue moved on to this item, so the
+            // state must still be published for it.
+            if (mCallback != null) {
+                mCallback.onPlaybackStatusChanged(mState);
+            }
+            return;
+        }
+
+        mPlayOnFocusGain = true;
+        tryToGetAudioFocus();
 
         if (mediaHasChanged) {
             mCurrentPosition = 0;
             mCurrentMediaId = mediaId;
+            mPositionClock.set(0, false);
         }
-        
-        if (mState == PlaybackStateCompat.STATE_PAUSED && !mediaHasChanged) {
+
+        if (mediaHasChanged && isNextPreparedFor(mediaId)) {
+            // Skipping to the item that was prepared ahead: start it right away.
+            LogHelper.d(TAG, "play: using the prepared next player for ", mediaId);
+            promoteNextMediaPlayer();
+            mState = PlaybackStateCompat.STATE_BUFFERING;
+            configMediaPlayerState();
+        } else if (mPreparing && !mediaHasChanged) {
+            // Paused while preparing: onPrepared starts it, now that it is wanted again.
+            mState = PlaybackStateCompat.STATE_BUFFERING;
+            if (mCallback != null) {
+                mCallback.onPlaybackStatusChanged(mState);
+            }
+        } else if (mState == PlaybackStateCompat.STATE_PAUSED && !mediaHasChanged) {
             configMediaPlayerState();
         } else {
             mState = PlaybackStateCompat.STATE_STOPPED;
@@ -132,6 +207,8 @@ public class LocalPlayback implements Playback, AudioManager.OnAudioFocusChangeL
                     MediaIDHelper.extractMusicIDFromMediaID(item.getDescription().getMediaId()));
 
             String source = track.getString(MusicProviderSource.CUSTOM_METADATA_TRACK_SOURCE);
+            mPlayRequestedAt = SystemClock.elapsedRealtime();
+            mPlayWasReadAhead = mPrefetcher.onTrackStarting(mediaId);
             try {
                 createMediaPlayerIfNeeded();
 
@@ -146,6 +223,7 @@ public class LocalPlayback implements Playback, AudioManager.OnAudioFocusChangeL
                 // listener to 'this'). Until the media player is prepared,
                 // we *cannot* call start() on it!
                 mMediaPlayer.prepareAsync();
+                mPreparing = true;
 
                 if (mCallback != null) {
                     mCallback.onPlaybackStatusChanged(mState);
@@ -157,16 +235,79 @@ public class LocalPlayback implements Playback, AudioManager.OnAudioFocusChangeL
 
     }
 
+    @Override
+    public void setUpcomingItems(List<MediaSessionCompat.QueueItem> items) {
+        List<String> mediaIds = new ArrayList<>(items.size());
+        for (MediaSessionCompat.QueueItem item : items) {
+            mediaIds.add(item.getDescription().getMediaId());
+        }
+        if (mGaplessEnabled) {
+            setNextItem(items.isEmpty() ? null : items.get(0));
+            // The next item is read by its own player already.
+            mediaIds = mediaIds.subList(Math.min(1, mediaIds.size()), mediaIds.size());
+        }
+        mPrefetcher.prefetch(mediaIds);
+    }
+
+    /**
+     * Set the read-ahead budget, in bytes, for the upcoming items. 0 disables read-ahead.
+     */
+    public void setReadAheadBudget(long bytes) {
+        mPrefetcher.setByteBudget(bytes);
+    }
+
+    private void setNextItem(MediaSessionCompat.QueueItem item) {
+        String mediaId = item != null ? item.getDescription().getMediaId() : null;
+        if (mNextItem != null &&
+                TextUtils.equals(mediaId, mNextItem.getDescription().getMediaId())) {
+            return;
+        }
+        releaseNextMediaPlayer();
+        mNextItem = item;
+        if (item != null && (mState == PlaybackStateCompat.STATE_PLAYING ||
+                mState == PlaybackStateCompat.STATE_PAUSED)) {
+            prepareNextMediaPlayer();
+        }
+        // Otherwise the current player is still preparing, and onPrepared will take care of it.
+    }
+
+    /**
+     * Enable or disable gapless playback. When disabled, the next item is only prepared once
+     * the current one has completed.
+     */
+    public void setGaplessEnabled(boolean enabled) {
+        mGaplessEnabled = enabled;
+        if (!enabled) {
+            releaseNextMediaPlayer();
+        }
+    }
+
     @Override
     public void pause() {
+        // Nothing must start on its own after this: neither when focus comes back, nor an
+        // item still preparing once it is prepared, such as one a skip just moved away from.
+        mPlayOnFocusGain = false;
+        if (mPreparing) {
+            giveUpAudioFocus();
+        }
+        pauseMediaPlayer();
+    }
+
+    /**
+     * Pause the player, keeping {@link #mPlayOnFocusGain} so that playback resumes when the
+     * focus it was paused for comes back.
+     */
+    private void pauseMediaPlayer() {
         if (mState == PlaybackStateCompat.STATE_PLAYING) {
             // Pause media player and cancel the 'foreground service' state.
             if (mMediaPlayer != null && mMediaPlayer.isPlaying()) {
                 mMediaPlayer.pause();
                 mCurrentPosition = mMediaPlayer.getCurrentPosition();
+                mPositionClock.resync(mCurrentPosition, false);
             }
             giveUpAudioFocus();
         }
+        mPositionClock.freeze();
         mState = PlaybackStateCompat.STATE_PAUSED;
         if (mCallback != null) {
             mCallback.onPlaybackStatusChanged(mState);
@@ -176,6 +317,8 @@ public class LocalPlayback implements Playback, AudioManager.OnAudioFocusChangeL
     @Override
     public void seekTo(int position) {
         this.mCurrentPosition = position;
+        // Held at the target until the seek completes.
+        mPositionClock.set(position, false);
         if (mMediaPlayer == null) {
             // If we do not have a current media player, simply update the current position
             mCurrentPosition = position;
@@ -245,27 +388,37 @@ public class LocalPlayback implements Playback, AudioManager.OnAudioFocusChangeL
         if (mAudioFocus == AUDIO_NO_FOCUS_NO_DUCK) {
             // If we don't have audio focus and can't duck, we have to pause,
             if (mState == PlaybackStateCompat.STATE_PLAYING) {
-                pause();
+                pauseMediaPlayer();
             }
         } else {  // we have audio focus:
             if (mAudioFocus == AUDIO_NO_FOCUS_CAN_DUCK) {
                 mMediaPlayer.setVolume(VOLUME_DUCK, VOLUME_DUCK); // we'll be relatively quiet
+                if (mNextMediaPlayer != null && mNextPrepared) {
+                    mNextMediaPlayer.setVolume(VOLUME_DUCK, VOLUME_DUCK);
+                }
             } else {
                 if (mMediaPlayer != null) {
                     mMediaPlayer.setVolume(VOLUME_NORMAL, VOLUME_NORMAL); // we can be loud again
                 } // else do something for remote client.
+                if (mNextMediaPlayer != null && mNextPrepared) {
+                    mNextMediaPlayer.setVolume(VOLUME_NORMAL, VOLUME_NORMAL);
+                }
             }
-            // If we were playing when we lost focus, we need to resume playing.
-            if (mPlayOnFocusGain) {
+            // If we were playing when we lost focus, we need to resume playing. A player still
+            // preparing is started by onPrepared instead.
+            if (mPlayOnFocusGain && !mPreparing) {
                 if (mMediaPlayer != null && !mMediaPlayer.isPlaying()) {
                     LogHelper.d(TAG,"configMediaPlayerState startMediaPlayer. seeking to ",
                             mCurrentPosition);
-                    if (mCurrentPosition == mMediaPlayer.getCurrentPosition()) {
+                    int playerPosition = mMediaPlayer.getCurrentPosition();
+                    if (mCurrentPosition == playerPosition) {
                         mMediaPlayer.start();
                         mState = PlaybackStateCompat.STATE_PLAYING;
+                        mPositionClock.resync(playerPosition, true);
                     } else {
                         mMediaPlayer.seekTo(mCurrentPosition);
                         mState = PlaybackStateCompat.STATE_BUFFERING;
+                        mPositionClock.set(mCurrentPosition, false);
                     }
                 }
                 mPlayOnFocusGain = false;
@@ -277,7 +430,17 @@ public class LocalPlayback implements Playback, AudioManager.OnAudioFocusChangeL
     }
 
     @Override
-    public void onAudioFocusChange(int focusChange) {
+    public void onAudioFocusChange(final int focusChange) {
+        // Delivered on the main thread.
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                handleAudioFocusChange(focusChange);
+            }
+        });
+    }
+
+    private void handleAudioFocusChange(int focusChange) {
         Log.v(TAG, "onAudioFocusChange. focusChange= " + focusChange);
         if (focusChange == AudioManager.AUDIOFOCUS_GAIN) {
             // We have gained focus:
@@ -314,40 +477,157 @@ public class LocalPlayback implements Playback, AudioManager.OnAudioFocusChangeL
     private void relaxResources(boolean releaseMediaPlayer) {
         LogHelper.d(TAG, "relaxResources. releaseMediaPlayer=", releaseMediaPlayer);
 
-        // stop and release the Media Player, if it's available
+        // stop the Media Player and return it to the pool, if it's available
         if (releaseMediaPlayer && mMediaPlayer != null) {
-            mMediaPlayer.reset();
-            mMediaPlayer.release();
+            mPlayerPool.recycle(mMediaPlayer);
             mMediaPlayer = null;
+            mPreparing = false;
+        }
+        if (releaseMediaPlayer) {
+            releaseNextMediaPlayer();
+        }
+    }
+
+    /**
+     * Start preparing the next item on a second player. Once prepared, it is chained to the
+     * current player in {@link #onPrepared}.
+     */
+    private void prepareNextMediaPlayer() {
+        if (mNextItem == null || mNextMediaPlayer != null || mMediaPlayer == null) {
+            return;
+        }
+        MediaMetadataCompat track = mMusicProvider.getMusic(
+                MediaIDHelper.extractMusicIDFromMediaID(mNextItem.getDescription().getMediaId()));
+        if (track == null) {
+            return;
+        }
+        String source = track.getString(MusicProviderSource.CUSTOM_METADATA_TRACK_SOURCE);
+        mNextMediaPlayer = mPlayerPool.acquire();
+        mNextPrepared = false;
+        try {
+            mNextMediaPlayer.setAudioStreamType(AudioManager.STREAM_MUSIC);
+            mNextMediaPlayer.setDataSource(source);
+            mNextMediaPlayer.prepareAsync();
+        } catch (IOException ex) {
+            LogHelper.w(TAG, ex, "Could not prepare the next item, it will play without gapless");
+            releaseNextMediaPlayer();
         }
     }
 
+    private boolean isNextPreparedFor(String mediaId) {
+        return mNextMediaPlayer != null && mNextPrepared && mNextItem != null &&
+                TextUtils.equals(mediaId, mNextItem.getDescription().getMediaId());
+    }
+
+    /**
+     * Make the next player the current one, and release the previous one.
+     */
+    private void promoteNextMediaPlayer() {
+        MediaPlayer previous = mMediaPlayer;
+        mMediaPlayer = mNextMediaPlayer;
+        mCurrentMediaId = mNextItem.getDescription().getMediaId();
+        mCurrentPosition = 0;
+        // The clock starts over with the new item. The next player is already running if it
+        // took over on completion.
+        mPositionClock.set(mMediaPlayer.getCurrentPosition(), mMediaPlayer.isPlaying());
+        mNextMediaPlayer = null;
+        mNextItem = null;
+        mNextPrepared = false;
+        mPreparing = false;
+        if (previous != null) {
+            previous.setNextMediaPlayer(null);
+            mPlayerPool.recycle(previous);
+        }
+    }
+
+    private void releaseNextMediaPlayer() {
+        if (mNextMediaPlayer != null) {
+            if (mMediaPlayer != null && mNextPrepared) {
+                mMediaPlayer.setNextMediaPlayer(null);
+            }
+            mPlayerPool.recycle(mNextMediaPlayer);
+            mNextMediaPlayer = null;
+        }
+        mNextItem = null;
+        mNextPrepared = false;
+    }
+
 
     private void createMediaPlayerIfNeeded() {
         LogHelper.d(TAG, "createMediaPlayerIfNeeded. needed? ", (mMediaPlayer==null));
+        // The prepared next player is chained to the current one, which is about to change.
+        releaseNextMediaPlayer();
         if (mMediaPlayer == null) {
-            mMediaPlayer = new MediaPlayer();
-
-            // Make sure the media player will acquire a wake-lock while
-            // playing. If we don't do that, the CPU might go to sleep while the
-            // song is playing, causing playback to stop.
-            mMediaPlayer.setWakeMode(mContext.getApplicationContext(),
-                    PowerManager.PARTIAL_WAKE_LOCK);
-
-            // we want the media player to notify us when it's ready preparing,
-            // and when it's done playing:
-            mMediaPlayer.setOnPreparedListener(this);
-            mMediaPlayer.setOnCompletionListener(this);
-            mMediaPlayer.setOnErrorListener(this);
-            mMediaPlayer.setOnSeekCompleteListener(this);
+            mMediaPlayer = mPlayerPool.acquire();
         } else {
             mMediaPlayer.reset();
         }
+        mPreparing = false;
+    }
+
+    /**
+     * Give back idle players under memory pressure.
+     *
+     * @see android.content.ComponentCallbacks2#onTrimMemory(int)
+     */
+    public void onTrimMemory(int level) {
+        mPlayerPool.trim(level);
+    }
+
+    /**
+     * Release every player, including the idle ones. The instance must not be used afterwards.
+     */
+    public void release() {
+        relaxResources(true);
+        mPlayerPool.clear();
+        mPrefetcher.shutdown();
+    }
+
+    /**
+     * @return a new MediaPlayer, which is then configured by this playback
+     */
+    MediaPlayer createMediaPlayer() {
+        return new MediaPlayer();
+    }
+
+    private MediaPlayer newMediaPlayer() {
+        MediaPlayer mediaPlayer = createMediaPlayer();
+
+        // Make sure the media player will acquire a wake-lock while
+        // playing. If we don't do that, the CPU might go to sleep while the
+        // song is playing, causing playback to stop.
+        mediaPlayer.setWakeMode(mContext.getApplicationContext(),
+                PowerManager.PARTIAL_WAKE_LOCK);
+
+        // we want the media player to notify us when it's ready preparing,
+        // and when it's done playing:
+        mediaPlayer.setOnPreparedListener(this);
+        mediaPlayer.setOnCompletionListener(this);
+        mediaPlayer.setOnErrorListener(this);
+        mediaPlayer.setOnSeekCompleteListener(this);
+        return mediaPlayer;
     }
 
     @Override
     public void onCompletion(MediaPlayer mp) {
         LogHelper.d(TAG, "onCompletion from MediaPlayer");
+        if (mp != mMediaPlayer) {
+            return;
+        }
+        if (mNextMediaPlayer != null && mNextPrepared) {
+            // The chained player has already started the next item, we only need to
+            // catch up with it.
+            LogHelper.d(TAG, "Gapless transition to ", mNextItem.getDescription().getMediaId(),
+                    ", next item was ready ", SystemClock.elapsedRealtime() - mNextPreparedAt,
+                    "ms ahead");
+            promoteNextMediaPlayer();
+        } else {
+            mPositionClock.freeze();
+            if (mNextMediaPlayer != null) {
+                LogHelper.d(TAG, "Next item was not prepared in time for a gapless transition");
+                releaseNextMediaPlayer();
+            }
+        }
         // The media player finished playing the current song, so we go ahead
         // and start the next.
         if (mCallback != null) {
@@ -357,7 +637,15 @@ public class LocalPlayback implements Playback, AudioManager.OnAudioFocusChangeL
 
     @Override
     public boolean onError(MediaPlayer mp, int what, int extra) {
+        if (mp == mNextMediaPlayer) {
+            // The current item is unaffected, it will just not be followed gaplessly.
+            LogHelper.w(TAG, "Next media player error: what=", what, ", extra=", extra);
+            releaseNextMediaPlayer();
+            return true;
+        }
         LogHelper.e(TAG, "Media player error: what=" + what + ", extra=" + extra);
+        mPreparing = false;
+        mPositionClock.freeze();
         if (mCallback != null) {
             mCallback.onError("MediaPlayer error " + what + " (" + extra + ")");
         }
@@ -366,20 +654,44 @@ public class LocalPlayback implements Playback, AudioManager.OnAudioFocusChangeL
 
     @Override
     public void onPrepared(MediaPlayer mp) {
+        if (mp == mNextMediaPlayer) {
+            LogHelper.d(TAG, "onPrepared from the next MediaPlayer");
+            if (mMediaPlayer == null) {
+                // The current player went away while this one was preparing, so there is
+                // nothing left to chain it to.
+                releaseNextMediaPlayer();
+                return;
+            }
+            mNextPrepared = true;
+            mNextPreparedAt = SystemClock.elapsedRealtime();
+            float volume = mAudioFocus == AUDIO_NO_FOCUS_CAN_DUCK ? VOLUME_DUCK : VOLUME_NORMAL;
+            mp.setVolume(volume, volume);
+            mMediaPlayer.setNextMediaPlayer(mp);
+            return;
+        }
         LogHelper.d(TAG, "onPrepared from MediaPlayer");
+        mPreparing = false;
+        mPrefetcher.onFirstAudio(mPlayWasReadAhead,
+                SystemClock.elapsedRealtime() - mPlayRequestedAt);
+        mPositionClock.resync(mp.getCurrentPosition(), false);
         // The media player is done preparing. That means we can start playing if we
         // have audio focus.
         configMediaPlayerState();
+        prepareNextMediaPlayer();
     }
 
     @Override
     public void onSeekComplete(MediaPlayer mp) {
-        LogHelper.d(TAG, "onSeekComplete from MediaPlayer:", mp.getCurrentPosition());
+        if (mp != mMediaPlayer) {
+            return;
+        }
         mCurrentPosition = mp.getCurrentPosition();
+        LogHelper.d(TAG, "onSeekComplete from MediaPlayer:", mCurrentPosition);
         if (mState == PlaybackStateCompat.STATE_BUFFERING) {
             mMediaPlayer.start();
             mState = PlaybackStateCompat.STATE_PLAYING;
         }
+        mPositionClock.resync(mCurrentPosition, mState == PlaybackStateCompat.STATE_PLAYING);
         if (mCallback != null) {
             mCallback.onPlaybackStatusChanged(mState);
         }
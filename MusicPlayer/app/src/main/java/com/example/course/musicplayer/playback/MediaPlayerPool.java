@@ -0,0 +1,110 @@
+package com.example.course.musicplayer.playback;
+
+import android.content.ComponentCallbacks2;
+import android.media.MediaPlayer;
+import android.os.SystemClock;
+
+import com.example.course.musicplayer.utils.LogHelper;
+
+import java.util.ArrayDeque;
+
+/**
+ * Small pool of idle MediaPlayers, so starting a track does not pay for constructing and
+ * configuring a native player every time.
+ *
+ * Players are created by {@link #create()}, which owners override to set them up once, and are
+ * reset before they go back to the pool. At most {@code maxIdle} players are kept; the others
+ * are released. The pool is not thread safe and must be used from a single thread.
+ */
+abstract class MediaPlayerPool {
+
+    private static final String TAG = LogHelper.makeLogTag(MediaPlayerPool.class);
+
+    private static final int STATS_LOG_INTERVAL = 20;
+
+    private final ArrayDeque<MediaPlayer> mIdle = new ArrayDeque<>();
+    private final int mMaxIdle;
+    private int mAcquireCount;
+    private int mHitCount;
+    private long mTotalAcquireMs;
+
+    MediaPlayerPool(int maxIdle) {
+        mMaxIdle = maxIdle;
+    }
+
+    /**
+     * @return a new, fully configured MediaPlayer.
+     */
+    protected abstract MediaPlayer create();
+
+    /**
+     * @return an idle player in its reset state, creating one if the pool is empty.
+     */
+    MediaPlayer acquire() {
+        long start = SystemClock.elapsedRealtime();
+        MediaPlayer mediaPlayer = mIdle.pollFirst();
+        boolean pooled = mediaPlayer != null;
+        if (pooled) {
+            mHitCount++;
+        } else {
+            mediaPlayer = create();
+        }
+        long elapsed = SystemClock.elapsedRealtime() - start;
+        mTotalAcquireMs += elapsed;
+        mAcquireCount++;
+        LogHelper.d(TAG, "acquire: pooled=", pooled, " took ", elapsed, "ms");
+        if (mAcquireCount % STATS_LOG_INTERVAL == 0) {
+            LogHelper.d(TAG, "MediaPlayer pool: acquired=", mAcquireCount, " hits=", mHitCount,
+                    " avg=", mTotalAcquireMs / mAcquireCount, "ms idle=", mIdle.size());
+        }
+        return mediaPlayer;
+    }
+
+    /**
+     * Reset the player and keep it for a later {@link #acquire()}, or release it if the pool
+     * is full.
+     */
+    void recycle(MediaPlayer mediaPlayer) {
+        mediaPlayer.reset();
+        if (mIdle.size() < mMaxIdle) {
+            mIdle.addFirst(mediaPlayer);
+        } else {
+            mediaPlayer.release();
+        }
+    }
+
+    /**
+     * Give back memory as requested by {@link ComponentCallbacks2#onTrimMemory(int)}: keep one
+     * idle player while the app is running, and none once it is in the background.
+     */
+    void trim(int level) {
+        int keep;
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            keep = 0;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            keep = Math.min(1, mMaxIdle);
+        } else {
+            return;
+        }
+        int released = 0;
+        while (mIdle.size() > keep) {
+            mIdle.pollLast().release();
+            released++;
+        }
+        LogHelper.d(TAG, "trim: level=", level, " released ", released, " players");
+    }
+
+    /**
+     * Release every idle player.
+     */
+    void clear() {
+        MediaPlayer mediaPlayer;
+        while ((mediaPlayer = mIdle.pollFirst()) != null) {
+            mediaPlayer.release();
+        }
+    }
+
+    int getIdleCount() {
+        return mIdle.size();
+    }
+}
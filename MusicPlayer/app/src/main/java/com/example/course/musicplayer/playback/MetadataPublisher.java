@@ -0,0 +1,159 @@
+package com.example.course.musicplayer.playback;
+
+import android.graphics.Bitmap;
+import android.os.Bundle;
+import android.support.v4.media.MediaMetadataCompat;
+
+import com.example.course.musicplayer.utils.LogHelper;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Publishes the current track's metadata to the session on behalf of QueueManager.
+ *
+ * Session metadata is parceled to every controller, so an update equal to the last published
+ * one is dropped, and the artwork is kept within a byte budget: when the bitmaps together are
+ * larger than the budget, the large ones are scaled down, keeping their aspect ratio, so they
+ * fit in what the icon leaves. The estimated parcel size of every published update is logged.
+ *
+ * Must be used from a single thread.
+ */
+class MetadataPublisher {
+
+    private static final String TAG = LogHelper.makeLogTag(MetadataPublisher.class);
+
+    // Bitmaps scaled to fit the budget; the icon is already small enough to be kept as is.
+    private static final String[] LARGE_BITMAP_KEYS = new String[] {
+            MediaMetadataCompat.METADATA_KEY_ALBUM_ART,
+            MediaMetadataCompat.METADATA_KEY_ART
+    };
+    private static final int MAX_SCALED_BITMAPS = 4;
+
+    private final QueueManager.MetadataUpdateListener mListener;
+    private int mBitmapByteBudget;
+    private MediaMetadataCompat mLastReceived;
+    // Scaled copies of recent art, so republishing the same art does not scale it again.
+    private final Map<Bitmap, Bitmap> mScaled = new IdentityHashMap<>();
+
+    private int mPublished;
+    private int mSuppressed;
+    private long mTotalParcelBytes;
+
+    MetadataPublisher(QueueManager.MetadataUpdateListener listener, int bitmapByteBudget) {
+        mListener = listener;
+        mBitmapByteBudget = bitmapByteBudget;
+    }
+
+    void setBitmapByteBudget(int bitmapByteBudget) {
+        mBitmapByteBudget = bitmapByteBudget;
+        mScaled.clear();
+        mLastReceived = null;
+    }
+
+    void publish(MediaMetadataCompat metadata) {
+        if (isSame(mLastReceived, metadata)) {
+            mSuppressed++;
+            LogHelper.d(TAG, "Metadata unchanged, not published. suppressed=", mSuppressed);
+            return;
+        }
+        mLastReceived = metadata;
+        MediaMetadataCompat published = fitBitmaps(metadata);
+        int parcelSize = estimateParcelSize(published);
+        mPublished++;
+        mTotalParcelBytes += parcelSize;
+        LogHelper.d(TAG, "Publishing metadata of ",
+                published.getString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID), ": parcel~",
+                parcelSize, " bytes, avg=", mTotalParcelBytes / mPublished, " bytes over ",
+                mPublished, " updates, suppressed=", mSuppressed);
+        mListener.onMetadataChanged(published);
+    }
+
+    private MediaMetadataCompat fitBitmaps(MediaMetadataCompat metadata) {
+        int largeBytes = 0;
+        for (String key : LARGE_BITMAP_KEYS) {
+            largeBytes += byteCount(metadata.getBitmap(key));
+        }
+        int available = mBitmapByteBudget -
+                byteCount(metadata.getBitmap(MediaMetadataCompat.METADATA_KEY_DISPLAY_ICON));
+        if (largeBytes <= available) {
+            return metadata;
+        }
+
+        // Bytes grow with the square of the scale.
+        double scale = available > 0 ? Math.sqrt((double) available / largeBytes) : 0;
+        MediaMetadataCompat.Builder builder = new MediaMetadataCompat.Builder(metadata);
+        for (String key : LARGE_BITMAP_KEYS) {
+            Bitmap bitmap = metadata.getBitmap(key);
+            if (bitmap != null) {
+                builder.putBitmap(key, scale > 0 ? scaled(bitmap, scale) : null);
+            }
+        }
+        return builder.build();
+    }
+
+    private Bitmap scaled(Bitmap bitmap, double scale) {
+        Bitmap scaled = mScaled.get(bitmap);
+        if (scaled == null) {
+            int width = Math.max(1, (int) (bitmap.getWidth() * scale));
+            int height = Math.max(1, (int) (bitmap.getHeight() * scale));
+            scaled = Bitmap.createScaledBitmap(bitmap, width, height, true);
+            if (mScaled.size() >= MAX_SCALED_BITMAPS) {
+                mScaled.clear();
+            }
+            mScaled.put(bitmap, scaled);
+            LogHelper.d(TAG, "Scaled art from ", bitmap.getByteCount(), " to ",
+                    scaled.getByteCount(), " bytes to fit the metadata budget");
+        }
+        return scaled;
+    }
+
+    private static int byteCount(Bitmap bitmap) {
+        return bitmap != null ? bitmap.getByteCount() : 0;
+    }
+
+    /**
+     * @return roughly how many bytes parceling the metadata takes, from the bitmaps' byte
+     *         counts and the strings' lengths, without parceling it.
+     */
+    private static int estimateParcelSize(MediaMetadataCompat metadata) {
+        Bundle bundle = metadata.getBundle();
+        int size = 0;
+        for (String key : metadata.keySet()) {
+            // Strings are parceled as UTF-16, after their length.
+            size += 4 + 2 * key.length();
+            Object value = bundle.get(key);
+            if (value instanceof Bitmap) {
+                size += ((Bitmap) value).getByteCount();
+            } else if (value instanceof CharSequence) {
+                size += 4 + 2 * ((CharSequence) value).length();
+            } else {
+                size += 8;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return true if both hold the same values. Bitmaps are compared by identity, as equal
+     *         art comes from the same AlbumArtCache entry.
+     */
+    private static boolean isSame(MediaMetadataCompat a, MediaMetadataCompat b) {
+        if (a == b) {
+            return true;
+        }
+        if (a == null || b == null || !a.keySet().equals(b.keySet())) {
+            return false;
+        }
+        Bundle bundleA = a.getBundle();
+        Bundle bundleB = b.getBundle();
+        for (String key : a.keySet()) {
+            Object valueA = bundleA.get(key);
+            Object valueB = bundleB.get(key);
+            if (valueA != valueB && (valueA == null || !valueA.equals(valueB))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
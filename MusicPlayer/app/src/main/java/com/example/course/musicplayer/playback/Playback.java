@@ -3,6 +3,8 @@ package com.example.course.musicplayer.playback;
 
 import android.support.v4.media.session.MediaSessionCompat;
 
+import java.util.List;
+
 public interface Playback {
 
     void start();
@@ -25,6 +27,15 @@ public interface Playback {
 
     void play(MediaSessionCompat.QueueItem item);
 
+    /**
+     * Hint about the items that will be played after the current one, so implementations that
+     * support it can prepare the next one ahead of time and chain it without a gap, and read
+     * the following ones ahead.
+     *
+     * @param items the upcoming items in play order, the next one first; empty if there is none
+     */
+    void setUpcomingItems(List<MediaSessionCompat.QueueItem> items);
+
     void pause();
 
     void seekTo(int position);
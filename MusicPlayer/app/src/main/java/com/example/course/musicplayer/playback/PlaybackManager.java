@@ -12,6 +12,7 @@ import android.support.v4.media.session.MediaSessionCompat;
 import android.support.v4.media.session.PlaybackStateCompat;
 import android.util.Log;
 
+import com.example.course.musicplayer.R;
 import com.example.course.musicplayer.model.MusicProvider;
 import com.example.course.musicplayer.utils.LogHelper;
 import com.example.course.musicplayer.utils.MediaIDHelper;
@@ -19,18 +20,52 @@ import com.example.course.musicplayer.utils.MediaIDHelper;
 public class PlaybackManager implements Playback.Callback {
     private static final String TAG = LogHelper.makeLogTag(PlaybackManager.class);
 
+    // How many upcoming items the playback is told about: the next one is prepared for a
+    // gapless transition and the others are read ahead.
+    private static final int UPCOMING_ITEMS = 3;
+
+    // Skips arriving less than this apart are coalesced: only the last item is prepared.
+    private static final long SKIP_COALESCE_DELAY_MS = 250;
+
+    // How often the position is saved for resuming while playing. Saves are batched by the
+    // ResumeStateStore, so this costs no write of its own.
+    private static final long RESUME_POSITION_SAMPLE_INTERVAL_MS = 10000;
+
     private Resources mResources;
     private Playback mPlayback;
     private PlaybackServiceCallback mServiceCallback;
     private QueueManager mQueueManager;
     private MusicProvider mMusicProvider;
+    // Every call into the playback, the queue and the session callback happens on its thread.
+    private Scheduler mPlaybackScheduler;
+    private PlaybackStatePublisher mStatePublisher;
 
 
     private MediaSessionCallback mMediaSessionCallback;
     private int mCurrentPosition;
 
-    public PlaybackManager( PlaybackServiceCallback mServiceCallback, Resources mResources, QueueManager mQueueManager, MusicProvider mMusicProvider, Playback mPlayback) {
+    private final Runnable mResumePositionSample = new Runnable() {
+        @Override
+        public void run() {
+            if (mPlayback.getState() == PlaybackStateCompat.STATE_PLAYING) {
+                mQueueManager.saveResumePosition(mPlayback.getCurrentStreamPosition(), false);
+                mPlaybackScheduler.postDelayed(this, RESUME_POSITION_SAMPLE_INTERVAL_MS);
+            }
+        }
+    };
+
+    private int mCoalescedSkips;
+    private final Runnable mCoalescedPlayRequest = new Runnable() {
+        @Override
+        public void run() {
+            handlePlayRequest();
+        }
+    };
+
+    public PlaybackManager( PlaybackServiceCallback mServiceCallback, Resources mResources, QueueManager mQueueManager, MusicProvider mMusicProvider, Playback mPlayback, Scheduler mPlaybackScheduler) {
         this.mResources = mResources;
+        this.mPlaybackScheduler = mPlaybackScheduler;
+        this.mStatePublisher = new PlaybackStatePublisher(mPlaybackScheduler, mServiceCallback);
         this.mServiceCallback = mServiceCallback;
         this.mQueueManager = mQueueManager;
         this.mMusicProvider = mMusicProvider;
@@ -94,6 +129,32 @@ public class PlaybackManager implements Playback.Callback {
             handlePlayRequest();
         }
 
+        @Override
+        public void onPlayFromSearch(final String query, final Bundle extras) {
+            LogHelper.d(TAG, "playFromSearch  query=", query, " extras=", extras);
+
+            mPlayback.setState(PlaybackStateCompat.STATE_CONNECTING);
+            // The search index is only available once the catalog is loaded, which may still
+            // be in progress when the service was started by a voice search.
+            mMusicProvider.retrieveMediaAsync(new MusicProvider.Callback() {
+                @Override
+                public void onMusicCatalogReady(final boolean success) {
+                    // Called on the main thread once the catalog is loaded.
+                    mPlaybackScheduler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (success && mQueueManager.setQueueFromSearch(query, extras)) {
+                                handlePlayRequest();
+                            } else {
+                                updatePlaybackState(
+                                        mResources.getString(R.string.no_search_results));
+                            }
+                        }
+                    });
+                }
+            });
+        }
+
         @Override
         public void onPlayFromUri(Uri uri, Bundle extras) {
             super.onPlayFromUri(uri, extras);
@@ -116,22 +177,13 @@ public class PlaybackManager implements Playback.Callback {
         @Override
         public void onSkipToNext() {
             LogHelper.d(TAG, "skipToNext");
-            if (mQueueManager.skipQueuePosition(1)) {
-                handlePlayRequest();
-            } else {
-                handleStopRequest("Cannot skip");
-            }
-            mQueueManager.updateMetadata();
+            handleSkipRequest(1);
         }
 
         @Override
         public void onSkipToPrevious() {
-            if (mQueueManager.skipQueuePosition(-1)) {
-                handlePlayRequest();
-            } else {
-                handleStopRequest("Cannot skip");
-            }
-            mQueueManager.updateMetadata();
+            LogHelper.d(TAG, "skipToPrevious");
+            handleSkipRequest(-1);
         }
 
         @Override
@@ -157,15 +209,57 @@ public class PlaybackManager implements Playback.Callback {
         void onPlaybackStateUpdated(PlaybackStateCompat newState);
     }
 
+    /**
+     * Handle a request to skip in the queue. The item skipped away from is paused, and the
+     * new item's metadata and buffering state are published right away, but it is only played
+     * once no other skip has arrived for a short while, so a burst of skips prepares a single
+     * item instead of every one in between.
+     */
+    private void handleSkipRequest(int amount) {
+        if (mQueueManager.skipQueuePosition(amount)) {
+            mCoalescedSkips++;
+            // Also stops a prepare still in flight for the item skipped away from.
+            if (mPlayback.isPlaying()) {
+                mPlayback.pause();
+            }
+            mPlayback.setState(PlaybackStateCompat.STATE_BUFFERING);
+            updatePlaybackState(null);
+            mPlaybackScheduler.cancel(mCoalescedPlayRequest);
+            mPlaybackScheduler.postDelayed(mCoalescedPlayRequest, SKIP_COALESCE_DELAY_MS);
+        } else {
+            handleStopRequest("Cannot skip");
+        }
+        mQueueManager.updateMetadata();
+    }
+
+    /**
+     * Drop the play request of a pending skip burst, which the caller is superseding.
+     *
+     * @return true if there was one
+     */
+    private boolean cancelCoalescedSkips() {
+        mPlaybackScheduler.cancel(mCoalescedPlayRequest);
+        if (mCoalescedSkips > 0) {
+            LogHelper.d(TAG, "Coalesced ", mCoalescedSkips, " skips into one request");
+            mCoalescedSkips = 0;
+            return true;
+        }
+        return false;
+    }
+
     /**
      * Handle a request to play music
      */
     public void handlePlayRequest() {
         LogHelper.d(TAG, "handlePlayRequest: mState=" + mPlayback.getState());
+        // Playing the current item also covers any skip waiting to be played. If the player
+        // is still preparing an item skipped over, play() resets it and abandons that prepare.
+        cancelCoalescedSkips();
         MediaSessionCompat.QueueItem currentMusic = mQueueManager.getCurrentMusic();
         if (currentMusic != null) {
             mServiceCallback.onPlaybackStart();
             mPlayback.play(currentMusic);
+            mPlayback.setUpcomingItems(mQueueManager.peekUpcomingMusic(UPCOMING_ITEMS));
         }
     }
 
@@ -174,7 +268,9 @@ public class PlaybackManager implements Playback.Callback {
      */
     public void handlePauseRequest() {
         LogHelper.d(TAG, "handlePauseRequest: mState=" + mPlayback.getState());
-        if (mPlayback.isPlaying()) {
+        // A pending skip already paused the player, but left it buffering the new item.
+        boolean skipPending = cancelCoalescedSkips();
+        if (mPlayback.isPlaying() || skipPending) {
             mPlayback.pause();
             mServiceCallback.onPlaybackStop();
         }
@@ -189,6 +285,7 @@ public class PlaybackManager implements Playback.Callback {
      */
     public void handleStopRequest(String withError) {
         LogHelper.d(TAG, "handleStopRequest: mState=" + mPlayback.getState() + " error=", withError);
+        cancelCoalescedSkips();
         mPlayback.stop(true);
         mServiceCallback.onPlaybackStop();
         updatePlaybackState(withError);
@@ -202,7 +299,10 @@ public class PlaybackManager implements Playback.Callback {
     public void updatePlaybackState(String error) {
         LogHelper.d(TAG, "updatePlaybackState, playback state=" + mPlayback.getState());
         long position = PlaybackStateCompat.PLAYBACK_POSITION_UNKNOWN;
-        if (mPlayback != null && mPlayback.isConnected()) {
+        if (mCoalescedSkips > 0) {
+            // The item skipped to has not started yet.
+            position = 0;
+        } else if (mPlayback != null && mPlayback.isConnected()) {
             position = mPlayback.getCurrentStreamPosition();
         }
 
@@ -227,7 +327,23 @@ public class PlaybackManager implements Playback.Callback {
             stateBuilder.setActiveQueueItemId(currentMusic.getQueueId());
         }
 
-        mServiceCallback.onPlaybackStateUpdated(stateBuilder.build());
+        mStatePublisher.publish(stateBuilder.build());
+
+        if (position >= 0 && (state == PlaybackStateCompat.STATE_PLAYING ||
+                state == PlaybackStateCompat.STATE_PAUSED ||
+                state == PlaybackStateCompat.STATE_STOPPED)) {
+            // Playing positions are batched; a pause or stop is written right away, as
+            // the service may be killed before anything else happens.
+            mQueueManager.saveResumePosition(position,
+                    state != PlaybackStateCompat.STATE_PLAYING);
+        }
+        // While playing, the position is also sampled between state changes, which may be
+        // minutes apart.
+        mPlaybackScheduler.cancel(mResumePositionSample);
+        if (state == PlaybackStateCompat.STATE_PLAYING) {
+            mPlaybackScheduler.postDelayed(mResumePositionSample,
+                    RESUME_POSITION_SAMPLE_INTERVAL_MS);
+        }
 
         if (state == PlaybackStateCompat.STATE_PLAYING ||
                 state == PlaybackStateCompat.STATE_PAUSED) {
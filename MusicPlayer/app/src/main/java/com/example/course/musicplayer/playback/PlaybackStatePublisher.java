@@ -0,0 +1,113 @@
+package com.example.course.musicplayer.playback;
+
+import android.support.v4.media.session.PlaybackStateCompat;
+import android.text.TextUtils;
+
+import com.example.course.musicplayer.utils.LogHelper;
+
+/**
+ * Publishes PlaybackStates to the session on behalf of PlaybackManager, without sending the
+ * same state twice.
+ *
+ * States are held for one frame window, and only the last one of a burst is published, so
+ * the chains of notifications a single command causes (a seek goes through buffering and back
+ * to playing, for instance) reach controllers as one update. A state is then dropped if it
+ * is equivalent to the last published one: same state, actions, error, active item and
+ * speed, and a position that is where the previous state predicted it would be. Stopped and
+ * error states are published right away, as nothing may follow them to flush the window.
+ *
+ * Must be used on the thread of the given Scheduler.
+ */
+class PlaybackStatePublisher {
+
+    private static final String TAG = LogHelper.makeLogTag(PlaybackStatePublisher.class);
+
+    private static final long FRAME_WINDOW_MS = 16;
+    // Positions reported by MediaPlayer drift a little from the extrapolated ones.
+    private static final long POSITION_TOLERANCE_MS = 250;
+    private static final int STATS_LOG_INTERVAL = 50;
+
+    private final Scheduler mScheduler;
+    private final PlaybackManager.PlaybackServiceCallback mCallback;
+    private PlaybackStateCompat mLastPublished;
+    private PlaybackStateCompat mPending;
+    private boolean mFlushScheduled;
+
+    private int mRequested;
+    private int mPublished;
+    private int mCoalesced;
+    private int mSuppressed;
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            mFlushScheduled = false;
+            PlaybackStateCompat state = mPending;
+            mPending = null;
+            if (state != null) {
+                publishNow(state);
+            }
+        }
+    };
+
+    PlaybackStatePublisher(Scheduler scheduler, PlaybackManager.PlaybackServiceCallback callback) {
+        mScheduler = scheduler;
+        mCallback = callback;
+    }
+
+    void publish(PlaybackStateCompat state) {
+        mRequested++;
+        if (mPending != null) {
+            mCoalesced++;
+        }
+        int playbackState = state.getState();
+        if (playbackState == PlaybackStateCompat.STATE_STOPPED ||
+                playbackState == PlaybackStateCompat.STATE_ERROR) {
+            mPending = null;
+            mScheduler.cancel(mFlush);
+            mFlushScheduled = false;
+            publishNow(state);
+            return;
+        }
+        mPending = state;
+        if (!mFlushScheduled) {
+            mFlushScheduled = true;
+            mScheduler.postDelayed(mFlush, FRAME_WINDOW_MS);
+        }
+    }
+
+    private void publishNow(PlaybackStateCompat state) {
+        if (isEquivalent(mLastPublished, state)) {
+            mSuppressed++;
+        } else {
+            mLastPublished = state;
+            mPublished++;
+            mCallback.onPlaybackStateUpdated(state);
+        }
+        if (mRequested % STATS_LOG_INTERVAL == 0) {
+            LogHelper.d(TAG, "PlaybackState updates: requested=", mRequested, " published=",
+                    mPublished, " coalesced=", mCoalesced, " suppressed=", mSuppressed);
+        }
+    }
+
+    private static boolean isEquivalent(PlaybackStateCompat last, PlaybackStateCompat state) {
+        if (last == null) {
+            return false;
+        }
+        if (last.getState() != state.getState() ||
+                last.getActions() != state.getActions() ||
+                last.getActiveQueueItemId() != state.getActiveQueueItemId() ||
+                last.getPlaybackSpeed() != state.getPlaybackSpeed() ||
+                last.getBufferedPosition() != state.getBufferedPosition() ||
+                !TextUtils.equals(last.getErrorMessage(), state.getErrorMessage())) {
+            return false;
+        }
+        long expectedPosition = last.getPosition();
+        if (last.getState() == PlaybackStateCompat.STATE_PLAYING) {
+            long elapsed = state.getLastPositionUpdateTime() - last.getLastPositionUpdateTime();
+            expectedPosition += (long) (elapsed * last.getPlaybackSpeed());
+            return Math.abs(state.getPosition() - expectedPosition) <= POSITION_TOLERANCE_MS;
+        }
+        return state.getPosition() == expectedPosition;
+    }
+}
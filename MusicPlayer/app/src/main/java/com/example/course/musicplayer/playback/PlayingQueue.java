@@ -0,0 +1,197 @@
+package com.example.course.musicplayer.playback;
+
+import android.support.v4.media.MediaDescriptionCompat;
+import android.support.v4.media.session.MediaSessionCompat;
+import android.util.LruCache;
+
+import com.example.course.musicplayer.model.MusicProvider;
+import com.example.course.musicplayer.utils.MediaId;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * "Now playing" queue of the tracks of one browse node.
+ *
+ * Only the music ids of the tracks are stored, along with the node they were selected from.
+ * QueueItems are built from the MusicProvider when they are asked for, and the last ones built
+ * are kept, so a large category costs no metadata copies until it is actually played through.
+ *
+ * Queue ids and music ids are also mapped to their position, so finding an item does not scan
+ * the queue. A music id queued more than once maps to its first position. Moving, inserting or
+ * removing an item only re-indexes the items between the two ends of the change. All methods
+ * are synchronized.
+ */
+class PlayingQueue {
+
+    static final int NOT_FOUND = -1;
+
+    private static final int ITEM_CACHE_SIZE = 64;
+
+    private final MusicProvider mMusicProvider;
+    private final List<Entry> mEntries = new ArrayList<>();
+    private final Map<Long, Integer> mIndexByQueueId = new HashMap<>();
+    private final Map<String, Integer> mIndexByMusicId = new HashMap<>();
+    private final LruCache<Long, MediaSessionCompat.QueueItem> mItems =
+            new LruCache<>(ITEM_CACHE_SIZE);
+    private MediaId mParent;
+    private long mNextQueueId;
+
+    PlayingQueue(MusicProvider musicProvider) {
+        mMusicProvider = musicProvider;
+    }
+
+    /**
+     * Replace the whole queue.
+     *
+     * @param parentId media ID of the browse node the tracks were selected from
+     * @param musicIds unique music ids of the tracks, in play order; null for an empty queue
+     */
+    synchronized void set(String parentId, List<String> musicIds) {
+        mEntries.clear();
+        mIndexByQueueId.clear();
+        mIndexByMusicId.clear();
+        mItems.evictAll();
+        mParent = parentId != null ? MediaId.parse(parentId) : null;
+        mNextQueueId = 0;
+        if (musicIds != null) {
+            for (String musicId : musicIds) {
+                mEntries.add(new Entry(musicId, mNextQueueId++));
+            }
+        }
+        reindex(0, mEntries.size());
+    }
+
+    /**
+     * @return the item at the given position, or null if there is none.
+     */
+    synchronized MediaSessionCompat.QueueItem get(int index) {
+        if (!isPlayable(index)) {
+            return null;
+        }
+        Entry entry = mEntries.get(index);
+        MediaSessionCompat.QueueItem item = mItems.get(entry.queueId);
+        if (item == null) {
+            item = new MediaSessionCompat.QueueItem(describe(entry.musicId), entry.queueId);
+            mItems.put(entry.queueId, item);
+        }
+        return item;
+    }
+
+    /**
+     * @return the items from {@code from} (inclusive) to {@code to} (exclusive), clamped to
+     *         the bounds of the queue.
+     */
+    synchronized List<MediaSessionCompat.QueueItem> subList(int from, int to) {
+        from = Math.max(from, 0);
+        to = Math.min(to, mEntries.size());
+        List<MediaSessionCompat.QueueItem> items = new ArrayList<>(Math.max(to - from, 0));
+        for (int i = from; i < to; i++) {
+            items.add(get(i));
+        }
+        return items;
+    }
+
+    synchronized String getMusicId(int index) {
+        return isPlayable(index) ? mEntries.get(index).musicId : null;
+    }
+
+    synchronized int size() {
+        return mEntries.size();
+    }
+
+    synchronized boolean isPlayable(int index) {
+        return index >= 0 && index < mEntries.size();
+    }
+
+    synchronized int indexOf(long queueId) {
+        Integer index = mIndexByQueueId.get(queueId);
+        return index != null ? index : NOT_FOUND;
+    }
+
+    /**
+     * @param mediaId hierarchy-aware media ID; only tracks selected from the same browse node
+     *                as this queue are found.
+     */
+    synchronized int indexOf(String mediaId) {
+        if (mediaId == null || mParent == null) {
+            return NOT_FOUND;
+        }
+        MediaId parsed = MediaId.parse(mediaId);
+        if (!mParent.getHierarchyId().equals(parsed.getHierarchyId())) {
+            return NOT_FOUND;
+        }
+        Integer index = mIndexByMusicId.get(parsed.getMusicId());
+        return index != null ? index : NOT_FOUND;
+    }
+
+    /**
+     * Insert a track, under a new queue id.
+     */
+    synchronized void add(int index, String musicId) {
+        mEntries.add(index, new Entry(musicId, mNextQueueId++));
+        reindex(index, mEntries.size());
+    }
+
+    synchronized void remove(int index) {
+        Entry entry = mEntries.remove(index);
+        mIndexByQueueId.remove(entry.queueId);
+        mItems.remove(entry.queueId);
+        Integer first = mIndexByMusicId.get(entry.musicId);
+        if (first != null && first == index) {
+            // Re-indexing finds the next copy of the track, if any.
+            mIndexByMusicId.remove(entry.musicId);
+        }
+        reindex(index, mEntries.size());
+    }
+
+    synchronized void move(int from, int to) {
+        if (from == to) {
+            return;
+        }
+        mEntries.add(to, mEntries.remove(from));
+        reindex(Math.min(from, to), Math.max(from, to) + 1);
+    }
+
+    /**
+     * Update the positions of the items from {@code from} (inclusive) to {@code to}
+     * (exclusive), the only ones a change moved.
+     */
+    private void reindex(int from, int to) {
+        Set<String> indexed = new HashSet<>();
+        for (int i = from; i < to; i++) {
+            Entry entry = mEntries.get(i);
+            mIndexByQueueId.put(entry.queueId, i);
+            // Positions before the change did not move, so a first copy there stays first.
+            Integer first = mIndexByMusicId.get(entry.musicId);
+            if ((first == null || first >= from) && indexed.add(entry.musicId)) {
+                mIndexByMusicId.put(entry.musicId, i);
+            }
+        }
+    }
+
+    private MediaDescriptionCompat describe(String musicId) {
+        // We create a hierarchy-aware mediaID, so we know what the queue is about by looking
+        // at the QueueItem media IDs.
+        String mediaId = mParent != null ? mParent.childId(musicId) : musicId;
+        MediaDescriptionCompat description = mMusicProvider.getDescription(musicId, mediaId);
+        if (description == null) {
+            description = new MediaDescriptionCompat.Builder().setMediaId(mediaId).build();
+        }
+        return description;
+    }
+
+    private static final class Entry {
+        final String musicId;
+        final long queueId;
+
+        Entry(String musicId, long queueId) {
+            this.musicId = musicId;
+            this.queueId = queueId;
+        }
+    }
+}
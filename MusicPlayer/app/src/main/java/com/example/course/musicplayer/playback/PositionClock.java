@@ -0,0 +1,93 @@
+package com.example.course.musicplayer.playback;
+
+import android.os.SystemClock;
+
+import com.example.course.musicplayer.utils.LogHelper;
+
+/**
+ * Position in the current item, computed from the last known one instead of asked to the
+ * player every time.
+ *
+ * The position is anchored to {@link SystemClock#elapsedRealtime()} whenever playback starts,
+ * stops or jumps, and extrapolated from there with the playback speed while it plays, which
+ * is also what controllers do with a PlaybackStateCompat. When an anchor comes from the
+ * player itself, the distance to the extrapolated position is logged, to keep an eye on how
+ * much the two drift apart.
+ *
+ * Anchored on the playback thread, and read from any thread.
+ */
+class PositionClock {
+
+    private static final String TAG = LogHelper.makeLogTag(PositionClock.class);
+
+    private static final int STATS_LOG_INTERVAL = 100;
+
+    private long mAnchorPosition;
+    private long mAnchorTime;
+    private final float mSpeed;
+    private boolean mAdvancing;
+
+    private int mReads;
+    private int mResyncs;
+    private long mMaxDrift;
+
+    /**
+     * @param speed how many milliseconds of media play per millisecond of real time
+     */
+    PositionClock(float speed) {
+        mSpeed = speed;
+        mAnchorTime = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Anchor the position to a value not read from the player: a seek target, the start of a
+     * new item, or a position to resume from.
+     */
+    synchronized void set(long position, boolean advancing) {
+        anchor(position, advancing, SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * Anchor the position to one just read from the player.
+     */
+    synchronized void resync(long playerPosition, boolean advancing) {
+        long now = SystemClock.elapsedRealtime();
+        mResyncs++;
+        if (mAdvancing) {
+            long drift = playerPosition - positionAt(now);
+            mMaxDrift = Math.max(mMaxDrift, Math.abs(drift));
+            LogHelper.d(TAG, "Resync: drift=", drift, "ms, max=", mMaxDrift, "ms");
+        }
+        anchor(playerPosition, advancing, now);
+    }
+
+    /**
+     * Stop advancing, keeping the position reached so far.
+     */
+    synchronized void freeze() {
+        long now = SystemClock.elapsedRealtime();
+        anchor(positionAt(now), false, now);
+    }
+
+    synchronized long getPosition() {
+        mReads++;
+        if (mReads % STATS_LOG_INTERVAL == 0) {
+            LogHelper.d(TAG, "Position reads=", mReads, " served from ", mResyncs,
+                    " player reads, max drift=", mMaxDrift, "ms");
+        }
+        return positionAt(SystemClock.elapsedRealtime());
+    }
+
+    private void anchor(long position, boolean advancing, long now) {
+        mAnchorPosition = Math.max(position, 0);
+        mAnchorTime = now;
+        mAdvancing = advancing;
+    }
+
+    private long positionAt(long now) {
+        if (!mAdvancing) {
+            return mAnchorPosition;
+        }
+        return mAnchorPosition + (long) ((now - mAnchorTime) * mSpeed);
+    }
+}
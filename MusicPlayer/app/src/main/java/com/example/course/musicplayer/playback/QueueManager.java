@@ -2,20 +2,21 @@ package com.example.course.musicplayer.playback;
 
 import android.content.res.Resources;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.Bundle;
 import android.support.annotation.NonNull;
 import android.support.v4.media.MediaMetadataCompat;
 import android.support.v4.media.session.MediaSessionCompat;
 
 import com.example.course.musicplayer.R;
 import com.example.course.musicplayer.model.MusicProvider;
+import com.example.course.musicplayer.utils.AlbumArtCache;
 import com.example.course.musicplayer.utils.LogHelper;
+import com.example.course.musicplayer.utils.MediaId;
 import com.example.course.musicplayer.utils.MediaIDHelper;
 import com.example.course.musicplayer.utils.QueueHelper;
 
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collections;
 import java.util.List;
 import java.util.Random;
 
@@ -27,54 +28,70 @@ import java.util.Random;
 public class QueueManager {
     private static final String TAG = LogHelper.makeLogTag(QueueManager.class);
 
+    // Only a window of the queue around the current item is published to the session, and it
+    // is moved once the current item gets within QUEUE_WINDOW_MARGIN items of its edges.
+    private static final int QUEUE_WINDOW_RADIUS = 25;
+    private static final int QUEUE_WINDOW_MARGIN = 5;
+
+    // Bitmap bytes allowed in the metadata published to the session; larger art is scaled.
+    private static final int METADATA_BITMAP_BUDGET_BYTES = 512 * 1024;
+
     private MusicProvider mMusicProvider;
     private MetadataUpdateListener mListener;
     private Resources mResources;
+    private AlbumArtCache mAlbumArtCache;
+    private final MetadataPublisher mMetadataPublisher;
+    private ResumeStateStore mResumeStateStore;
 
     // "Now playing" queue:
-    private List<MediaSessionCompat.QueueItem> mPlayingQueue;
+    private final PlayingQueue mPlayingQueue;
     private int mCurrentIndex;
+    private String mQueueTitle;
+    private int mWindowStart;
+    private int mWindowEnd;
 
     public QueueManager(@NonNull MusicProvider musicProvider,
                         @NonNull Resources resources,
+                        @NonNull AlbumArtCache albumArtCache,
                         @NonNull MetadataUpdateListener listener) {
         this.mMusicProvider = musicProvider;
         this.mListener = listener;
         this.mResources = resources;
+        this.mAlbumArtCache = albumArtCache;
+        this.mMetadataPublisher = new MetadataPublisher(listener, METADATA_BITMAP_BUDGET_BYTES);
 
-        mPlayingQueue = Collections.synchronizedList(new ArrayList<MediaSessionCompat.QueueItem>());
+        mPlayingQueue = new PlayingQueue(musicProvider);
         mCurrentIndex = 0;
     }
 
     public boolean isSameBrowsingCategory(@NonNull String mediaId) {
-        String[] newBrowseHierarchy = MediaIDHelper.getHierarchy(mediaId);
         MediaSessionCompat.QueueItem current = getCurrentMusic();
         if (current == null) {
             return false;
         }
-        String[] currentBrowseHierarchy = MediaIDHelper.getHierarchy(
-                current.getDescription().getMediaId());
-
-        return Arrays.equals(newBrowseHierarchy, currentBrowseHierarchy);
+        return MediaId.parse(mediaId).isSameHierarchy(
+                MediaId.parse(current.getDescription().getMediaId()));
     }
 
     private void setCurrentQueueIndex(int index) {
         if (index >= 0 && index < mPlayingQueue.size()) {
             mCurrentIndex = index;
+            updateQueueWindow(false);
+            saveResumePosition(0, false);
             mListener.onCurrentQueueIndexUpdated(mCurrentIndex);
         }
     }
 
     public boolean setCurrentQueueItem(long queueId) {
         // set the current index on queue from the queue Id:
-        int index = QueueHelper.getMusicIndexOnQueue(mPlayingQueue, queueId);
+        int index = mPlayingQueue.indexOf(queueId);
         setCurrentQueueIndex(index);
         return index >= 0;
     }
 
     public boolean setCurrentQueueItem(String mediaId) {
         // set the current index on queue from the music Id:
-        int index = QueueHelper.getMusicIndexOnQueue(mPlayingQueue, mediaId);
+        int index = mPlayingQueue.indexOf(mediaId);
         setCurrentQueueIndex(index);
         return index >= 0;
     }
@@ -88,12 +105,14 @@ public class QueueManager {
             // skip forwards when in last song will cycle back to start of the queue
             index %= mPlayingQueue.size();
         }
-        if (!QueueHelper.isIndexPlayable(index, mPlayingQueue)) {
+        if (!mPlayingQueue.isPlayable(index)) {
             LogHelper.e(TAG, "Cannot increment queue index by ", amount,
                     ". Current=", mCurrentIndex, " queue length=", mPlayingQueue.size());
             return false;
         }
         mCurrentIndex = index;
+        updateQueueWindow(false);
+        saveResumePosition(0, false);
         return true;
     }
 
@@ -111,41 +130,163 @@ public class QueueManager {
             canReuseQueue = setCurrentQueueItem(mediaId);
         }
         if (!canReuseQueue) {
-            String queueTitle = mResources.getString(R.string.browse_musics_by_album_subtitle,
-                    MediaIDHelper.extractBrowseCategoryValueFromMediaID(mediaId));
-            setCurrentQueue(queueTitle,
+            String queueTitle;
+            if (MediaId.parse(mediaId).getCategory(0).equals(
+                    MediaIDHelper.MEDIA_ID_MUSICS_BY_SEARCH)) {
+                queueTitle = mResources.getString(R.string.search_queue_title);
+            } else {
+                queueTitle = mResources.getString(R.string.browse_musics_by_album_subtitle,
+                        MediaIDHelper.extractBrowseCategoryValueFromMediaID(mediaId));
+            }
+            setCurrentQueue(queueTitle, mediaId,
                     QueueHelper.getPlayingQueue(mediaId, mMusicProvider), mediaId);
         }
         updateMetadata();
     }
 
+    public boolean setQueueFromSearch(String query, Bundle extras) {
+        String searchMediaId = QueueHelper.getSearchMediaId(query, extras);
+        List<String> musicIds = QueueHelper.getPlayingQueue(searchMediaId, mMusicProvider);
+        setCurrentQueue(mResources.getString(R.string.search_queue_title), searchMediaId,
+                musicIds, null);
+        updateMetadata();
+        return musicIds != null && !musicIds.isEmpty();
+    }
+
     public MediaSessionCompat.QueueItem getCurrentMusic() {
-        if (!QueueHelper.isIndexPlayable(mCurrentIndex, mPlayingQueue)) {
+        return mPlayingQueue.get(mCurrentIndex);
+    }
+
+    /**
+     * @return the item that will be played after the current one, without moving to it, or
+     *         null if the queue is empty. The queue wraps around, as in skipQueuePosition.
+     */
+    public MediaSessionCompat.QueueItem peekNextMusic() {
+        int size = mPlayingQueue.size();
+        if (size == 0) {
             return null;
         }
-        return mPlayingQueue.get(mCurrentIndex);
+        return mPlayingQueue.get((mCurrentIndex + 1) % size);
     }
 
-    public int getCurrentQueueSize() {
-        if (mPlayingQueue == null) {
-            return 0;
+    /**
+     * @return up to {@code count} items that will be played after the current one, in play
+     *         order, without moving to them. The queue wraps around, but no item is returned
+     *         twice and the current one is not returned.
+     */
+    public List<MediaSessionCompat.QueueItem> peekUpcomingMusic(int count) {
+        int size = mPlayingQueue.size();
+        count = Math.min(count, size - 1);
+        List<MediaSessionCompat.QueueItem> items = new ArrayList<>(Math.max(count, 0));
+        for (int i = 1; i <= count; i++) {
+            items.add(mPlayingQueue.get((mCurrentIndex + i) % size));
         }
-        return mPlayingQueue.size();
+        return items;
     }
 
-    protected void setCurrentQueue(String title, List<MediaSessionCompat.QueueItem> newQueue) {
-        setCurrentQueue(title, newQueue, null);
+    public int getCurrentQueueSize() {
+        return mPlayingQueue.size();
     }
 
-    protected void setCurrentQueue(String title, List<MediaSessionCompat.QueueItem> newQueue,
+    /**
+     * @param parentId media ID of the browse node the tracks were selected from
+     * @param musicIds music ids of the tracks, in play order
+     * @param initialMediaId hierarchy-aware media ID of the track to start from, or null to
+     *                       start from the first one
+     */
+    protected void setCurrentQueue(String title, String parentId, List<String> musicIds,
                                    String initialMediaId) {
-        mPlayingQueue = newQueue;
+        mPlayingQueue.set(parentId, musicIds);
         int index = 0;
         if (initialMediaId != null) {
-            index = QueueHelper.getMusicIndexOnQueue(mPlayingQueue, initialMediaId);
+            index = mPlayingQueue.indexOf(initialMediaId);
         }
         mCurrentIndex = Math.max(index, 0);
-        mListener.onQueueUpdated(title, newQueue);
+        mQueueTitle = title;
+        updateQueueWindow(true);
+        if (mResumeStateStore != null) {
+            mResumeStateStore.saveQueue(title, parentId, musicIds);
+        }
+    }
+
+    /**
+     * Persist the playing queue, and the position in it, to the given store from now on.
+     */
+    public void setResumeStateStore(ResumeStateStore store) {
+        mResumeStateStore = store;
+    }
+
+    /**
+     * Record the position in the current item, to resume from it if the service is restarted.
+     *
+     * @param flush whether to write it now rather than along with later positions, typically
+     *              because playback paused or stopped and no later position may come.
+     */
+    public void saveResumePosition(long position, boolean flush) {
+        if (mResumeStateStore == null) {
+            return;
+        }
+        String musicId = mPlayingQueue.getMusicId(mCurrentIndex);
+        if (musicId == null) {
+            return;
+        }
+        mResumeStateStore.savePosition(mCurrentIndex, musicId, Math.max(position, 0));
+        if (flush) {
+            mResumeStateStore.flush();
+        }
+    }
+
+    /**
+     * Make the queue read from a ResumeStateStore the current one, without rebuilding it from
+     * its browse node. Tracks no longer in the catalog are left out.
+     *
+     * @return the position to resume the current item from, or a negative value if there is
+     *         nothing to resume.
+     */
+    public long restoreQueue(ResumeStateStore.ResumeState state) {
+        List<String> musicIds = new ArrayList<>(state.musicIds.size());
+        int index = 0;
+        long position = 0;
+        for (int i = 0; i < state.musicIds.size(); i++) {
+            String musicId = state.musicIds.get(i);
+            if (mMusicProvider.getMusic(musicId) == null) {
+                continue;
+            }
+            if (i <= state.index) {
+                index = musicIds.size();
+                position = i == state.index ? state.positionMs : 0;
+            }
+            musicIds.add(musicId);
+        }
+        if (musicIds.isEmpty()) {
+            return -1;
+        }
+        LogHelper.d(TAG, "Restoring queue of ", musicIds.size(), " tracks at ", index);
+        mPlayingQueue.set(state.parentId, musicIds);
+        mCurrentIndex = index;
+        mQueueTitle = state.title;
+        updateQueueWindow(true);
+        if (mResumeStateStore != null && musicIds.size() != state.musicIds.size()) {
+            mResumeStateStore.saveQueue(state.title, state.parentId, musicIds);
+        }
+        updateMetadata();
+        return position;
+    }
+
+    /**
+     * Publish the window of the queue around the current item, if it moved out of the one
+     * published last, or if {@code force} is set.
+     */
+    private void updateQueueWindow(boolean force) {
+        int size = mPlayingQueue.size();
+        boolean nearStart = mCurrentIndex < mWindowStart + QUEUE_WINDOW_MARGIN && mWindowStart > 0;
+        boolean nearEnd = mCurrentIndex >= mWindowEnd - QUEUE_WINDOW_MARGIN && mWindowEnd < size;
+        if (!force && !nearStart && !nearEnd) {
+            return;
+        }
+        mWindowStart = Math.max(0, mCurrentIndex - QUEUE_WINDOW_RADIUS);
+        mWindowEnd = Math.min(size, mCurrentIndex + QUEUE_WINDOW_RADIUS + 1);
+        mListener.onQueueUpdated(mQueueTitle, mPlayingQueue.subList(mWindowStart, mWindowEnd));
     }
 
     public void updateMetadata() {
@@ -161,26 +302,59 @@ public class QueueManager {
             throw new IllegalArgumentException("Invalid musicId " + musicId);
         }
 
-        mListener.onMetadataChanged(metadata);
-
         // Set the proper album artwork on the media session, so it can be shown in the
         // locked screen and in other places.
-        if (metadata.getDescription().getIconBitmap() == null &&
-                metadata.getDescription().getIconUri() != null) {
-            Bitmap bitmap = BitmapFactory.decodeResource(mResources, R.drawable.p0);
-            Bitmap icon = BitmapFactory.decodeResource(mResources, R.drawable.p0);
-            // TODO: Use real pic for album uri
-            // but this time just fake pic for album bitmap
-            mMusicProvider.updateMusicArt(musicId, bitmap, icon);
-
-            // If we are still playing the same music, notify the listeners:
-            String currentPlayingId = MediaIDHelper.extractMusicIDFromMediaID(
-                    currentMusic.getDescription().getMediaId());
-            if (musicId.equals(currentPlayingId)) {
-                mListener.onMetadataChanged(mMusicProvider.getMusic(currentPlayingId));
+        Uri artUri = metadata.getDescription().getIconUri();
+        if (metadata.getDescription().getIconBitmap() != null || artUri == null) {
+            mMetadataPublisher.publish(metadata);
+            return;
+        }
+        String artUrl = artUri.toString();
+        Bitmap art = mAlbumArtCache.getBigImage(artUrl);
+        if (art != null) {
+            mMetadataPublisher.publish(withArt(metadata, art,
+                    mAlbumArtCache.getIconImage(artUrl)));
+            return;
+        }
+
+        // Publish the rest of the metadata right away, and the art once it is decoded.
+        mMetadataPublisher.publish(metadata);
+        final MediaMetadataCompat metadataWithoutArt = metadata;
+        mAlbumArtCache.fetch(artUrl, new AlbumArtCache.FetchListener() {
+            @Override
+            public void onFetched(String artUrl, Bitmap bitmap, Bitmap icon) {
+                // If we are still playing the same music, notify the listeners:
+                MediaSessionCompat.QueueItem currentMusic = getCurrentMusic();
+                if (currentMusic == null) {
+                    return;
+                }
+                String currentPlayingId = MediaIDHelper.extractMusicIDFromMediaID(
+                        currentMusic.getDescription().getMediaId());
+                if (musicId.equals(currentPlayingId)) {
+                    mMetadataPublisher.publish(withArt(metadataWithoutArt, bitmap, icon));
+                }
             }
+        });
+    }
 
-        }
+    private static MediaMetadataCompat withArt(MediaMetadataCompat metadata, Bitmap art,
+                                               Bitmap icon) {
+        return new MediaMetadataCompat.Builder(metadata)
+                // set high resolution bitmap in METADATA_KEY_ALBUM_ART. This is used, for
+                // example, on the lockscreen background when the media session is active.
+                .putBitmap(MediaMetadataCompat.METADATA_KEY_ALBUM_ART, art)
+                // set small version of the album art in the DISPLAY_ICON. This is used on
+                // the MediaDescription and thus it should be small to be serialized if
+                // necessary
+                .putBitmap(MediaMetadataCompat.METADATA_KEY_DISPLAY_ICON, icon)
+                .build();
+    }
+
+    /**
+     * Set how many bytes of bitmaps the metadata published to the session may carry.
+     */
+    public void setMetadataBitmapBudget(int bytes) {
+        mMetadataPublisher.setBitmapByteBudget(bytes);
     }
 
     public interface MetadataUpdateListener {
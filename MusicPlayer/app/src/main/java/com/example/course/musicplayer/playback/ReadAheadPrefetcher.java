@@ -0,0 +1,251 @@
+package com.example.course.musicplayer.playback;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.support.v4.media.MediaMetadataCompat;
+
+import com.example.course.musicplayer.model.MusicProvider;
+import com.example.course.musicplayer.model.MusicProviderSource;
+import com.example.course.musicplayer.utils.LogHelper;
+import com.example.course.musicplayer.utils.MediaIDHelper;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Reads the beginning of upcoming tracks ahead of time, so MediaPlayer finds them in the page
+ * cache instead of waiting on slow storage when they start.
+ *
+ * Only the first few seconds of each track are read, estimated from its size and duration.
+ * The bytes read ahead are accounted against a budget: once it is exceeded, the tracks warmed
+ * the longest ago are forgotten, and will be read again if they come up. Reads happen on a
+ * single background thread, and a new request cancels the one in progress.
+ *
+ * Every track start is counted as a hit if it was warmed, and its time to first audio is
+ * recorded, so the effect can be checked in the logs.
+ */
+class ReadAheadPrefetcher {
+
+    private static final String TAG = LogHelper.makeLogTag(ReadAheadPrefetcher.class);
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final int STATS_LOG_INTERVAL = 10;
+
+    private final MusicProvider mMusicProvider;
+    private final ExecutorService mExecutor;
+    // Only used from the executor thread.
+    private final ByteBuffer mReadBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+    // Bytes read ahead for each source, oldest first. Guarded by this.
+    private final Map<String, Long> mWarmed = new LinkedHashMap<>();
+    private long mWarmedBytes;
+    private long mByteBudget;
+    private int mReadAheadSeconds;
+    private Future<?> mPending;
+
+    // Start metrics. Guarded by this.
+    private int mStarts;
+    private int mHits;
+    private long mHitFirstAudioMs;
+    private long mMissFirstAudioMs;
+
+    ReadAheadPrefetcher(MusicProvider musicProvider, long byteBudget, int readAheadSeconds) {
+        mMusicProvider = musicProvider;
+        mByteBudget = byteBudget;
+        mReadAheadSeconds = readAheadSeconds;
+        mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, "ReadAhead");
+            }
+        });
+    }
+
+    synchronized void setByteBudget(long byteBudget) {
+        mByteBudget = byteBudget;
+        trimToBudget();
+    }
+
+    synchronized void setReadAheadSeconds(int seconds) {
+        mReadAheadSeconds = seconds;
+    }
+
+    /**
+     * Start reading ahead the given items, in order, replacing any previous request.
+     *
+     * @param mediaIds hierarchy-aware media IDs of the upcoming items
+     */
+    synchronized void prefetch(List<String> mediaIds) {
+        if (mPending != null) {
+            mPending.cancel(true);
+            mPending = null;
+        }
+        if (mediaIds.isEmpty() || mByteBudget <= 0) {
+            return;
+        }
+        final List<String> pending = new ArrayList<>(mediaIds);
+        mPending = mExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                for (String mediaId : pending) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        return;
+                    }
+                    warm(mediaId);
+                }
+            }
+        });
+    }
+
+    /**
+     * Record that the given item is being started.
+     *
+     * @return true if it had been read ahead.
+     */
+    boolean onTrackStarting(String mediaId) {
+        String source = getSource(mediaId);
+        if (source == null) {
+            return false;
+        }
+        synchronized (this) {
+            Long bytes = mWarmed.remove(source);
+            if (bytes != null) {
+                // MediaPlayer is reading it now, its budget can go to the next tracks.
+                mWarmedBytes -= bytes;
+            }
+            return bytes != null;
+        }
+    }
+
+    /**
+     * Record the time it took from asking for a track to having it ready to play.
+     */
+    synchronized void onFirstAudio(boolean hit, long elapsedMs) {
+        mStarts++;
+        if (hit) {
+            mHits++;
+            mHitFirstAudioMs += elapsedMs;
+        } else {
+            mMissFirstAudioMs += elapsedMs;
+        }
+        LogHelper.d(TAG, "Time to first audio: ", elapsedMs, "ms, read ahead=", hit);
+        if (mStarts % STATS_LOG_INTERVAL == 0) {
+            int misses = mStarts - mHits;
+            LogHelper.i(TAG, "Read-ahead: starts=", mStarts, " hit rate=",
+                    mHits * 100 / mStarts, "% avg first audio hit=",
+                    mHits > 0 ? mHitFirstAudioMs / mHits : 0, "ms miss=",
+                    misses > 0 ? mMissFirstAudioMs / misses : 0, "ms warmed=", mWarmedBytes,
+                    "/", mByteBudget, " bytes");
+        }
+    }
+
+    void shutdown() {
+        synchronized (this) {
+            mWarmed.clear();
+            mWarmedBytes = 0;
+        }
+        mExecutor.shutdownNow();
+    }
+
+    private void warm(String mediaId) {
+        MediaMetadataCompat track = getTrack(mediaId);
+        if (track == null) {
+            return;
+        }
+        String source = track.getString(MusicProviderSource.CUSTOM_METADATA_TRACK_SOURCE);
+        if (source == null) {
+            return;
+        }
+        long durationMs = track.getLong(MediaMetadataCompat.METADATA_KEY_DURATION);
+        long length = new File(source).length();
+        long wanted;
+        synchronized (this) {
+            if (mWarmed.containsKey(source)) {
+                return;
+            }
+            wanted = Math.min(length, mByteBudget);
+            if (durationMs > 0) {
+                wanted = Math.min(wanted, length * mReadAheadSeconds * 1000 / durationMs);
+            }
+        }
+        if (wanted <= 0) {
+            return;
+        }
+
+        long start = SystemClock.elapsedRealtime();
+        long read = 0;
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(source);
+            FileChannel channel = in.getChannel();
+            while (read < wanted) {
+                mReadBuffer.clear();
+                if (wanted - read < mReadBuffer.capacity()) {
+                    mReadBuffer.limit((int) (wanted - read));
+                }
+                int count = channel.read(mReadBuffer);
+                if (count < 0) {
+                    break;
+                }
+                read += count;
+            }
+        } catch (IOException e) {
+            // Also thrown when a newer request interrupts this one.
+            LogHelper.d(TAG, "Read-ahead of ", source, " stopped: ", e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+        if (read < wanted) {
+            return;
+        }
+
+        synchronized (this) {
+            mWarmed.put(source, read);
+            mWarmedBytes += read;
+            trimToBudget();
+        }
+        LogHelper.d(TAG, "Read ahead ", read, " bytes of ", source, " in ",
+                SystemClock.elapsedRealtime() - start, "ms");
+    }
+
+    private void trimToBudget() {
+        Iterator<Map.Entry<String, Long>> it = mWarmed.entrySet().iterator();
+        while (mWarmedBytes > mByteBudget && it.hasNext()) {
+            mWarmedBytes -= it.next().getValue();
+            it.remove();
+        }
+    }
+
+    private String getSource(String mediaId) {
+        MediaMetadataCompat track = getTrack(mediaId);
+        return track != null ?
+                track.getString(MusicProviderSource.CUSTOM_METADATA_TRACK_SOURCE) : null;
+    }
+
+    private MediaMetadataCompat getTrack(String mediaId) {
+        return mMusicProvider.getMusic(MediaIDHelper.extractMusicIDFromMediaID(mediaId));
+    }
+}
@@ -0,0 +1,369 @@
+package com.example.course.musicplayer.playback;
+
+import android.os.Process;
+
+import com.example.course.musicplayer.utils.LogHelper;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Persists what is needed to resume playback after the service is restarted: the playing
+ * queue, the current item and the position in it.
+ *
+ * Two files are kept. The queue file holds the queue title, the media ID of its browse node
+ * and the music ids of its tracks, and is only rewritten when the queue changes. The position
+ * file holds the current index, its music id and the position, and is tagged with the
+ * generation of the queue it refers to. Both are written behind: updates only replace the
+ * pending state in memory, and a background thread writes the latest one a few seconds later,
+ * or right away when {@link #flush()} is called. Every file is written to a temporary file,
+ * synced and renamed over the previous one, and carries a CRC32, so a crash leaves either the
+ * old or the new state, never a mix.
+ */
+public class ResumeStateStore {
+
+    private static final String TAG = LogHelper.makeLogTag(ResumeStateStore.class);
+
+    private static final String QUEUE_FILE_NAME = "resume_queue.bin";
+    private static final String POSITION_FILE_NAME = "resume_position.bin";
+    private static final int QUEUE_MAGIC = 0x4d505251; // "MPRQ"
+    private static final int POSITION_MAGIC = 0x4d505250; // "MPRP"
+    private static final int VERSION = 1;
+
+    private static final long WRITE_BEHIND_DELAY_MS = 5000;
+
+    private final File mQueueFile;
+    private final File mPositionFile;
+    private final ScheduledExecutorService mExecutor;
+
+    // Pending state, guarded by this.
+    private Queue mPendingQueue;
+    private Position mPendingPosition;
+    private boolean mWriteScheduled;
+    private long mGeneration;
+
+    // Write amplification metrics, guarded by this.
+    private int mUpdates;
+    private int mWrites;
+    private long mBytesWritten;
+
+    private final Runnable mWrite = new Runnable() {
+        @Override
+        public void run() {
+            write();
+        }
+    };
+
+    public ResumeStateStore(File dir) {
+        mQueueFile = new File(dir, QUEUE_FILE_NAME);
+        mPositionFile = new File(dir, POSITION_FILE_NAME);
+        mExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, "ResumeState");
+            }
+        });
+    }
+
+    /**
+     * Read the persisted state.
+     *
+     * @return the state, or null if there is none or it is unreadable. The position is only
+     *         restored if it refers to the persisted queue.
+     */
+    public ResumeState read() {
+        long start = System.nanoTime();
+        byte[] queueBytes = readVerified(mQueueFile, QUEUE_MAGIC);
+        if (queueBytes == null) {
+            return null;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(queueBytes));
+            long generation = in.readLong();
+            String title = readString(in);
+            String parentId = readString(in);
+            int count = in.readInt();
+            List<String> musicIds = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                musicIds.add(readString(in));
+            }
+            synchronized (this) {
+                mGeneration = Math.max(mGeneration, generation);
+            }
+
+            int index = 0;
+            long position = 0;
+            byte[] positionBytes = readVerified(mPositionFile, POSITION_MAGIC);
+            if (positionBytes != null) {
+                DataInputStream pin = new DataInputStream(
+                        new ByteArrayInputStream(positionBytes));
+                long positionGeneration = pin.readLong();
+                int savedIndex = pin.readInt();
+                String savedMusicId = readString(pin);
+                long savedPosition = pin.readLong();
+                if (positionGeneration == generation && savedIndex >= 0 &&
+                        savedIndex < count && musicIds.get(savedIndex).equals(savedMusicId)) {
+                    index = savedIndex;
+                    position = savedPosition;
+                }
+            }
+            LogHelper.d(TAG, "Read resume state of ", count, " tracks in ",
+                    (System.nanoTime() - start) / 1000, "us");
+            return new ResumeState(title, parentId, musicIds, index, position);
+        } catch (IOException e) {
+            LogHelper.w(TAG, e, "Could not read resume state");
+            return null;
+        }
+    }
+
+    /**
+     * Record a new playing queue. Its position starts at the first item until
+     * {@link #savePosition} is called.
+     */
+    public synchronized void saveQueue(String title, String parentId, List<String> musicIds) {
+        mGeneration++;
+        mPendingQueue = new Queue(mGeneration, title, parentId,
+                musicIds != null ? new ArrayList<>(musicIds) : Collections.<String>emptyList());
+        mPendingPosition = null;
+        scheduleWrite(WRITE_BEHIND_DELAY_MS);
+    }
+
+    /**
+     * Record the current item of the queue last saved, and the position in it.
+     */
+    public synchronized void savePosition(int index, String musicId, long positionMs) {
+        mUpdates++;
+        mPendingPosition = new Position(mGeneration, index, musicId, positionMs);
+        scheduleWrite(WRITE_BEHIND_DELAY_MS);
+    }
+
+    /**
+     * Write the pending state now, typically because playback paused or stopped.
+     */
+    public synchronized void flush() {
+        if (mPendingQueue != null || mPendingPosition != null) {
+            scheduleWrite(0);
+        }
+    }
+
+    /**
+     * Write the pending state and stop the writer thread.
+     */
+    public void close() {
+        flush();
+        mExecutor.shutdown();
+    }
+
+    private void scheduleWrite(long delayMs) {
+        if (mWriteScheduled && delayMs > 0) {
+            return;
+        }
+        mWriteScheduled = true;
+        mExecutor.schedule(mWrite, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void write() {
+        Queue queue;
+        Position position;
+        synchronized (this) {
+            queue = mPendingQueue;
+            position = mPendingPosition;
+            mPendingQueue = null;
+            mPendingPosition = null;
+            mWriteScheduled = false;
+        }
+        if (queue == null && position == null) {
+            return;
+        }
+        long bytes = 0;
+        try {
+            if (queue != null) {
+                ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(buffer);
+                out.writeLong(queue.generation);
+                writeString(out, queue.title);
+                writeString(out, queue.parentId);
+                out.writeInt(queue.musicIds.size());
+                for (String musicId : queue.musicIds) {
+                    writeString(out, musicId);
+                }
+                out.flush();
+                bytes += writeAtomically(mQueueFile, QUEUE_MAGIC, buffer.toByteArray());
+            }
+            if (position != null) {
+                ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(buffer);
+                out.writeLong(position.generation);
+                out.writeInt(position.index);
+                writeString(out, position.musicId);
+                out.writeLong(position.positionMs);
+                out.flush();
+                bytes += writeAtomically(mPositionFile, POSITION_MAGIC, buffer.toByteArray());
+            }
+        } catch (IOException e) {
+            LogHelper.w(TAG, e, "Could not write resume state");
+        }
+        synchronized (this) {
+            mWrites++;
+            mBytesWritten += bytes;
+            LogHelper.d(TAG, "Wrote resume state: ", bytes, " bytes; ", mUpdates,
+                    " position updates in ", mWrites, " writes, ", mBytesWritten,
+                    " bytes in total");
+        }
+    }
+
+    /**
+     * @return the number of bytes written
+     */
+    private static int writeAtomically(File file, int magic, byte[] payload) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            DataOutputStream data = new DataOutputStream(out);
+            data.writeInt(magic);
+            data.writeInt(VERSION);
+            data.writeLong(crc.getValue());
+            data.writeInt(payload.length);
+            data.write(payload);
+            data.flush();
+            out.getFD().sync();
+        } finally {
+            closeQuietly(out);
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Could not move " + tmp + " into place");
+        }
+        return 4 + 4 + 8 + 4 + payload.length;
+    }
+
+    /**
+     * @return the payload of the file, or null if it is missing, of another format or
+     *         fails its checksum.
+     */
+    private static byte[] readVerified(File file, int magic) {
+        if (!file.isFile()) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(file));
+            if (in.readInt() != magic || in.readInt() != VERSION) {
+                LogHelper.i(TAG, "Ignoring ", file, " with unknown format");
+                return null;
+            }
+            long checksum = in.readLong();
+            int length = in.readInt();
+            if (length < 0 || length > file.length()) {
+                LogHelper.w(TAG, "Ignoring truncated ", file);
+                return null;
+            }
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+            CRC32 crc = new CRC32();
+            crc.update(payload, 0, length);
+            if (crc.getValue() != checksum) {
+                LogHelper.w(TAG, "Ignoring ", file, " with bad checksum");
+                return null;
+            }
+            return payload;
+        } catch (IOException e) {
+            LogHelper.w(TAG, e, "Could not read ", file);
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                LogHelper.w(TAG, e, "Error closing ", closeable);
+            }
+        }
+    }
+
+    /**
+     * State to resume playback from.
+     */
+    public static final class ResumeState {
+        public final String title;
+        public final String parentId;
+        public final List<String> musicIds;
+        public final int index;
+        public final long positionMs;
+
+        ResumeState(String title, String parentId, List<String> musicIds, int index,
+                    long positionMs) {
+            this.title = title;
+            this.parentId = parentId;
+            this.musicIds = musicIds;
+            this.index = index;
+            this.positionMs = positionMs;
+        }
+    }
+
+    private static final class Queue {
+        final long generation;
+        final String title;
+        final String parentId;
+        final List<String> musicIds;
+
+        Queue(long generation, String title, String parentId, List<String> musicIds) {
+            this.generation = generation;
+            this.title = title;
+            this.parentId = parentId;
+            this.musicIds = musicIds;
+        }
+    }
+
+    private static final class Position {
+        final long generation;
+        final int index;
+        final String musicId;
+        final long positionMs;
+
+        Position(long generation, int index, String musicId, long positionMs) {
+            this.generation = generation;
+            this.index = index;
+            this.musicId = musicId;
+            this.positionMs = positionMs;
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package com.example.course.musicplayer.playback;
+
+/**
+ * Runs tasks on the playback thread, now or after a delay.
+ *
+ * Playback components take one instead of a Handler, so that their timing can be driven by
+ * a virtual clock outside of a Looper, as the playback latency tests do.
+ */
+public interface Scheduler {
+
+    /**
+     * Run the task on the playback thread. May be called from any thread.
+     */
+    void post(Runnable task);
+
+    /**
+     * Run the task on the playback thread once the delay has elapsed.
+     */
+    void postDelayed(Runnable task, long delayMs);
+
+    /**
+     * Drop every pending run of the task.
+     */
+    void cancel(Runnable task);
+}
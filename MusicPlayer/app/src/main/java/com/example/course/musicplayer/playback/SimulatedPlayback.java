@@ -0,0 +1,322 @@
+package com.example.course.musicplayer.playback;
+
+import android.support.v4.media.session.MediaSessionCompat;
+import android.support.v4.media.session.PlaybackStateCompat;
+import android.text.TextUtils;
+
+import com.example.course.musicplayer.utils.LogHelper;
+
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Playback that plays nothing, for driving PlaybackManager and QueueManager without a
+ * MediaPlayer or audio focus.
+ *
+ * It goes through the same states as LocalPlayback and reports them the same way, but
+ * preparing and seeking only take the configured time, posted on the given Scheduler, and
+ * every track lasts the same configured duration. Prepares and seeks can be made to fail at a
+ * given rate, which reports an error as a MediaPlayer error would and leaves the item to be
+ * prepared again on the next play. Losing and regaining audio focus can be simulated too.
+ *
+ * Apart from the state and position getters, every method must be called on the thread of the
+ * Scheduler given to the constructor.
+ */
+public class SimulatedPlayback implements Playback {
+
+    private static final String TAG = LogHelper.makeLogTag(SimulatedPlayback.class);
+
+    private static final long DEFAULT_PREPARE_LATENCY_MS = 50;
+    private static final long DEFAULT_SEEK_LATENCY_MS = 10;
+    private static final long DEFAULT_TRACK_DURATION_MS = 3 * 60 * 1000;
+    private static final float PLAYBACK_SPEED = 1.0f;
+
+    private final Scheduler mScheduler;
+    private final Random mRandom;
+    private Playback.Callback mCallback;
+
+    // Written on the playback thread, but read from any thread.
+    private volatile int mState;
+    private volatile String mCurrentMediaId;
+    // Position to start or resume the current item from.
+    private volatile int mCurrentPosition;
+    private final PositionClock mPositionClock = new PositionClock(PLAYBACK_SPEED);
+
+    private long mPrepareLatencyMs = DEFAULT_PREPARE_LATENCY_MS;
+    private long mSeekLatencyMs = DEFAULT_SEEK_LATENCY_MS;
+    private long mTrackDurationMs = DEFAULT_TRACK_DURATION_MS;
+    private float mFailureRate;
+    private boolean mItemPrepared;
+    private boolean mPreparePending;
+    private boolean mSeekPending;
+    private boolean mPlayOnFocusGain;
+
+    private final Runnable mPrepared = new Runnable() {
+        @Override
+        public void run() {
+            mPreparePending = false;
+            if (shouldFail()) {
+                fail("Simulated prepare failure");
+                return;
+            }
+            mItemPrepared = true;
+            startPlaying();
+        }
+    };
+
+    private final Runnable mSeekCompleted = new Runnable() {
+        @Override
+        public void run() {
+            mSeekPending = false;
+            if (shouldFail()) {
+                fail("Simulated seek failure");
+                return;
+            }
+            startPlaying();
+        }
+    };
+
+    private final Runnable mCompleted = new Runnable() {
+        @Override
+        public void run() {
+            LogHelper.d(TAG, "Simulated completion of ", mCurrentMediaId);
+            mPositionClock.freeze();
+            if (mCallback != null) {
+                mCallback.onCompletion();
+            }
+        }
+    };
+
+    /**
+     * @param random source of the injected failures; seed it to replay the same failures
+     */
+    public SimulatedPlayback(Scheduler playbackScheduler, Random random) {
+        this.mScheduler = playbackScheduler;
+        this.mRandom = random;
+        this.mState = PlaybackStateCompat.STATE_NONE;
+    }
+
+    /**
+     * Set how long preparing an item takes, from play to the playing state.
+     */
+    public void setPrepareLatency(long latencyMs) {
+        mPrepareLatencyMs = latencyMs;
+    }
+
+    /**
+     * Set how long a seek takes while playing, from seekTo back to the playing state.
+     */
+    public void setSeekLatency(long latencyMs) {
+        mSeekLatencyMs = latencyMs;
+    }
+
+    /**
+     * Set how long every item plays before it completes.
+     */
+    public void setTrackDuration(long durationMs) {
+        mTrackDurationMs = durationMs;
+    }
+
+    /**
+     * @param rate fraction of prepares and seeks that fail, from 0 (none) to 1 (all)
+     */
+    public void setFailureRate(float rate) {
+        mFailureRate = rate;
+    }
+
+    @Override
+    public void start() {
+    }
+
+    @Override
+    public void stop(boolean notifyListeners) {
+        cancelPending();
+        mItemPrepared = false;
+        mPlayOnFocusGain = false;
+        mState = PlaybackStateCompat.STATE_STOPPED;
+        if (notifyListeners && mCallback != null) {
+            mCallback.onPlaybackStatusChanged(mState);
+        }
+        mPositionClock.freeze();
+        mCurrentPosition = getCurrentStreamPosition();
+    }
+
+    @Override
+    public void setState(int state) {
+        this.mState = state;
+    }
+
+    @Override
+    public int getState() {
+        return mState;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return true;
+    }
+
+    @Override
+    public boolean isPlaying() {
+        return mState == PlaybackStateCompat.STATE_PLAYING ||
+                mState == PlaybackStateCompat.STATE_BUFFERING;
+    }
+
+    @Override
+    public int getCurrentStreamPosition() {
+        return (int) mPositionClock.getPosition();
+    }
+
+    @Override
+    public void setCurrentStreamPosition(int pos) {
+        this.mCurrentPosition = pos;
+        if (!isPlaying()) {
+            mPositionClock.set(pos, false);
+        }
+    }
+
+    @Override
+    public void updateLastKnownStreamPosition() {
+        mCurrentPosition = getCurrentStreamPosition();
+    }
+
+    @Override
+    public void play(MediaSessionCompat.QueueItem item) {
+        String mediaId = item.getDescription().getMediaId();
+        boolean mediaHasChanged = !TextUtils.equals(mediaId, mCurrentMediaId);
+        if (!mediaHasChanged && (mState == PlaybackStateCompat.STATE_PLAYING ||
+                mPreparePending || mSeekPending)) {
+            return;
+        }
+        mPlayOnFocusGain = false;
+        cancelPending();
+        if (mediaHasChanged) {
+            mCurrentMediaId = mediaId;
+            mCurrentPosition = 0;
+            mPositionClock.set(0, false);
+            mItemPrepared = false;
+        }
+        resume();
+    }
+
+    @Override
+    public void setUpcomingItems(List<MediaSessionCompat.QueueItem> items) {
+        // Nothing is prepared ahead: every item takes the full prepare latency.
+    }
+
+    @Override
+    public void pause() {
+        mPlayOnFocusGain = false;
+        cancelPending();
+        if (mState == PlaybackStateCompat.STATE_PLAYING) {
+            mCurrentPosition = getCurrentStreamPosition();
+        }
+        mPositionClock.freeze();
+        mState = PlaybackStateCompat.STATE_PAUSED;
+        if (mCallback != null) {
+            mCallback.onPlaybackStatusChanged(mState);
+        }
+    }
+
+    @Override
+    public void seekTo(int position) {
+        mCurrentPosition = position;
+        mPositionClock.set(position, false);
+        // While preparing, the prepare itself starts from the new position.
+        if (mState == PlaybackStateCompat.STATE_PLAYING || mSeekPending) {
+            mScheduler.cancel(mCompleted);
+            mScheduler.cancel(mSeekCompleted);
+            mState = PlaybackStateCompat.STATE_BUFFERING;
+            mSeekPending = true;
+            mScheduler.postDelayed(mSeekCompleted, mSeekLatencyMs);
+        }
+        if (mCallback != null) {
+            mCallback.onPlaybackStatusChanged(mState);
+        }
+    }
+
+    @Override
+    public void setCurrentMediaId(String mediaId) {
+        this.mCurrentMediaId = mediaId;
+    }
+
+    @Override
+    public String getCurrentMediaId() {
+        return mCurrentMediaId;
+    }
+
+    @Override
+    public void setCallback(Callback callback) {
+        this.mCallback = callback;
+    }
+
+    /**
+     * Simulate losing audio focus without being allowed to duck, as to a phone call: playback
+     * pauses, and resumes on {@link #gainAudioFocus()} if it was playing.
+     */
+    public void loseAudioFocus() {
+        boolean wasPlaying = isPlaying();
+        if (wasPlaying) {
+            pause();
+        }
+        mPlayOnFocusGain = wasPlaying;
+    }
+
+    /**
+     * Simulate gaining audio focus back after {@link #loseAudioFocus()}.
+     */
+    public void gainAudioFocus() {
+        if (mPlayOnFocusGain && mCurrentMediaId != null) {
+            mPlayOnFocusGain = false;
+            resume();
+        }
+    }
+
+    private void resume() {
+        if (mState == PlaybackStateCompat.STATE_PAUSED && mItemPrepared) {
+            startPlaying();
+        } else {
+            mState = PlaybackStateCompat.STATE_BUFFERING;
+            mPreparePending = true;
+            mScheduler.postDelayed(mPrepared, mPrepareLatencyMs);
+            if (mCallback != null) {
+                mCallback.onPlaybackStatusChanged(mState);
+            }
+        }
+    }
+
+    private void startPlaying() {
+        mState = PlaybackStateCompat.STATE_PLAYING;
+        mPositionClock.set(mCurrentPosition, true);
+        long remaining = Math.max(mTrackDurationMs - mCurrentPosition, 0);
+        mScheduler.postDelayed(mCompleted, (long) (remaining / PLAYBACK_SPEED));
+        if (mCallback != null) {
+            mCallback.onPlaybackStatusChanged(mState);
+        }
+    }
+
+    private void fail(String error) {
+        LogHelper.d(TAG, error, " on ", mCurrentMediaId);
+        cancelPending();
+        // As after a MediaPlayer error, the item must be prepared again to be played.
+        mItemPrepared = false;
+        mPositionClock.freeze();
+        mCurrentPosition = getCurrentStreamPosition();
+        mState = PlaybackStateCompat.STATE_ERROR;
+        if (mCallback != null) {
+            mCallback.onError(error);
+        }
+    }
+
+    private boolean shouldFail() {
+        return mFailureRate > 0 && mRandom.nextFloat() < mFailureRate;
+    }
+
+    private void cancelPending() {
+        mScheduler.cancel(mPrepared);
+        mScheduler.cancel(mSeekCompleted);
+        mScheduler.cancel(mCompleted);
+        mPreparePending = false;
+        mSeekPending = false;
+    }
+}
@@ -20,9 +20,11 @@ import android.support.v4.media.MediaMetadataCompat;
 import android.support.v4.media.session.MediaControllerCompat;
 import android.support.v4.media.session.PlaybackStateCompat;
 import android.util.Log;
+import android.util.SparseArray;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.AbsListView;
 import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
 import android.widget.ImageView;
@@ -45,30 +47,55 @@ public class MediaBrowserFragment extends Fragment {
 
     private static final String ARG_MEDIA_ID = "media_id";
 
+    // Children are fetched a page at a time, and the next page is requested once the list is
+    // scrolled to within PREFETCH_DISTANCE items of its end.
+    private static final int PAGE_SIZE = 50;
+    private static final int PREFETCH_DISTANCE = 10;
+
     private BrowseAdapter mBrowserAdapter;
     private String mMediaId;
     private MediaFragmentListener mMediaFragmentListener;
 
+    // Pages received so far, by page number. A page is delivered again whenever the node
+    // changes on the service side.
+    private final SparseArray<List<MediaBrowserCompat.MediaItem>> mPages = new SparseArray<>();
+    private int mRequestedPages;
+    private boolean mLastPageLoaded;
+
     private final MediaBrowserCompat.SubscriptionCallback mSubscriptionCallback =
             new MediaBrowserCompat.SubscriptionCallback() {
                 @Override
                 public void onChildrenLoaded(@NonNull String parentId,
-                                             @NonNull List<MediaBrowserCompat.MediaItem> children) {
+                                             @NonNull List<MediaBrowserCompat.MediaItem> children,
+                                             @NonNull Bundle options) {
                     try {
+                        int page = options.getInt(MediaBrowserCompat.EXTRA_PAGE);
                         LogHelper.d(TAG, "fragment onChildrenLoaded, parentId=" + parentId +
-                                "  count=" + children.size());
-                        mBrowserAdapter.clear();
-                        for (MediaBrowserCompat.MediaItem item : children) {
-                            mBrowserAdapter.add(item);
+                                "  page=" + page + "  count=" + children.size());
+                        if (page >= mRequestedPages) {
+                            // Still subscribed to a page that was past the end of the node.
+                            return;
+                        }
+                        mPages.put(page, children);
+                        if (children.size() < PAGE_SIZE) {
+                            // The node now ends on this page, so the pages after it are
+                            // stale, even when they were delivered before it shrank.
+                            for (int stale = mRequestedPages - 1; stale > page; stale--) {
+                                mPages.remove(stale);
+                            }
+                            mRequestedPages = page + 1;
+                            mLastPageLoaded = true;
+                        } else if (page == mRequestedPages - 1) {
+                            mLastPageLoaded = false;
                         }
-                        mBrowserAdapter.notifyDataSetChanged();
+                        showLoadedPages();
                     } catch (Throwable t) {
                         LogHelper.e(TAG, "Error on childrenloaded", t);
                     }
                 }
 
                 @Override
-                public void onError(@NonNull String id) {
+                public void onError(@NonNull String id, @NonNull Bundle options) {
                     LogHelper.e(TAG, "browse fragment subscription onError, id=" + id);
                     Toast.makeText(getActivity(), R.string.error_loading_media, Toast.LENGTH_LONG).show();
                 }
@@ -118,6 +145,19 @@ public class MediaBrowserFragment extends Fragment {
                 mMediaFragmentListener.onMediaItemSelected(item);
             }
         });
+        listView.setOnScrollListener(new AbsListView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+            }
+
+            @Override
+            public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+                                 int totalItemCount) {
+                if (firstVisibleItem + visibleItemCount >= totalItemCount - PREFETCH_DISTANCE) {
+                    requestNextPage();
+                }
+            }
+        });
         return rootView;
     }
 
@@ -200,7 +240,10 @@ public class MediaBrowserFragment extends Fragment {
         // unsubscribe first.
         mMediaFragmentListener.getMediaBrowser().unsubscribe(mMediaId);
 
-        mMediaFragmentListener.getMediaBrowser().subscribe(mMediaId, mSubscriptionCallback);
+        mPages.clear();
+        mRequestedPages = 0;
+        mLastPageLoaded = false;
+        requestNextPage();
 
         // Add MediaController callback so we can redraw the list when metadata changes:
         MediaControllerCompat controller = ((FragmentActivity) getActivity())
@@ -210,6 +253,30 @@ public class MediaBrowserFragment extends Fragment {
         }
     }
 
+    private void requestNextPage() {
+        MediaBrowserCompat mediaBrowser = mMediaFragmentListener != null ?
+                mMediaFragmentListener.getMediaBrowser() : null;
+        // Wait for the last requested page before asking for another one.
+        if (mLastPageLoaded || mMediaId == null || mPages.size() < mRequestedPages ||
+                mediaBrowser == null || !mediaBrowser.isConnected()) {
+            return;
+        }
+        Bundle options = new Bundle(2);
+        options.putInt(MediaBrowserCompat.EXTRA_PAGE, mRequestedPages++);
+        options.putInt(MediaBrowserCompat.EXTRA_PAGE_SIZE, PAGE_SIZE);
+        mediaBrowser.subscribe(mMediaId, options, mSubscriptionCallback);
+    }
+
+    private void showLoadedPages() {
+        mBrowserAdapter.setNotifyOnChange(false);
+        mBrowserAdapter.clear();
+        // Only show pages up to the first gap, so items never appear out of order.
+        for (int page = 0; page < mRequestedPages && mPages.get(page) != null; page++) {
+            mBrowserAdapter.addAll(mPages.get(page));
+        }
+        mBrowserAdapter.notifyDataSetChanged();
+    }
+
     private void updateTitle() {
         if (MediaIDHelper.MEDIA_ID_ROOT.equals(mMediaId) &&
                 MediaIDHelper.MEDIA_ID_MUSICS_BY_ALBUM.equals(mMediaId)) {
@@ -4,11 +4,13 @@ package com.example.course.musicplayer.ui;
 import android.app.Activity;
 import android.content.Context;
 import android.content.res.ColorStateList;
+import android.graphics.Bitmap;
 import android.graphics.drawable.AnimationDrawable;
 import android.graphics.drawable.Drawable;
 import android.support.v4.content.ContextCompat;
 import android.support.v4.graphics.drawable.DrawableCompat;
 import android.support.v4.media.MediaDescriptionCompat;
+import android.text.TextUtils;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -16,6 +18,7 @@ import android.widget.ImageView;
 import android.widget.TextView;
 
 import com.example.course.musicplayer.R;
+import com.example.course.musicplayer.utils.AlbumArtCache;
 
 public class MediaItemViewHolder {
     static final int STATE_INVALID = -1;
@@ -31,6 +34,8 @@ public class MediaItemViewHolder {
     ImageView mImageView;
     TextView mTitleView;
     TextView mDescriptionView;
+    // Art shown, or being fetched, in place of the play icon of a playable item.
+    String mArtUrl;
 
 
     static View setupView(Activity activity, View convertView, ViewGroup parent,
@@ -61,15 +66,33 @@ public class MediaItemViewHolder {
         holder.mTitleView.setText(description.getTitle());
         holder.mDescriptionView.setText(description.getSubtitle());
 
+        // A recycled view may show the art of another item, even in the same state.
+        String artUrl = description.getIconUri() != null ?
+                description.getIconUri().toString() : null;
+        if (!TextUtils.equals(artUrl, holder.mArtUrl)) {
+            holder.mArtUrl = artUrl;
+            cachedState = STATE_INVALID;
+        }
+
         // If the state of convertView is different, we need to adapt the view to the
         // new state.
         if (cachedState == null || cachedState != state) {
+            holder.mImageView.setImageTintList(sColorStateNotPlaying);
             switch (state) {
                 case STATE_PLAYABLE:
-                    Drawable pauseDrawable = ContextCompat.getDrawable(activity,
-                            R.mipmap.ic_play_arrow_black_36dp);
-                    DrawableCompat.setTintList(pauseDrawable, sColorStateNotPlaying);
-                    holder.mImageView.setImageDrawable(pauseDrawable);
+                    Bitmap art = artUrl != null ?
+                            AlbumArtCache.getInstance(activity).getIconImage(artUrl) : null;
+                    if (art != null) {
+                        showArt(holder, art);
+                    } else {
+                        Drawable pauseDrawable = ContextCompat.getDrawable(activity,
+                                R.mipmap.ic_play_arrow_black_36dp);
+                        DrawableCompat.setTintList(pauseDrawable, sColorStateNotPlaying);
+                        holder.mImageView.setImageDrawable(pauseDrawable);
+                        if (artUrl != null) {
+                            fetchArt(activity, holder, convertView, artUrl);
+                        }
+                    }
                     holder.mImageView.setVisibility(View.VISIBLE);
                     break;
                 case STATE_PLAYING:
@@ -95,6 +118,26 @@ public class MediaItemViewHolder {
         return convertView;
     }
 
+    private static void fetchArt(Context context, final MediaItemViewHolder holder,
+                                 final View view, String artUrl) {
+        AlbumArtCache.getInstance(context).fetch(artUrl, new AlbumArtCache.FetchListener() {
+            @Override
+            public void onFetched(String artUrl, Bitmap bigImage, Bitmap iconImage) {
+                // The view may have been recycled for another item meanwhile.
+                if (artUrl.equals(holder.mArtUrl) && Integer.valueOf(STATE_PLAYABLE)
+                        .equals(view.getTag(R.id.tag_mediaitem_state_cache))) {
+                    showArt(holder, iconImage);
+                }
+            }
+        });
+    }
+
+    private static void showArt(MediaItemViewHolder holder, Bitmap art) {
+        // The view is tinted for the state icons, which would paint over the art.
+        holder.mImageView.setImageTintList(null);
+        holder.mImageView.setImageBitmap(art);
+    }
+
     static private void initializeColorStateLists(Context ctx) {
         sColorStateNotPlaying = ColorStateList.valueOf(ctx.getResources().getColor(
                 R.color.media_item_icon_not_playing));
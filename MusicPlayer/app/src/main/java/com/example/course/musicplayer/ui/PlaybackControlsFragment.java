@@ -20,6 +20,7 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import com.example.course.musicplayer.R;
+import com.example.course.musicplayer.utils.AlbumArtCache;
 import com.example.course.musicplayer.utils.LogHelper;
 
 /**
@@ -140,16 +141,35 @@ public class PlaybackControlsFragment extends Fragment {
         if (!TextUtils.equals(artUrl, mArtUrl)) {
             mArtUrl = artUrl;
             Bitmap art = metadata.getDescription().getIconBitmap();
-//            AlbumArtCache cache = AlbumArtCache.getInstance();
-//            if (art == null) {
-//                art = cache.getIconImage(mArtUrl);
-//            }
+            AlbumArtCache cache = AlbumArtCache.getInstance(getActivity());
+            if (art == null && mArtUrl != null) {
+                art = cache.getIconImage(mArtUrl);
+            }
             if (art != null) {
                 mAlbumArt.setImageBitmap(art);
+            } else {
+                mAlbumArt.setImageResource(R.mipmap.ic_default_art);
+                if (mArtUrl != null) {
+                    fetchImageAsync(mArtUrl);
+                }
             }
         }
     }
 
+    private void fetchImageAsync(String artUrl) {
+        AlbumArtCache.getInstance(getActivity()).fetch(artUrl,
+                new AlbumArtCache.FetchListener() {
+                    @Override
+                    public void onFetched(String artUrl, Bitmap bigImage, Bitmap iconImage) {
+                        // sanity check, in case a new fetch request has been done while
+                        // the previous hasn't yet returned:
+                        if (getActivity() != null && TextUtils.equals(artUrl, mArtUrl)) {
+                            mAlbumArt.setImageBitmap(iconImage);
+                        }
+                    }
+                });
+    }
+
     public void setExtraInfo(String extraInfo) {
         if (extraInfo == null) {
             mExtraInfo.setVisibility(View.GONE);
@@ -0,0 +1,257 @@
+package com.example.course.musicplayer.utils;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.ParcelFileDescriptor;
+import android.os.Process;
+import android.util.LruCache;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Loads album art from content URIs (such as the MediaStore album art of a track) and keeps
+ * it in memory, shared by the playback service and the UI.
+ *
+ * Every art is decoded twice over: a large version, subsampled with inSampleSize to about
+ * the screen size, and a small icon scaled from it. Decoding happens on background threads;
+ * requests for an art already being decoded wait for that decode instead of starting another.
+ * Both versions are kept in an LRU cache bounded by their size in bytes. Arts that failed to
+ * load are remembered too, so missing art is not looked for again on every track change.
+ */
+public final class AlbumArtCache {
+
+    private static final String TAG = LogHelper.makeLogTag(AlbumArtCache.class);
+
+    private static final int MAX_ALBUM_ART_CACHE_SIZE = 12 * 1024 * 1024;  // 12 MB
+    private static final int MAX_ART_WIDTH = 800;  // pixels
+    private static final int MAX_ART_HEIGHT = 480;  // pixels
+
+    // Resolution reasonable for carrying around as an icon (generally in
+    // MediaDescription.getIconBitmap). This should not be bigger than necessary, because
+    // the MediaDescription object should be lightweight. If you set it too high and try to
+    // serialize the MediaDescription, you may get FAILED BINDER TRANSACTION errors.
+    private static final int MAX_ART_WIDTH_ICON = 128;  // pixels
+    private static final int MAX_ART_HEIGHT_ICON = 128;  // pixels
+
+    private static final int BIG_BITMAP_INDEX = 0;
+    private static final int ICON_BITMAP_INDEX = 1;
+
+    private static final int DECODE_THREADS = 2;
+    private static final int MISSING_CACHE_SIZE = 256;
+
+    private static AlbumArtCache sInstance;
+
+    private final ContentResolver mContentResolver;
+    private final LruCache<String, Bitmap[]> mCache;
+    private final LruCache<String, Boolean> mMissing = new LruCache<>(MISSING_CACHE_SIZE);
+    // Listeners waiting for each art being decoded. Guarded by itself.
+    private final Map<String, List<Delivery>> mInFlight = new HashMap<>();
+    private final ThreadPoolExecutor mExecutor;
+
+    public static synchronized AlbumArtCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new AlbumArtCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private AlbumArtCache(Context context) {
+        mContentResolver = context.getContentResolver();
+        // Holds no more than MAX_ALBUM_ART_CACHE_SIZE bytes, bounded by maxmemory/4 and
+        // Integer.MAX_VALUE:
+        int maxSize = Math.min(MAX_ALBUM_ART_CACHE_SIZE,
+                (int) (Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / 4)));
+        mCache = new LruCache<String, Bitmap[]>(maxSize) {
+            @Override
+            protected int sizeOf(String key, Bitmap[] value) {
+                return value[BIG_BITMAP_INDEX].getByteCount()
+                        + value[ICON_BITMAP_INDEX].getByteCount();
+            }
+        };
+        mExecutor = new ThreadPoolExecutor(DECODE_THREADS, DECODE_THREADS, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        return new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                r.run();
+                            }
+                        }, "AlbumArt #" + mCount.incrementAndGet());
+                    }
+                });
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    public Bitmap getBigImage(String artUrl) {
+        Bitmap[] result = mCache.get(artUrl);
+        return result == null ? null : result[BIG_BITMAP_INDEX];
+    }
+
+    public Bitmap getIconImage(String artUrl) {
+        Bitmap[] result = mCache.get(artUrl);
+        return result == null ? null : result[ICON_BITMAP_INDEX];
+    }
+
+    /**
+     * Load the art at the given URI, unless it is already cached or known to be missing.
+     * The listener is called on the looper of the calling thread, or on the main thread if
+     * the calling thread has none.
+     */
+    public void fetch(final String artUrl, final FetchListener listener) {
+        Bitmap[] bitmaps = mCache.get(artUrl);
+        if (bitmaps != null) {
+            LogHelper.d(TAG, "getOrFetch: album art is in cache, using it ", artUrl);
+            listener.onFetched(artUrl, bitmaps[BIG_BITMAP_INDEX], bitmaps[ICON_BITMAP_INDEX]);
+            return;
+        }
+        if (mMissing.get(artUrl) != null) {
+            listener.onError(artUrl, null);
+            return;
+        }
+
+        Looper looper = Looper.myLooper();
+        Delivery delivery = new Delivery(new Handler(looper != null ? looper :
+                Looper.getMainLooper()), listener);
+        synchronized (mInFlight) {
+            List<Delivery> waiting = mInFlight.get(artUrl);
+            if (waiting != null) {
+                LogHelper.d(TAG, "getOrFetch: already decoding ", artUrl);
+                waiting.add(delivery);
+                return;
+            }
+            waiting = new ArrayList<>();
+            waiting.add(delivery);
+            mInFlight.put(artUrl, waiting);
+        }
+
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Bitmap[] bitmaps = null;
+                Exception error = null;
+                try {
+                    bitmaps = decode(Uri.parse(artUrl));
+                } catch (IOException | RuntimeException e) {
+                    error = e;
+                }
+                if (bitmaps != null) {
+                    mCache.put(artUrl, bitmaps);
+                    LogHelper.d(TAG, "Decoded ", artUrl, "; cache size=", mCache.size(),
+                            "/", mCache.maxSize(), " bytes");
+                } else if (error == null) {
+                    // There is no art, or it cannot be decoded. A failure to read it may be
+                    // transient, so it is tried again on the next fetch.
+                    mMissing.put(artUrl, Boolean.TRUE);
+                }
+                List<Delivery> waiting;
+                synchronized (mInFlight) {
+                    waiting = mInFlight.remove(artUrl);
+                }
+                for (Delivery delivery : waiting) {
+                    delivery.deliver(artUrl, bitmaps, error);
+                }
+            }
+        });
+    }
+
+    private Bitmap[] decode(Uri uri) throws IOException {
+        ParcelFileDescriptor pfd = mContentResolver.openFileDescriptor(uri, "r");
+        if (pfd == null) {
+            return null;
+        }
+        try {
+            FileDescriptor fd = pfd.getFileDescriptor();
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeFileDescriptor(fd, null, options);
+            if (options.outWidth <= 0 || options.outHeight <= 0) {
+                return null;
+            }
+            options.inJustDecodeBounds = false;
+            options.inSampleSize = computeSampleSize(options.outWidth, options.outHeight,
+                    MAX_ART_WIDTH, MAX_ART_HEIGHT);
+            Bitmap bitmap = BitmapFactory.decodeFileDescriptor(fd, null, options);
+            if (bitmap == null) {
+                return null;
+            }
+            Bitmap icon = scaleBitmap(bitmap, MAX_ART_WIDTH_ICON, MAX_ART_HEIGHT_ICON);
+            return new Bitmap[] {bitmap, icon};
+        } finally {
+            pfd.close();
+        }
+    }
+
+    /**
+     * @return the largest power of two that keeps the decoded image at least as large as
+     *         the target size, as BitmapFactory only samples by powers of two.
+     */
+    private static int computeSampleSize(int width, int height, int maxWidth, int maxHeight) {
+        int sampleSize = 1;
+        while (width / (sampleSize * 2) >= maxWidth && height / (sampleSize * 2) >= maxHeight) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    private static Bitmap scaleBitmap(Bitmap src, int maxWidth, int maxHeight) {
+        double scaleFactor = Math.min(
+                ((double) maxWidth) / src.getWidth(), ((double) maxHeight) / src.getHeight());
+        if (scaleFactor >= 1) {
+            return src;
+        }
+        return Bitmap.createScaledBitmap(src,
+                (int) (src.getWidth() * scaleFactor), (int) (src.getHeight() * scaleFactor),
+                false);
+    }
+
+    public static abstract class FetchListener {
+        public abstract void onFetched(String artUrl, Bitmap bigImage, Bitmap iconImage);
+
+        public void onError(String artUrl, Exception e) {
+            LogHelper.d(TAG, "AlbumArtFetchListener: no art for ", artUrl, " ", e);
+        }
+    }
+
+    private static final class Delivery {
+        final Handler mHandler;
+        final FetchListener mListener;
+
+        Delivery(Handler handler, FetchListener listener) {
+            mHandler = handler;
+            mListener = listener;
+        }
+
+        void deliver(final String artUrl, final Bitmap[] bitmaps, final Exception error) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (bitmaps != null) {
+                        mListener.onFetched(artUrl, bitmaps[BIG_BITMAP_INDEX],
+                                bitmaps[ICON_BITMAP_INDEX]);
+                    } else {
+                        mListener.onError(artUrl, error);
+                    }
+                }
+            });
+        }
+    }
+}
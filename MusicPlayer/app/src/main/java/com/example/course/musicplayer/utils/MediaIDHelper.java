@@ -3,8 +3,6 @@ package com.example.course.musicplayer.utils;
 import android.support.annotation.NonNull;
 import android.util.Log;
 
-import java.util.Arrays;
-
 /**
  * Utility class to help on queue related tasks.
  */
@@ -14,10 +12,15 @@ public class MediaIDHelper {
     public static final String MEDIA_ID_ROOT = "__ROOT__";
     public static final String MEDIA_ID_MUSICS_BY_GENRE = "__BY_GENRE__";
     public static final String MEDIA_ID_MUSICS_BY_ALBUM = "__BY_ALBUM__";
+    public static final String MEDIA_ID_MUSICS_BY_ARTIST = "__BY_ARTIST__";
+    public static final String MEDIA_ID_MUSICS_BY_YEAR = "__BY_YEAR__";
+    public static final String MEDIA_ID_MUSICS_BY_FOLDER = "__BY_FOLDER__";
     public static final String MEDIA_ID_MUSICS_BY_SEARCH = "__BY_SEARCH__";
 
     private static final char CATEGORY_SEPARATOR = '/';
     private static final char LEAF_SEPARATOR = '|';
+    private static final char ESCAPE = '%';
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
 
     /**
      * Create a String value that represents a playable or a browsable media.
@@ -36,7 +39,7 @@ public class MediaIDHelper {
      * @return a hierarchy-aware media ID
      */
     public static String createMediaID(String musicID, String... categories) {
-        StringBuilder sb = new StringBuilder();
+        StringBuilder sb = new StringBuilder(32);
         if (categories != null) {
             for (int i=0; i < categories.length; i++) {
                 if (!isValidCategory(categories[i])) {
@@ -72,11 +75,7 @@ public class MediaIDHelper {
      * @return musicID
      */
     public static String extractMusicIDFromMediaID(@NonNull String mediaID) {
-        int pos = mediaID.indexOf(LEAF_SEPARATOR);
-        if (pos >= 0) {
-            return mediaID.substring(pos+1);
-        }
-        return null;
+        return MediaId.parse(mediaID).getMusicId();
     }
 
     /**
@@ -88,35 +87,69 @@ public class MediaIDHelper {
      * @param mediaID that contains a category and categoryValue.
      */
     public static @NonNull String[] getHierarchy(@NonNull String mediaID) {
-        int pos = mediaID.indexOf(LEAF_SEPARATOR);
-        if (pos >= 0) {
-            mediaID = mediaID.substring(0, pos);
-        }
-        return mediaID.split(String.valueOf(CATEGORY_SEPARATOR));
+        return MediaId.parse(mediaID).getHierarchy();
     }
 
     public static String extractBrowseCategoryValueFromMediaID(@NonNull String mediaID) {
-        String[] hierarchy = getHierarchy(mediaID);
-        if (hierarchy.length == 2) {
-            Log.v("Nick" , "extract browse gategrory is : " + hierarchy[1]);
-            return hierarchy[1];
+        MediaId parsed = MediaId.parse(mediaID);
+        if (parsed.getHierarchyLength() == 2) {
+            Log.v("Nick" , "extract browse gategrory is : " + parsed.getCategory(1));
+            return decodeCategoryValue(parsed.getCategory(1));
         }
         return null;
     }
 
+    /**
+     * Escape a free-form value (an artist name, a folder path, ...) so it can be used as a
+     * category in a media ID. Only the separators and the escape character itself are
+     * replaced, so most values are returned as is.
+     */
+    public static String encodeCategoryValue(@NonNull String value) {
+        if (value.indexOf(CATEGORY_SEPARATOR) < 0 && value.indexOf(LEAF_SEPARATOR) < 0 &&
+                value.indexOf(ESCAPE) < 0) {
+            return value;
+        }
+        StringBuilder sb = new StringBuilder(value.length() + 8);
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == CATEGORY_SEPARATOR || c == LEAF_SEPARATOR || c == ESCAPE) {
+                sb.append(ESCAPE).append(HEX_DIGITS[c >> 4]).append(HEX_DIGITS[c & 0xf]);
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Reverse {@link #encodeCategoryValue(String)}.
+     */
+    public static String decodeCategoryValue(@NonNull String value) {
+        if (value.indexOf(ESCAPE) < 0) {
+            return value;
+        }
+        StringBuilder sb = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == ESCAPE && i + 2 < value.length()) {
+                int hi = Character.digit(value.charAt(i + 1), 16);
+                int lo = Character.digit(value.charAt(i + 2), 16);
+                if (hi >= 0 && lo >= 0) {
+                    sb.append((char) (hi << 4 | lo));
+                    i += 2;
+                    continue;
+                }
+            }
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
     public static boolean isBrowseable(@NonNull String mediaID) {
         return mediaID.indexOf(LEAF_SEPARATOR) < 0;
     }
 
     public static String getParentMediaID(@NonNull String mediaID) {
-        String[] hierarchy = getHierarchy(mediaID);
-        if (!isBrowseable(mediaID)) {
-            return createMediaID(null, hierarchy);
-        }
-        if (hierarchy.length <= 1) {
-            return MEDIA_ID_ROOT;
-        }
-        String[] parentHierarchy = Arrays.copyOf(hierarchy, hierarchy.length-1);
-        return createMediaID(null, parentHierarchy);
+        return MediaId.parse(mediaID).getParentId();
     }
 }
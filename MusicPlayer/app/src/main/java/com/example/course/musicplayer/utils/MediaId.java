@@ -0,0 +1,153 @@
+package com.example.course.musicplayer.utils;
+
+import android.support.annotation.NonNull;
+import android.util.LruCache;
+
+/**
+ * Parsed form of a hierarchy-aware media ID, as built by
+ * {@link MediaIDHelper#createMediaID(String, String...)}.
+ *
+ * The same IDs are parsed over and over while browsing and queueing, so instances are interned:
+ * {@link #parse(String)} returns the cached instance for an ID seen recently, and the hierarchy
+ * and music ID are split only once per instance. Parsing does not use regular expressions.
+ */
+public final class MediaId {
+
+    private static final char CATEGORY_SEPARATOR = '/';
+    private static final char LEAF_SEPARATOR = '|';
+    private static final int INTERN_CACHE_SIZE = 1024;
+
+    private static final LruCache<String, MediaId> sInterned =
+            new LruCache<>(INTERN_CACHE_SIZE);
+
+    private final String mValue;
+    // The browsable part of the ID, ie the whole ID without its music ID.
+    private final String mHierarchyId;
+    private final String[] mHierarchy;
+    private final String mMusicId;
+    private String mParentId;
+
+    private MediaId(String value) {
+        mValue = value;
+        int leaf = value.indexOf(LEAF_SEPARATOR);
+        if (leaf >= 0) {
+            mHierarchyId = value.substring(0, leaf);
+            mMusicId = value.substring(leaf + 1);
+        } else {
+            mHierarchyId = value;
+            mMusicId = null;
+        }
+        mHierarchy = split(mHierarchyId);
+    }
+
+    /**
+     * @return the parsed media ID. Repeated calls with an equal ID usually return the same
+     *         instance without allocating.
+     */
+    public static MediaId parse(@NonNull String mediaId) {
+        MediaId parsed = sInterned.get(mediaId);
+        if (parsed == null) {
+            parsed = new MediaId(mediaId);
+            sInterned.put(mediaId, parsed);
+        }
+        return parsed;
+    }
+
+    private static String[] split(String hierarchyId) {
+        int count = 1;
+        for (int i = 0; i < hierarchyId.length(); i++) {
+            if (hierarchyId.charAt(i) == CATEGORY_SEPARATOR) {
+                count++;
+            }
+        }
+        String[] hierarchy = new String[count];
+        int start = 0;
+        for (int i = 0; i < count - 1; i++) {
+            int end = hierarchyId.indexOf(CATEGORY_SEPARATOR, start);
+            hierarchy[i] = hierarchyId.substring(start, end);
+            start = end + 1;
+        }
+        hierarchy[count - 1] = hierarchyId.substring(start);
+        return hierarchy;
+    }
+
+    /**
+     * @return the unique music ID, or null for browsable items.
+     */
+    public String getMusicId() {
+        return mMusicId;
+    }
+
+    public boolean isBrowseable() {
+        return mMusicId == null;
+    }
+
+    /**
+     * @return the media ID of the browsable node this ID belongs to, which is the ID itself for
+     *         browsable items.
+     */
+    public String getHierarchyId() {
+        return mHierarchyId;
+    }
+
+    public int getHierarchyLength() {
+        return mHierarchy.length;
+    }
+
+    public String getCategory(int level) {
+        return mHierarchy[level];
+    }
+
+    /**
+     * @return a copy of the browsing hierarchy.
+     */
+    public String[] getHierarchy() {
+        return mHierarchy.clone();
+    }
+
+    /**
+     * @return true if both IDs were selected from the same browse node.
+     */
+    public boolean isSameHierarchy(@NonNull MediaId other) {
+        return mHierarchyId.equals(other.mHierarchyId);
+    }
+
+    /**
+     * @return the media ID of a playable child of this browsable node.
+     */
+    public String childId(@NonNull String musicId) {
+        return new StringBuilder(mHierarchyId.length() + 1 + musicId.length())
+                .append(mHierarchyId).append(LEAF_SEPARATOR).append(musicId).toString();
+    }
+
+    public String getParentId() {
+        String parentId = mParentId;
+        if (parentId == null) {
+            if (!isBrowseable()) {
+                parentId = mHierarchyId;
+            } else if (mHierarchy.length <= 1) {
+                parentId = MediaIDHelper.MEDIA_ID_ROOT;
+            } else {
+                parentId = mHierarchyId.substring(0,
+                        mHierarchyId.lastIndexOf(CATEGORY_SEPARATOR));
+            }
+            mParentId = parentId;
+        }
+        return parentId;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof MediaId && mValue.equals(((MediaId) o).mValue);
+    }
+
+    @Override
+    public int hashCode() {
+        return mValue.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return mValue;
+    }
+}
@@ -1,14 +1,12 @@
 package com.example.course.musicplayer.utils;
 
-import android.support.v4.media.MediaMetadataCompat;
-import android.support.v4.media.session.MediaSessionCompat;
+import android.os.Bundle;
+import android.provider.MediaStore;
 
 import com.example.course.musicplayer.model.MusicProvider;
 
-import java.util.ArrayList;
 import java.util.List;
 
-import static com.example.course.musicplayer.utils.MediaIDHelper.MEDIA_ID_MUSICS_BY_GENRE;
 import static com.example.course.musicplayer.utils.MediaIDHelper.MEDIA_ID_MUSICS_BY_SEARCH;
 
 /**
@@ -20,86 +18,59 @@ public class QueueHelper {
 
     private static final int RANDOM_QUEUE_SIZE = 10;
 
-    public static List<MediaSessionCompat.QueueItem> getPlayingQueue(String mediaId,
-                                                                     MusicProvider musicProvider) {
+    /**
+     * @return the music ids of the tracks to queue when a track of the given browse node is
+     *         played, or null if no queue can be built for it.
+     */
+    public static List<String> getPlayingQueue(String mediaId, MusicProvider musicProvider) {
 
         // extract the browsing hierarchy from the media ID:
-        String[] hierarchy = MediaIDHelper.getHierarchy(mediaId);
+        MediaId parsed = MediaId.parse(mediaId);
 
-        if (hierarchy.length != 2) {
+        if (parsed.getHierarchyLength() != 2) {
             LogHelper.e(TAG, "Could not build a playing queue for this mediaId: ", mediaId);
             return null;
         }
 
-        String categoryType = hierarchy[0];
-        String categoryValue = hierarchy[1];
+        String categoryType = parsed.getCategory(0);
+        String categoryValue = parsed.getCategory(1);
         LogHelper.d(TAG, "Creating playing queue for ", categoryType, ",  ", categoryValue);
 
-        Iterable<MediaMetadataCompat> tracks = null;
-        // This sample only supports genre and by_search category types.
-        if (categoryType.equals(MEDIA_ID_MUSICS_BY_GENRE)) {
-            tracks = musicProvider.getMusicsByAlbum(categoryValue);
-        }
+        // Every browse category (album, artist, genre, year, folder) is served by an index of
+        // the provider.
+        List<String> musicIds = musicProvider.getMusicIdsByCategory(categoryType, categoryValue);
 
-        if (tracks == null) {
-            LogHelper.e(TAG, "Unrecognized category type: ", categoryType, " for media ", mediaId);
+        if (musicIds.isEmpty()) {
+            LogHelper.e(TAG, "No tracks for category type: ", categoryType, " for media ", mediaId);
             return null;
         }
-
-        return convertToQueue(tracks, hierarchy[0], hierarchy[1]);
-    }
-
-
-    public static int getMusicIndexOnQueue(Iterable<MediaSessionCompat.QueueItem> queue,
-             String mediaId) {
-        int index = 0;
-        for (MediaSessionCompat.QueueItem item : queue) {
-            if (mediaId.equals(item.getDescription().getMediaId())) {
-                return index;
-            }
-            index++;
-        }
-        return -1;
+        return musicIds;
     }
 
-    public static int getMusicIndexOnQueue(Iterable<MediaSessionCompat.QueueItem> queue,
-             long queueId) {
-        int index = 0;
-        for (MediaSessionCompat.QueueItem item : queue) {
-            if (queueId == item.getQueueId()) {
-                return index;
+    /**
+     * Build the browse node of a voice or text search. Structured extras (artist, album,
+     * title) sent along with the query are folded into it, since every term is matched
+     * against all three fields anyway.
+     *
+     * @return the media ID of the search node, whose tracks can be queued with
+     *         {@link #getPlayingQueue(String, MusicProvider)}.
+     */
+    public static String getSearchMediaId(String query, Bundle queryParams) {
+
+        LogHelper.d(TAG, "Creating playing queue for musics from search: ", query,
+                " params=", queryParams);
+
+        StringBuilder terms = new StringBuilder(query != null ? query : "");
+        if (queryParams != null) {
+            for (String key : new String[] {MediaStore.EXTRA_MEDIA_ARTIST,
+                    MediaStore.EXTRA_MEDIA_ALBUM, MediaStore.EXTRA_MEDIA_TITLE}) {
+                String value = queryParams.getString(key);
+                if (value != null && (query == null || !query.contains(value))) {
+                    terms.append(' ').append(value);
+                }
             }
-            index++;
         }
-        return -1;
-    }
-
-    private static List<MediaSessionCompat.QueueItem> convertToQueue(
-            Iterable<MediaMetadataCompat> tracks, String... categories) {
-        List<MediaSessionCompat.QueueItem> queue = new ArrayList<>();
-        int count = 0;
-        for (MediaMetadataCompat track : tracks) {
-
-            // We create a hierarchy-aware mediaID, so we know what the queue is about by looking
-            // at the QueueItem media IDs.
-            String hierarchyAwareMediaID = MediaIDHelper.createMediaID(
-                    track.getDescription().getMediaId(), categories);
-
-            MediaMetadataCompat trackCopy = new MediaMetadataCompat.Builder(track)
-                    .putString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID, hierarchyAwareMediaID)
-                    .build();
-
-            // We don't expect queues to change after created, so we use the item index as the
-            // queueId. Any other number unique in the queue would work.
-            MediaSessionCompat.QueueItem item = new MediaSessionCompat.QueueItem(
-                    trackCopy.getDescription(), count++);
-            queue.add(item);
-        }
-        return queue;
-
-    }
-
-    public static boolean isIndexPlayable(int index, List<MediaSessionCompat.QueueItem> queue) {
-        return (queue != null && index >= 0 && index < queue.size());
+        return MediaIDHelper.createMediaID(null, MEDIA_ID_MUSICS_BY_SEARCH,
+                MediaIDHelper.encodeCategoryValue(terms.toString().trim()));
     }
 }
@@ -0,0 +1,136 @@
+package com.example.course.musicplayer.model;
+
+import android.support.v4.media.MediaBrowserCompat.MediaItem;
+import android.support.v4.media.MediaDescriptionCompat;
+
+import com.example.course.musicplayer.BuildConfig;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+// Robolectric provides the LruCache backing the cache.
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class BrowseCacheTest {
+
+    private static final String ROCK = "__BY_GENRE__/Rock";
+    private static final String JAZZ = "__BY_GENRE__/Jazz";
+    private static final String SEARCH = "__BY_SEARCH__/queen";
+    private static final int PAGE_SIZE = 20;
+
+    private BrowseCache mCache;
+
+    @Before
+    public void setUp() {
+        mCache = new BrowseCache(100);
+    }
+
+    @Test
+    public void getsPagesPutUnderCurrentGeneration() {
+        List<MediaItem> items = items(3);
+        mCache.put(ROCK, 0, PAGE_SIZE, mCache.getGeneration(), items);
+
+        assertSame(items, mCache.get(ROCK, 0, PAGE_SIZE));
+        assertNull(mCache.get(ROCK, 1, PAGE_SIZE));
+        assertNull(mCache.get(ROCK, 0, PAGE_SIZE * 2));
+        assertNull(mCache.get(JAZZ, 0, PAGE_SIZE));
+    }
+
+    @Test
+    public void dropsPagesBuiltBeforeAnInvalidation() {
+        int generation = mCache.getGeneration();
+        mCache.invalidate(Collections.singleton(JAZZ));
+        mCache.put(ROCK, 0, PAGE_SIZE, generation, items(3));
+        assertNull(mCache.get(ROCK, 0, PAGE_SIZE));
+
+        generation = mCache.getGeneration();
+        mCache.invalidatePrefix("__BY_SEARCH__");
+        mCache.put(ROCK, 0, PAGE_SIZE, generation, items(3));
+        assertNull(mCache.get(ROCK, 0, PAGE_SIZE));
+
+        generation = mCache.getGeneration();
+        mCache.invalidateAll();
+        mCache.put(ROCK, 0, PAGE_SIZE, generation, items(3));
+        assertNull(mCache.get(ROCK, 0, PAGE_SIZE));
+
+        mCache.put(ROCK, 0, PAGE_SIZE, mCache.getGeneration(), items(3));
+        assertNotNull(mCache.get(ROCK, 0, PAGE_SIZE));
+    }
+
+    @Test
+    public void everyInvalidationBumpsTheGeneration() {
+        int generation = mCache.getGeneration();
+        mCache.invalidate(Collections.<String>emptySet());
+        assertTrue(mCache.getGeneration() > generation);
+        generation = mCache.getGeneration();
+        mCache.invalidatePrefix(SEARCH);
+        assertTrue(mCache.getGeneration() > generation);
+        generation = mCache.getGeneration();
+        mCache.invalidateAll();
+        assertTrue(mCache.getGeneration() > generation);
+    }
+
+    @Test
+    public void invalidateDropsEveryPageOfGivenNodesOnly() {
+        putCurrent(ROCK, 0);
+        putCurrent(ROCK, 1);
+        putCurrent(JAZZ, 0);
+
+        mCache.invalidate(Collections.singleton(ROCK));
+
+        assertNull(mCache.get(ROCK, 0, PAGE_SIZE));
+        assertNull(mCache.get(ROCK, 1, PAGE_SIZE));
+        assertNotNull(mCache.get(JAZZ, 0, PAGE_SIZE));
+    }
+
+    @Test
+    public void invalidatePrefixDropsMatchingNodesOnly() {
+        putCurrent(SEARCH, 0);
+        putCurrent("__BY_SEARCH__/abba", 0);
+        putCurrent(ROCK, 0);
+
+        mCache.invalidatePrefix("__BY_SEARCH__");
+
+        assertNull(mCache.get(SEARCH, 0, PAGE_SIZE));
+        assertNull(mCache.get("__BY_SEARCH__/abba", 0, PAGE_SIZE));
+        assertNotNull(mCache.get(ROCK, 0, PAGE_SIZE));
+    }
+
+    @Test
+    public void evictsByItemCount() {
+        BrowseCache cache = new BrowseCache(10);
+        cache.put(ROCK, 0, PAGE_SIZE, cache.getGeneration(), items(6));
+        cache.put(JAZZ, 0, PAGE_SIZE, cache.getGeneration(), items(6));
+
+        assertNull(cache.get(ROCK, 0, PAGE_SIZE));
+        assertNotNull(cache.get(JAZZ, 0, PAGE_SIZE));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    private void putCurrent(String parentId, int page) {
+        mCache.put(parentId, page, PAGE_SIZE, mCache.getGeneration(), items(2));
+    }
+
+    private static List<MediaItem> items(int count) {
+        List<MediaItem> items = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            items.add(new MediaItem(new MediaDescriptionCompat.Builder()
+                    .setMediaId(String.valueOf(i)).build(), MediaItem.FLAG_PLAYABLE));
+        }
+        return items;
+    }
+}
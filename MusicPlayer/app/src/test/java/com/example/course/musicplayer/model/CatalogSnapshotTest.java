@@ -0,0 +1,168 @@
+package com.example.course.musicplayer.model;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CatalogSnapshotTest {
+
+    // Offsets in the snapshot header.
+    private static final int VERSION_OFFSET = 4;
+    private static final int HEADER_SIZE = 4 + 4 + 4 + 8;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mFile;
+    private CatalogSnapshot mSnapshot;
+
+    @Before
+    public void setUp() {
+        mFile = new File(mFolder.getRoot(), "catalog.bin");
+        mSnapshot = new CatalogSnapshot(mFile);
+    }
+
+    @Test
+    public void readsBackWrittenTracks() {
+        TrackStore tracks = new TrackStore();
+        tracks.put(7, "/music/a/one.mp3", "One", "one", "Artist", "Album", 3, "Rock", 1999,
+                180000, 11);
+        tracks.put(9, null, "Two \u00e9\u4e2d", null, null, null, 0, null, 0, 0, 0);
+        assertTrue(mSnapshot.write(tracks));
+
+        TrackStore read = mSnapshot.read();
+        assertNotNull(read);
+        assertEquals(2, read.size());
+        int row = read.getRow(7);
+        assertEquals("/music/a/one.mp3", read.getSource(row));
+        assertEquals("One", read.getTitle(row));
+        assertEquals("one", read.getSortKey(row));
+        assertEquals("Artist", read.getArtist(row));
+        assertEquals("Album", read.getAlbum(row));
+        assertEquals(3, read.getAlbumId(row));
+        assertEquals("Rock", read.getGenre(row));
+        assertEquals(1999, read.getYear(row));
+        assertEquals(180000, read.getDuration(row));
+        assertEquals(11, read.getDateModified(row));
+        assertEquals("/music/a", read.getFolder(row));
+        row = read.getRow(9);
+        assertEquals("Two \u00e9\u4e2d", read.getTitle(row));
+        assertNull(read.getSource(row));
+        assertNull(read.getSortKey(row));
+        assertNull(read.getArtist(row));
+        assertNull(read.getGenre(row));
+    }
+
+    @Test
+    public void leavesOutRemovedTracks() {
+        TrackStore tracks = new TrackStore();
+        tracks.put(1, "/music/1.mp3", "One", "one", "A", "B", 0, "G", 0, 0, 0);
+        tracks.put(2, "/music/2.mp3", "Two", "two", "A", "B", 0, "G", 0, 0, 0);
+        tracks.remove(1);
+        assertTrue(mSnapshot.write(tracks));
+
+        TrackStore read = mSnapshot.read();
+        assertEquals(1, read.size());
+        assertFalse(read.contains(1));
+        assertTrue(read.contains(2));
+    }
+
+    @Test
+    public void writesTracksInSourceOrder() {
+        TrackStore tracks = new TrackStore();
+        tracks.put(1, "/music/1.mp3", "Two", "two", "A", "B", 0, "G", 0, 0, 0);
+        tracks.put(2, "/music/2.mp3", "Three", "three", "A", "B", 0, "G", 0, 0, 0);
+        // As a sync leaves it: a new track appended after the ones it sorts before.
+        tracks.put(3, "/music/3.mp3", "One", "one", "A", "B", 0, "G", 0, 0, 0);
+        assertTrue(mSnapshot.write(tracks));
+
+        TrackStore read = mSnapshot.read();
+        assertEquals(3, read.getId(0));
+        assertEquals(2, read.getId(1));
+        assertEquals(1, read.getId(2));
+    }
+
+    @Test
+    public void replacesSnapshotWithoutLeavingTemporaryFile() {
+        TrackStore tracks = new TrackStore();
+        tracks.put(1, "/music/1.mp3", "One", "one", "A", "B", 0, "G", 0, 0, 0);
+        assertTrue(mSnapshot.write(tracks));
+        tracks.put(2, "/music/2.mp3", "Two", "two", "A", "B", 0, "G", 0, 0, 0);
+        assertTrue(mSnapshot.write(tracks));
+
+        assertEquals(2, mSnapshot.read().size());
+        assertFalse(new File(mFile.getPath() + ".tmp").exists());
+    }
+
+    @Test
+    public void rejectsCorruptPayload() throws IOException {
+        writeOneTrack();
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            long last = file.length() - 1;
+            file.seek(last);
+            int value = file.read();
+            file.seek(last);
+            file.write(value ^ 0xff);
+        } finally {
+            file.close();
+        }
+        assertNull(mSnapshot.read());
+    }
+
+    @Test
+    public void rejectsOtherFormatVersion() throws IOException {
+        writeOneTrack();
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            file.seek(VERSION_OFFSET);
+            int version = file.readInt();
+            file.seek(VERSION_OFFSET);
+            file.writeInt(version - 1);
+        } finally {
+            file.close();
+        }
+        assertNull(mSnapshot.read());
+    }
+
+    @Test
+    public void rejectsTruncatedFile() throws IOException {
+        writeOneTrack();
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            file.setLength(HEADER_SIZE + 4);
+        } finally {
+            file.close();
+        }
+        assertNull(mSnapshot.read());
+        file = new RandomAccessFile(mFile, "rw");
+        try {
+            file.setLength(HEADER_SIZE - 1);
+        } finally {
+            file.close();
+        }
+        assertNull(mSnapshot.read());
+    }
+
+    @Test
+    public void readsNothingWithoutSnapshot() {
+        assertNull(mSnapshot.read());
+    }
+
+    private void writeOneTrack() {
+        TrackStore tracks = new TrackStore();
+        tracks.put(1, "/music/1.mp3", "One", "one", "A", "B", 0, "G", 2001, 1000, 5);
+        assertTrue(mSnapshot.write(tracks));
+    }
+}
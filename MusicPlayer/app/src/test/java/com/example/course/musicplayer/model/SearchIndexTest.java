@@ -0,0 +1,85 @@
+package com.example.course.musicplayer.model;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SearchIndexTest {
+
+    @Test
+    public void tokenizeSplitsOnNonAlphanumerics() {
+        assertEquals(Arrays.asList("don", "t", "stop", "me", "now", "1979"),
+                tokenize("Don't Stop Me-Now (1979)"));
+    }
+
+    @Test
+    public void tokenizeLowerCasesAndStripsDiacritics() {
+        assertEquals(Arrays.asList("beyonce", "sigur", "ros", "motorhead"),
+                tokenize("Beyoncé / Sigur Rós, Motörhead"));
+    }
+
+    @Test
+    public void tokenizeKeepsLettersOfOtherScripts() {
+        assertEquals(Arrays.asList("中文", "abc"), tokenize("中文 abc"));
+    }
+
+    @Test
+    public void tokenizeIgnoresEmptyText() {
+        assertTrue(tokenize(null).isEmpty());
+        assertTrue(tokenize("").isEmpty());
+        assertTrue(tokenize(" -- ").isEmpty());
+    }
+
+    @Test
+    public void searchMatchesEveryTermAsPrefixInAnyField() {
+        SearchIndex index = SearchIndex.build(catalog());
+
+        assertArrayEquals(new int[] {0, 1}, index.search("queen"));
+        assertArrayEquals(new int[] {0}, index.search("bohem QUEEN"));
+        assertArrayEquals(new int[] {0, 1}, index.search("n"));
+        assertArrayEquals(new int[] {2}, index.search("beyonce"));
+        assertArrayEquals(new int[] {2}, index.search("Beyoncé"));
+    }
+
+    @Test
+    public void searchMatchesNothingForUnknownOrBlankQuery() {
+        SearchIndex index = SearchIndex.build(catalog());
+
+        assertEquals(0, index.search("queen halo").length);
+        assertEquals(0, index.search("zzz").length);
+        assertEquals(0, index.search("  ").length);
+        assertEquals(0, SearchIndex.EMPTY.search("queen").length);
+    }
+
+    @Test
+    public void searchSkipsRemovedTracks() {
+        TrackStore tracks = catalog();
+        tracks.remove(1);
+        SearchIndex index = SearchIndex.build(tracks);
+
+        assertArrayEquals(new int[] {1}, index.search("queen"));
+    }
+
+    private static TrackStore catalog() {
+        TrackStore tracks = new TrackStore();
+        tracks.put(1, null, "Bohemian Rhapsody", "bohemian rhapsody", "Queen",
+                "A Night at the Opera", 0, null, 1975, 0, 0);
+        tracks.put(2, null, "Don't Stop Me Now", "don't stop me now", "Queen", "Jazz", 0, null,
+                1978, 0, 0);
+        tracks.put(3, null, "Halo", "halo", "Beyoncé", "I Am... Sasha Fierce", 0, null, 2008,
+                0, 0);
+        return tracks;
+    }
+
+    private static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+        SearchIndex.tokenize(text, tokens);
+        return tokens;
+    }
+}
@@ -0,0 +1,92 @@
+package com.example.course.musicplayer.model;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+
+public class TrackIndexTest {
+
+    private static final String ROCK = "Rock";
+
+    private TrackStore mTracks;
+    private TrackIndex mIndex;
+
+    @Before
+    public void setUp() {
+        mTracks = new TrackStore();
+        mIndex = new TrackIndex("__BY_GENRE__", 0, 0, null) {
+            @Override
+            protected String valueOf(TrackStore tracks, int row) {
+                return tracks.getGenre(row);
+            }
+        };
+        Map<String, IntList> rowsByKey = new HashMap<>();
+        for (String title : new String[] {"b", "d", "f"}) {
+            mIndex.collect(mTracks, put(title.charAt(0), title), rowsByKey);
+        }
+        mIndex.publish(rowsByKey);
+    }
+
+    @Test
+    public void updateMergesAddedRowsInSourceOrder() {
+        Map<String, IntList> additions = new HashMap<>();
+        Set<Integer> touchedRows = new HashSet<>();
+        for (String title : new String[] {"e", "a", "c"}) {
+            int row = put(title.charAt(0), title);
+            touchedRows.add(row);
+            mIndex.collect(mTracks, row, additions);
+        }
+        mIndex.update(mTracks, Collections.singleton(ROCK), touchedRows, additions);
+
+        assertArrayEquals(rowsOf("a", "b", "c", "d", "e", "f"), mIndex.getRows(ROCK));
+    }
+
+    @Test
+    public void updateMovesRetitledRowToItsNewPlace() {
+        int row = put('b', "g");
+        Map<String, IntList> additions = new HashMap<>();
+        mIndex.collect(mTracks, row, additions);
+        mIndex.update(mTracks, Collections.singleton(ROCK), Collections.singleton(row),
+                additions);
+
+        assertArrayEquals(rowsOf("d", "f", "g"), mIndex.getRows(ROCK));
+    }
+
+    @Test
+    public void updateOrdersEqualSortKeysById() {
+        Map<String, IntList> additions = new HashMap<>();
+        int row = put('a', "d");
+        mIndex.collect(mTracks, row, additions);
+        mIndex.update(mTracks, Collections.singleton(ROCK), Collections.singleton(row),
+                additions);
+
+        assertArrayEquals(new int[] {mTracks.getRow('b'), row, mTracks.getRow('d'),
+                mTracks.getRow('f')}, mIndex.getRows(ROCK));
+    }
+
+    private int put(long id, String sortKey) {
+        return mTracks.put(id, null, sortKey, sortKey, null, null, 0, ROCK, 0, 0, 0);
+    }
+
+    /**
+     * @return the rows of the tracks of the given sort keys, which the fixtures use as ids
+     */
+    private int[] rowsOf(String... sortKeys) {
+        int[] rows = new int[sortKeys.length];
+        for (int i = 0; i < sortKeys.length; i++) {
+            for (int row : mTracks.liveRows()) {
+                if (sortKeys[i].equals(mTracks.getSortKey(row))) {
+                    rows[i] = row;
+                }
+            }
+        }
+        return rows;
+    }
+}
@@ -0,0 +1,252 @@
+package com.example.course.musicplayer.playback;
+
+import android.content.Context;
+import android.media.MediaPlayer;
+import android.os.Handler;
+import android.support.v4.media.session.MediaSessionCompat;
+import android.support.v4.media.session.PlaybackStateCompat;
+
+import com.example.course.musicplayer.BuildConfig;
+import com.example.course.musicplayer.model.MusicProvider;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.example.course.musicplayer.playback.PlaybackLatencyHarness.mediaIdOf;
+import static com.example.course.musicplayer.playback.PlaybackLatencyHarness.sourceOf;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Skips through PlaybackManager on a LocalPlayback, whose MediaPlayers only record what they
+ * are asked to do. Preparing completes when the test says so.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class LocalPlaybackTest implements PlaybackManager.PlaybackServiceCallback {
+
+    // Longer than the publisher's coalescing window, and shorter than the skip one.
+    private static final long PUBLISH_DELAY_MS = 100;
+
+    private final VirtualScheduler mScheduler = new VirtualScheduler();
+    // What the players were asked to do, such as "prepare /music/1.mp3".
+    private final List<String> mEvents = new ArrayList<>();
+    private final List<FakeMediaPlayer> mPlayers = new ArrayList<>();
+    private MediaSessionCompat.Callback mSession;
+    private int mState;
+
+    @Before
+    public void setUp() {
+        Context context = RuntimeEnvironment.application;
+        MusicProvider musicProvider = PlaybackLatencyHarness.loadCatalog();
+        LocalPlayback playback = new LocalPlayback(context, musicProvider, new Handler()) {
+            @Override
+            MediaPlayer createMediaPlayer() {
+                FakeMediaPlayer mediaPlayer = new FakeMediaPlayer(mEvents);
+                mPlayers.add(mediaPlayer);
+                return mediaPlayer;
+            }
+        };
+        // Only the current item's player is looked at.
+        playback.setGaplessEnabled(false);
+        playback.setReadAheadBudget(0);
+        PlaybackManager playbackManager = new PlaybackManager(this, context.getResources(),
+                PlaybackLatencyHarness.newQueueManager(context, musicProvider), musicProvider,
+                playback, mScheduler);
+        mSession = playbackManager.getMediaSessionCallback();
+
+        mSession.onPlayFromMediaId(mediaIdOf(0), null);
+        completePrepare();
+        assertEquals(Arrays.asList("prepare " + sourceOf(0), "start " + sourceOf(0)), mEvents);
+        assertEquals(PlaybackStateCompat.STATE_PLAYING, mState);
+        mEvents.clear();
+    }
+
+    @Test
+    public void skipBurstPreparesAndStartsOnlyLastItem() {
+        for (int i = 0; i < 5; i++) {
+            mSession.onSkipToNext();
+            mScheduler.advanceBy(50);
+        }
+        mScheduler.advanceBy(1000);
+        completePrepare();
+
+        assertEquals(Arrays.asList("pause " + sourceOf(0), "prepare " + sourceOf(5),
+                "start " + sourceOf(5)), mEvents);
+        assertEquals(PlaybackStateCompat.STATE_PLAYING, mState);
+    }
+
+    @Test
+    public void skipWhilePreparingDoesNotStartItemSkippedAwayFrom() {
+        mSession.onSkipToNext();
+        mScheduler.advanceBy(1000);
+        // The player is preparing track 1 when the next skip comes in, and is done before
+        // track 2 is played.
+        mSession.onSkipToNext();
+        completePrepare();
+        mScheduler.advanceBy(1000);
+        completePrepare();
+
+        assertEquals(Arrays.asList("pause " + sourceOf(0), "prepare " + sourceOf(1),
+                "prepare " + sourceOf(2), "start " + sourceOf(2)), mEvents);
+        assertEquals(PlaybackStateCompat.STATE_PLAYING, mState);
+    }
+
+    @Test
+    public void pauseWhilePreparingThenPlayStartsOncePrepared() {
+        mSession.onSkipToNext();
+        mScheduler.advanceBy(1000);
+        mSession.onPause();
+        completePrepare();
+        assertEquals(PlaybackStateCompat.STATE_PAUSED, mState);
+
+        mSession.onPlay();
+        mScheduler.advanceBy(PUBLISH_DELAY_MS);
+        assertEquals(Arrays.asList("pause " + sourceOf(0), "prepare " + sourceOf(1),
+                "start " + sourceOf(1)), mEvents);
+        assertEquals(PlaybackStateCompat.STATE_PLAYING, mState);
+    }
+
+    @Test
+    public void playWhileStillPreparingStartsOncePrepared() {
+        mSession.onSkipToNext();
+        mScheduler.advanceBy(1000);
+        mSession.onPause();
+        mSession.onPlay();
+        completePrepare();
+
+        assertEquals(Arrays.asList("pause " + sourceOf(0), "prepare " + sourceOf(1),
+                "start " + sourceOf(1)), mEvents);
+        assertEquals(PlaybackStateCompat.STATE_PLAYING, mState);
+    }
+
+    @Override
+    public void onPlaybackStart() {
+    }
+
+    @Override
+    public void onNotificationRequired() {
+    }
+
+    @Override
+    public void onPlaybackStop() {
+    }
+
+    @Override
+    public void onPlaybackStateUpdated(PlaybackStateCompat newState) {
+        mState = newState.getState();
+    }
+
+    /**
+     * Finish preparing on every player that is preparing.
+     */
+    private void completePrepare() {
+        for (FakeMediaPlayer mediaPlayer : new ArrayList<>(mPlayers)) {
+            mediaPlayer.completePrepare();
+        }
+        // PlaybackManager publishes its states through the scheduler.
+        mScheduler.advanceBy(PUBLISH_DELAY_MS);
+    }
+
+    /**
+     * MediaPlayer that records its calls, and leaves preparing to the test.
+     */
+    private static final class FakeMediaPlayer extends MediaPlayer {
+        private final List<String> mEvents;
+        private OnPreparedListener mOnPreparedListener;
+        private String mSource;
+        private boolean mPreparing;
+        private boolean mPlaying;
+
+        FakeMediaPlayer(List<String> events) {
+            mEvents = events;
+        }
+
+        void completePrepare() {
+            if (mPreparing) {
+                mPreparing = false;
+                mOnPreparedListener.onPrepared(this);
+            }
+        }
+
+        @Override
+        public void setOnPreparedListener(OnPreparedListener listener) {
+            mOnPreparedListener = listener;
+        }
+
+        @Override
+        public void setWakeMode(Context context, int mode) {
+        }
+
+        @Override
+        public void setAudioStreamType(int streamType) {
+        }
+
+        @Override
+        public void setDataSource(String path) {
+            mSource = path;
+        }
+
+        @Override
+        public void prepareAsync() {
+            mEvents.add("prepare " + mSource);
+            mPreparing = true;
+        }
+
+        @Override
+        public void start() {
+            if (mPreparing) {
+                throw new IllegalStateException("Started while preparing");
+            }
+            mEvents.add("start " + mSource);
+            mPlaying = true;
+        }
+
+        @Override
+        public void pause() {
+            mEvents.add("pause " + mSource);
+            mPlaying = false;
+        }
+
+        @Override
+        public boolean isPlaying() {
+            return mPlaying;
+        }
+
+        @Override
+        public int getCurrentPosition() {
+            return 0;
+        }
+
+        @Override
+        public void seekTo(int position) {
+        }
+
+        @Override
+        public void setVolume(float left, float right) {
+        }
+
+        @Override
+        public void setNextMediaPlayer(MediaPlayer next) {
+        }
+
+        @Override
+        public void reset() {
+            mSource = null;
+            mPreparing = false;
+            mPlaying = false;
+        }
+
+        @Override
+        public void release() {
+            reset();
+        }
+    }
+}
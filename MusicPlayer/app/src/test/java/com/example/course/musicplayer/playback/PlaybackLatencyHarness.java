@@ -0,0 +1,385 @@
+package com.example.course.musicplayer.playback;
+
+import android.content.Context;
+import android.support.v4.media.MediaMetadataCompat;
+import android.support.v4.media.session.MediaSessionCompat;
+import android.support.v4.media.session.PlaybackStateCompat;
+
+import com.example.course.musicplayer.model.MusicProvider;
+import com.example.course.musicplayer.model.MusicProviderSource;
+import com.example.course.musicplayer.utils.AlbumArtCache;
+import com.example.course.musicplayer.utils.MediaIDHelper;
+
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Drives PlaybackManager's session callback through scripted listening sessions, on a
+ * SimulatedPlayback and in virtual time, and measures the latency of every command: the time
+ * from the command to the first published PlaybackState in the state it asks for.
+ *
+ * A command superseded by one asking for another state before it took effect is not
+ * measured, while commands asking for the same state, such as a burst of skips, all take
+ * effect with the last one. An error state fails every pending command.
+ */
+class PlaybackLatencyHarness implements PlaybackManager.PlaybackServiceCallback {
+
+    static final int TRACK_COUNT = 100;
+    static final long TRACK_DURATION_MS = 30 * 1000;
+
+    private static final String GENRE = "Rock";
+    private static final long CATALOG_LOAD_TIMEOUT_MS = 10000;
+
+    private final VirtualScheduler mScheduler = new VirtualScheduler();
+    private final SimulatedPlayback mPlayback;
+    private final MediaSessionCompat.Callback mSession;
+
+    private final List<Command> mPending = new ArrayList<>();
+    private final Map<String, List<Long>> mLatencies = new TreeMap<>();
+    private int mSuperseded;
+    private int mFailed;
+    private PlaybackStateCompat mLastState;
+
+    /**
+     * @param random source of the failures injected by the SimulatedPlayback
+     */
+    PlaybackLatencyHarness(Context context, Random random) {
+        MusicProvider musicProvider = loadCatalog();
+        QueueManager queueManager = newQueueManager(context, musicProvider);
+        mPlayback = new SimulatedPlayback(mScheduler, random);
+        mPlayback.setTrackDuration(TRACK_DURATION_MS);
+        PlaybackManager playbackManager = new PlaybackManager(this, context.getResources(),
+                queueManager, musicProvider, mPlayback, mScheduler);
+        mSession = playbackManager.getMediaSessionCallback();
+    }
+
+    /**
+     * @return a queue manager over the given catalog, whose updates go nowhere
+     */
+    static QueueManager newQueueManager(Context context, MusicProvider musicProvider) {
+        return new QueueManager(musicProvider, context.getResources(),
+                AlbumArtCache.getInstance(context), new QueueManager.MetadataUpdateListener() {
+                    @Override
+                    public void onMetadataChanged(MediaMetadataCompat metadata) {
+                    }
+
+                    @Override
+                    public void onMetadataRetrieveError() {
+                    }
+
+                    @Override
+                    public void onCurrentQueueIndexUpdated(int queueIndex) {
+                    }
+
+                    @Override
+                    public void onQueueUpdated(String title,
+                                               List<MediaSessionCompat.QueueItem> newQueue) {
+                    }
+                });
+    }
+
+    /**
+     * @return the media ID of the given track, as browsed from its genre
+     */
+    static String mediaIdOf(int track) {
+        return MediaIDHelper.createMediaID(String.valueOf(track + 1),
+                MediaIDHelper.MEDIA_ID_MUSICS_BY_GENRE, GENRE);
+    }
+
+    /**
+     * @return the path of the given track's file
+     */
+    static String sourceOf(int track) {
+        return "/music/" + (track + 1) + ".mp3";
+    }
+
+    SimulatedPlayback getPlayback() {
+        return mPlayback;
+    }
+
+    void playFromMediaId(String mediaId) {
+        issue("playFromMediaId", PlaybackStateCompat.STATE_PLAYING);
+        mSession.onPlayFromMediaId(mediaId, null);
+    }
+
+    void play() {
+        issue("play", PlaybackStateCompat.STATE_PLAYING);
+        mSession.onPlay();
+    }
+
+    void pause() {
+        issue("pause", PlaybackStateCompat.STATE_PAUSED);
+        mSession.onPause();
+    }
+
+    void skipToNext() {
+        issue("skipToNext", PlaybackStateCompat.STATE_PLAYING);
+        mSession.onSkipToNext();
+    }
+
+    void skipToPrevious() {
+        issue("skipToPrevious", PlaybackStateCompat.STATE_PLAYING);
+        mSession.onSkipToPrevious();
+    }
+
+    void seekTo(long position) {
+        issue("seekTo", PlaybackStateCompat.STATE_PLAYING);
+        mSession.onSeekTo(position);
+    }
+
+    void loseAudioFocus() {
+        issue("loseAudioFocus", PlaybackStateCompat.STATE_PAUSED);
+        mPlayback.loseAudioFocus();
+    }
+
+    void gainAudioFocus() {
+        issue("gainAudioFocus", PlaybackStateCompat.STATE_PLAYING);
+        mPlayback.gainAudioFocus();
+    }
+
+    void advanceBy(long delayMs) {
+        mScheduler.advanceBy(delayMs);
+    }
+
+    /**
+     * @return the last published PlaybackState, or null if none was
+     */
+    PlaybackStateCompat getLastState() {
+        return mLastState;
+    }
+
+    int getState() {
+        return mLastState != null ? mLastState.getState() : PlaybackStateCompat.STATE_NONE;
+    }
+
+    int getPendingCount() {
+        return mPending.size();
+    }
+
+    int getFailedCount() {
+        return mFailed;
+    }
+
+    /**
+     * @return the given percentile of the latencies of all commands, in milliseconds
+     */
+    long getPercentile(int percentile) {
+        List<Long> all = new ArrayList<>();
+        for (List<Long> latencies : mLatencies.values()) {
+            all.addAll(latencies);
+        }
+        return percentile(all, percentile);
+    }
+
+    /**
+     * @return one line per command, and one for all of them, with how many took effect and
+     *         their p50 and p99 latency
+     */
+    String report() {
+        StringBuilder sb = new StringBuilder();
+        List<Long> all = new ArrayList<>();
+        for (Map.Entry<String, List<Long>> entry : mLatencies.entrySet()) {
+            appendLine(sb, entry.getKey(), entry.getValue());
+            all.addAll(entry.getValue());
+        }
+        appendLine(sb, "all", all);
+        sb.append("superseded=").append(mSuperseded).append(" failed=").append(mFailed)
+                .append(" pending=").append(mPending.size());
+        return sb.toString();
+    }
+
+    @Override
+    public void onPlaybackStart() {
+    }
+
+    @Override
+    public void onNotificationRequired() {
+    }
+
+    @Override
+    public void onPlaybackStop() {
+    }
+
+    @Override
+    public void onPlaybackStateUpdated(PlaybackStateCompat newState) {
+        mLastState = newState;
+        if (newState.getState() == PlaybackStateCompat.STATE_ERROR) {
+            mFailed += mPending.size();
+            mPending.clear();
+            return;
+        }
+        Iterator<Command> it = mPending.iterator();
+        while (it.hasNext()) {
+            Command command = it.next();
+            if (command.expectedState == newState.getState()) {
+                record(command.name, mScheduler.now() - command.issuedAt);
+                it.remove();
+            }
+        }
+    }
+
+    private void issue(String name, int expectedState) {
+        Iterator<Command> it = mPending.iterator();
+        while (it.hasNext()) {
+            if (it.next().expectedState != expectedState) {
+                mSuperseded++;
+                it.remove();
+            }
+        }
+        mPending.add(new Command(name, expectedState, mScheduler.now()));
+    }
+
+    private void record(String name, long latencyMs) {
+        List<Long> latencies = mLatencies.get(name);
+        if (latencies == null) {
+            latencies = new ArrayList<>();
+            mLatencies.put(name, latencies);
+        }
+        latencies.add(latencyMs);
+    }
+
+    private static void appendLine(StringBuilder sb, String name, List<Long> latencies) {
+        sb.append(String.format(Locale.US, "%-16s n=%-5d p50=%5dms p99=%5dms%n", name,
+                latencies.size(), percentile(latencies, 50), percentile(latencies, 99)));
+    }
+
+    private static long percentile(List<Long> latencies, int percentile) {
+        if (latencies.isEmpty()) {
+            return 0;
+        }
+        List<Long> sorted = new ArrayList<>(latencies);
+        Collections.sort(sorted);
+        int rank = (int) Math.ceil(percentile / 100.0 * sorted.size());
+        return sorted.get(Math.max(rank - 1, 0));
+    }
+
+    /**
+     * @return a provider over a catalog of {@link #TRACK_COUNT} tracks, once it is loaded
+     */
+    static MusicProvider loadCatalog() {
+        MusicProvider musicProvider = new MusicProvider(new FakeSource(TRACK_COUNT));
+        final AtomicBoolean loaded = new AtomicBoolean();
+        musicProvider.retrieveMediaAsync(new MusicProvider.Callback() {
+            @Override
+            public void onMusicCatalogReady(boolean success) {
+                loaded.set(success);
+            }
+        });
+        long deadline = System.currentTimeMillis() + CATALOG_LOAD_TIMEOUT_MS;
+        while (!loaded.get()) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new AssertionError("Catalog not loaded");
+            }
+            // The provider calls back on the main looper.
+            ShadowLooper.idleMainLooper();
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new AssertionError("Interrupted while loading the catalog");
+            }
+        }
+        return musicProvider;
+    }
+
+    private static final class Command {
+        final String name;
+        final int expectedState;
+        final long issuedAt;
+
+        Command(String name, int expectedState, long issuedAt) {
+            this.name = name;
+            this.expectedState = expectedState;
+            this.issuedAt = issuedAt;
+        }
+    }
+
+    /**
+     * Catalog of numbered tracks, all of the same genre and duration.
+     */
+    private static final class FakeSource implements MusicProviderSource {
+
+        private final int mCount;
+
+        FakeSource(int count) {
+            mCount = count;
+        }
+
+        @Override
+        public Iterator<MediaMetadataCompat> iterator() {
+            return iterator(1, mCount + 1);
+        }
+
+        @Override
+        public Map<String, Long> getTrackVersions() {
+            Map<String, Long> versions = new HashMap<>();
+            for (long id = 1; id <= mCount; id++) {
+                versions.put(String.valueOf(id), 0L);
+            }
+            return versions;
+        }
+
+        @Override
+        public Map<Long, String> getTrackGenres() {
+            Map<Long, String> genres = new HashMap<>();
+            for (long id = 1; id <= mCount; id++) {
+                genres.put(id, GENRE);
+            }
+            return genres;
+        }
+
+        @Override
+        public Iterator<MediaMetadataCompat> iterator(Collection<String> trackIds) {
+            List<MediaMetadataCompat> tracks = new ArrayList<>();
+            for (String trackId : trackIds) {
+                long id = Long.parseLong(trackId);
+                if (id >= 1 && id <= mCount) {
+                    tracks.add(track(id));
+                }
+            }
+            return tracks.iterator();
+        }
+
+        @Override
+        public Iterator<MediaMetadataCompat> iterator(long fromId, long toId) {
+            List<MediaMetadataCompat> tracks = new ArrayList<>();
+            for (long id = Math.max(fromId, 1); id < toId && id <= mCount; id++) {
+                tracks.add(track(id));
+            }
+            return tracks.iterator();
+        }
+
+        @Override
+        public long[] getTrackIdRange() {
+            return new long[] {1, mCount, mCount};
+        }
+
+        private static MediaMetadataCompat track(long id) {
+            // Zero padded, so that the sort key orders tracks by id.
+            String title = String.format(Locale.US, "Track %03d", id);
+            return new MediaMetadataCompat.Builder()
+                    .putString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID, String.valueOf(id))
+                    .putString(MusicProviderSource.CUSTOM_METADATA_TRACK_SOURCE,
+                            sourceOf((int) id - 1))
+                    .putString(MusicProviderSource.CUSTOM_METADATA_SORT_KEY, title)
+                    .putLong(MusicProviderSource.CUSTOM_METADATA_DATE_MODIFIED, 0)
+                    .putString(MediaMetadataCompat.METADATA_KEY_TITLE, title)
+                    .putString(MediaMetadataCompat.METADATA_KEY_ARTIST, "Artist " + id % 10)
+                    .putString(MediaMetadataCompat.METADATA_KEY_ALBUM, "Album " + id % 20)
+                    .putString(MediaMetadataCompat.METADATA_KEY_GENRE, GENRE)
+                    .putLong(MediaMetadataCompat.METADATA_KEY_DURATION, TRACK_DURATION_MS)
+                    .build();
+        }
+    }
+}
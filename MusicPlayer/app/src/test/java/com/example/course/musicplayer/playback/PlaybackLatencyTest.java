@@ -0,0 +1,128 @@
+package com.example.course.musicplayer.playback;
+
+import android.support.v4.media.session.PlaybackStateCompat;
+
+import com.example.course.musicplayer.BuildConfig;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Scripted sessions run through the PlaybackLatencyHarness. Each prints the p50 and p99
+ * latency of its commands, and checks that every command took effect.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class PlaybackLatencyTest {
+
+    private static final long SEED = 42;
+    // Far above what any single command takes with the simulated latencies.
+    private static final long MAX_LATENCY_MS = 2000;
+
+    private Random mRandom;
+    private PlaybackLatencyHarness mHarness;
+
+    @Before
+    public void setUp() {
+        mRandom = new Random(SEED);
+        mHarness = new PlaybackLatencyHarness(RuntimeEnvironment.application, new Random(SEED));
+    }
+
+    @Test
+    public void skipBursts() {
+        startPlaying();
+        for (int burst = 0; burst < 50; burst++) {
+            int skips = 1 + mRandom.nextInt(6);
+            for (int i = 0; i < skips; i++) {
+                if (mRandom.nextInt(4) == 0) {
+                    mHarness.skipToPrevious();
+                } else {
+                    mHarness.skipToNext();
+                }
+                mHarness.advanceBy(20 + mRandom.nextInt(150));
+            }
+            mHarness.advanceBy(2000);
+        }
+        assertAllTookEffect("skipBursts");
+    }
+
+    @Test
+    public void seeks() {
+        startPlaying();
+        for (int i = 0; i < 100; i++) {
+            mHarness.seekTo(seekTarget());
+            mHarness.advanceBy(100 + mRandom.nextInt(900));
+        }
+        mHarness.advanceBy(1000);
+        assertAllTookEffect("seeks");
+    }
+
+    @Test
+    public void pausesAndFocusLoss() {
+        startPlaying();
+        for (int i = 0; i < 30; i++) {
+            mHarness.advanceBy(1000 + mRandom.nextInt(4000));
+            if (mRandom.nextBoolean()) {
+                mHarness.loseAudioFocus();
+                mHarness.advanceBy(500 + mRandom.nextInt(2500));
+                mHarness.gainAudioFocus();
+            } else {
+                mHarness.pause();
+                mHarness.advanceBy(500 + mRandom.nextInt(2500));
+                mHarness.play();
+            }
+        }
+        mHarness.advanceBy(1000);
+        assertAllTookEffect("pausesAndFocusLoss");
+    }
+
+    @Test
+    public void failedItemCanBeRetried() {
+        mHarness.getPlayback().setFailureRate(1);
+        mHarness.playFromMediaId(PlaybackLatencyHarness.mediaIdOf(0));
+        mHarness.advanceBy(1000);
+        assertEquals(PlaybackStateCompat.STATE_ERROR, mHarness.getState());
+        assertEquals(1, mHarness.getFailedCount());
+
+        mHarness.getPlayback().setFailureRate(0);
+        mHarness.play();
+        mHarness.advanceBy(1000);
+        assertEquals(PlaybackStateCompat.STATE_PLAYING, mHarness.getState());
+        assertEquals(0, mHarness.getPendingCount());
+    }
+
+    private void startPlaying() {
+        mHarness.playFromMediaId(PlaybackLatencyHarness.mediaIdOf(0));
+        mHarness.advanceBy(1000);
+        assertEquals(PlaybackStateCompat.STATE_PLAYING, mHarness.getState());
+    }
+
+    /**
+     * @return a position far enough from the current one that the state it leads to is not
+     *         dropped as equivalent to the current one.
+     */
+    private long seekTarget() {
+        long current = mHarness.getLastState().getPosition();
+        long target;
+        do {
+            target = mRandom.nextInt((int) PlaybackLatencyHarness.TRACK_DURATION_MS - 1000);
+        } while (Math.abs(target - current) < 1000);
+        return target;
+    }
+
+    private void assertAllTookEffect(String session) {
+        System.out.println(session + ":\n" + mHarness.report());
+        assertEquals(0, mHarness.getPendingCount());
+        assertEquals(0, mHarness.getFailedCount());
+        assertTrue(mHarness.getPercentile(99) <= MAX_LATENCY_MS);
+    }
+}
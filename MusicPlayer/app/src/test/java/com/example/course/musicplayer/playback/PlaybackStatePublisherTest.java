@@ -0,0 +1,181 @@
+package com.example.course.musicplayer.playback;
+
+import android.support.v4.media.session.PlaybackStateCompat;
+
+import com.example.course.musicplayer.BuildConfig;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static android.support.v4.media.session.PlaybackStateCompat.STATE_BUFFERING;
+import static android.support.v4.media.session.PlaybackStateCompat.STATE_ERROR;
+import static android.support.v4.media.session.PlaybackStateCompat.STATE_PAUSED;
+import static android.support.v4.media.session.PlaybackStateCompat.STATE_PLAYING;
+import static android.support.v4.media.session.PlaybackStateCompat.STATE_STOPPED;
+import static org.junit.Assert.assertEquals;
+
+// Robolectric provides the TextUtils comparing error messages.
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class PlaybackStatePublisherTest implements PlaybackManager.PlaybackServiceCallback {
+
+    // Past the publisher's frame window.
+    private static final long WINDOW_MS = 20;
+
+    private final VirtualScheduler mScheduler = new VirtualScheduler();
+    private final List<PlaybackStateCompat> mPublished = new ArrayList<>();
+    private PlaybackStatePublisher mPublisher;
+
+    @Before
+    public void setUp() {
+        mPublisher = new PlaybackStatePublisher(mScheduler, this);
+        mPublisher.publish(state(STATE_PLAYING, 1000));
+        mScheduler.advanceBy(WINDOW_MS);
+        assertEquals(1, mPublished.size());
+        mPublished.clear();
+    }
+
+    @Test
+    public void burstPublishesOnlyLastStateAfterWindow() {
+        mPublisher.publish(state(STATE_BUFFERING, 5000));
+        mPublisher.publish(state(STATE_PAUSED, 5000));
+        assertEquals(0, mPublished.size());
+
+        mScheduler.advanceBy(WINDOW_MS);
+        assertStates(STATE_PAUSED);
+        assertEquals(5000, mPublished.get(0).getPosition());
+    }
+
+    @Test
+    public void pauseAndResumeWithinWindowPublishesNothing() {
+        mScheduler.advanceBy(500);
+        mPublisher.publish(state(STATE_PAUSED, 1500));
+        mPublisher.publish(state(STATE_PLAYING, 1500));
+        mScheduler.advanceBy(WINDOW_MS);
+
+        assertStates();
+    }
+
+    @Test
+    public void pauseAndResumeAcrossWindowsArePublished() {
+        mScheduler.advanceBy(500);
+        mPublisher.publish(state(STATE_PAUSED, 1500));
+        mScheduler.advanceBy(WINDOW_MS);
+        mPublisher.publish(state(STATE_PLAYING, 1500));
+        mScheduler.advanceBy(WINDOW_MS);
+
+        assertStates(STATE_PAUSED, STATE_PLAYING);
+    }
+
+    @Test
+    public void positionOnTrackWhilePlayingIsNotPublished() {
+        mScheduler.advanceBy(10000);
+        // Within tolerance of the 11000ms extrapolated from the last published state.
+        mPublisher.publish(state(STATE_PLAYING, 11100));
+        mScheduler.advanceBy(WINDOW_MS);
+
+        assertStates();
+    }
+
+    @Test
+    public void positionJumpWhilePlayingIsPublished() {
+        mScheduler.advanceBy(10000);
+        mPublisher.publish(state(STATE_PLAYING, 25000));
+        mScheduler.advanceBy(WINDOW_MS);
+
+        assertStates(STATE_PLAYING);
+        assertEquals(25000, mPublished.get(0).getPosition());
+    }
+
+    @Test
+    public void positionChangeWhilePausedIsPublished() {
+        mPublisher.publish(state(STATE_PAUSED, 1000));
+        mScheduler.advanceBy(WINDOW_MS);
+        mPublisher.publish(state(STATE_PAUSED, 1000));
+        mScheduler.advanceBy(WINDOW_MS);
+        mPublisher.publish(state(STATE_PAUSED, 1001));
+        mScheduler.advanceBy(WINDOW_MS);
+
+        assertStates(STATE_PAUSED, STATE_PAUSED);
+        assertEquals(1001, mPublished.get(1).getPosition());
+    }
+
+    @Test
+    public void otherActiveItemIsPublished() {
+        mPublisher.publish(new PlaybackStateCompat.Builder()
+                .setState(STATE_PLAYING, 1000, 1.0f, mScheduler.now())
+                .setActiveQueueItemId(1)
+                .build());
+        mScheduler.advanceBy(WINDOW_MS);
+
+        assertStates(STATE_PLAYING);
+    }
+
+    @Test
+    public void stopIsPublishedRightAwayAndDropsPendingState() {
+        mPublisher.publish(state(STATE_PAUSED, 1000));
+        mPublisher.publish(state(STATE_STOPPED, 1000));
+        assertStates(STATE_STOPPED);
+
+        mScheduler.advanceBy(WINDOW_MS);
+        assertStates(STATE_STOPPED);
+    }
+
+    @Test
+    public void errorIsPublishedRightAwayAndOnlyOnce() {
+        PlaybackStateCompat error = new PlaybackStateCompat.Builder()
+                .setState(STATE_ERROR, 1000, 1.0f, mScheduler.now())
+                .setErrorMessage("Failed")
+                .build();
+        mPublisher.publish(error);
+        mPublisher.publish(error);
+
+        assertStates(STATE_ERROR);
+        assertEquals("Failed", mPublished.get(0).getErrorMessage());
+    }
+
+    @Override
+    public void onPlaybackStart() {
+    }
+
+    @Override
+    public void onNotificationRequired() {
+    }
+
+    @Override
+    public void onPlaybackStop() {
+    }
+
+    @Override
+    public void onPlaybackStateUpdated(PlaybackStateCompat newState) {
+        mPublished.add(newState);
+    }
+
+    /**
+     * @return a state at the given position as of now, the active item being the first one
+     */
+    private PlaybackStateCompat state(int state, long position) {
+        return new PlaybackStateCompat.Builder()
+                .setState(state, position, 1.0f, mScheduler.now())
+                .setActiveQueueItemId(0)
+                .build();
+    }
+
+    private void assertStates(int... states) {
+        List<Integer> expected = new ArrayList<>();
+        for (int state : states) {
+            expected.add(state);
+        }
+        List<Integer> actual = new ArrayList<>();
+        for (PlaybackStateCompat state : mPublished) {
+            actual.add(state.getState());
+        }
+        assertEquals(expected, actual);
+    }
+}
@@ -0,0 +1,201 @@
+package com.example.course.musicplayer.playback;
+
+import android.support.v4.media.session.MediaSessionCompat;
+
+import com.example.course.musicplayer.BuildConfig;
+import com.example.course.musicplayer.model.MusicProvider;
+import com.example.course.musicplayer.model.MusicProviderSource;
+import com.example.course.musicplayer.utils.MediaIDHelper;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static com.example.course.musicplayer.utils.MediaIDHelper.MEDIA_ID_MUSICS_BY_ARTIST;
+import static com.example.course.musicplayer.utils.MediaIDHelper.MEDIA_ID_MUSICS_BY_GENRE;
+import static org.junit.Assert.assertEquals;
+
+// Robolectric provides the LruCaches of the queue and of parsed media IDs.
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class PlayingQueueTest {
+
+    private static final String GENRE = "Rock";
+    private static final String PARENT_ID =
+            MediaIDHelper.createMediaID(null, MEDIA_ID_MUSICS_BY_GENRE, GENRE);
+
+    private static final int BENCHMARK_QUEUE_SIZE = 5000;
+    private static final int BENCHMARK_LOOKUPS = 5000;
+
+    private PlayingQueue mQueue;
+
+    @Before
+    public void setUp() {
+        // The catalog stays empty: items only need their media IDs here.
+        mQueue = new PlayingQueue(new MusicProvider((MusicProviderSource) null));
+    }
+
+    @Test
+    public void findsItemsByQueueIdAndMediaId() {
+        mQueue.set(PARENT_ID, Arrays.asList("1", "2", "3"));
+
+        assertEquals(2, mQueue.indexOf(mQueue.get(2).getQueueId()));
+        assertEquals(1, mQueue.indexOf(mediaIdOf("2")));
+        assertEquals(PlayingQueue.NOT_FOUND, mQueue.indexOf(mediaIdOf("4")));
+        assertEquals(PlayingQueue.NOT_FOUND, mQueue.indexOf(MediaIDHelper.createMediaID("2",
+                MEDIA_ID_MUSICS_BY_ARTIST, "Queen")));
+        assertEquals(PlayingQueue.NOT_FOUND, mQueue.indexOf(99L));
+    }
+
+    @Test
+    public void addShiftsFollowingItems() {
+        mQueue.set(PARENT_ID, Arrays.asList("1", "2"));
+        long queueId = mQueue.get(1).getQueueId();
+        mQueue.add(0, "3");
+
+        assertEquals(0, mQueue.indexOf(mediaIdOf("3")));
+        assertEquals(2, mQueue.indexOf(mediaIdOf("2")));
+        assertEquals(2, mQueue.indexOf(queueId));
+    }
+
+    @Test
+    public void removeForgetsItem() {
+        mQueue.set(PARENT_ID, Arrays.asList("1", "2", "3"));
+        long queueId = mQueue.get(0).getQueueId();
+        mQueue.remove(0);
+
+        assertEquals(PlayingQueue.NOT_FOUND, mQueue.indexOf(mediaIdOf("1")));
+        assertEquals(PlayingQueue.NOT_FOUND, mQueue.indexOf(queueId));
+        assertEquals(1, mQueue.indexOf(mediaIdOf("3")));
+    }
+
+    @Test
+    public void moveReindexesItemsInBetween() {
+        mQueue.set(PARENT_ID, Arrays.asList("1", "2", "3", "4"));
+        mQueue.move(0, 2);
+
+        assertEquals(Arrays.asList("2", "3", "1", "4"), musicIds());
+        assertEquals(2, mQueue.indexOf(mediaIdOf("1")));
+        assertEquals(0, mQueue.indexOf(mediaIdOf("2")));
+        assertEquals(3, mQueue.indexOf(mediaIdOf("4")));
+    }
+
+    @Test
+    public void duplicateMusicIdMapsToFirstRemainingCopy() {
+        mQueue.set(PARENT_ID, Arrays.asList("1", "2", "1", "3", "1"));
+        assertEquals(0, mQueue.indexOf(mediaIdOf("1")));
+
+        mQueue.remove(0);
+        assertEquals(1, mQueue.indexOf(mediaIdOf("1")));
+        mQueue.remove(2);
+        assertEquals(1, mQueue.indexOf(mediaIdOf("1")));
+        mQueue.move(0, 2);
+        assertEquals(0, mQueue.indexOf(mediaIdOf("1")));
+        mQueue.remove(0);
+        assertEquals(0, mQueue.indexOf(mediaIdOf("1")));
+        mQueue.remove(0);
+        assertEquals(PlayingQueue.NOT_FOUND, mQueue.indexOf(mediaIdOf("1")));
+    }
+
+    @Test
+    public void randomEditsKeepLookupsConsistentWithScan() {
+        Random random = new Random(42);
+        List<String> musicIds = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            musicIds.add(String.valueOf(random.nextInt(20)));
+        }
+        mQueue.set(PARENT_ID, musicIds);
+        for (int step = 0; step < 500; step++) {
+            int size = mQueue.size();
+            switch (random.nextInt(3)) {
+                case 0:
+                    mQueue.add(random.nextInt(size + 1), String.valueOf(random.nextInt(20)));
+                    break;
+                case 1:
+                    if (size > 0) {
+                        mQueue.remove(random.nextInt(size));
+                    }
+                    break;
+                default:
+                    if (size > 0) {
+                        mQueue.move(random.nextInt(size), random.nextInt(size));
+                    }
+                    break;
+            }
+            List<MediaSessionCompat.QueueItem> items = mQueue.subList(0, mQueue.size());
+            for (int i = 0; i < items.size(); i++) {
+                assertEquals(i, mQueue.indexOf(items.get(i).getQueueId()));
+            }
+            for (int id = 0; id < 20; id++) {
+                String mediaId = mediaIdOf(String.valueOf(id));
+                assertEquals(scanIndexOf(items, mediaId), mQueue.indexOf(mediaId));
+            }
+        }
+    }
+
+    /**
+     * Prints the time taken by lookups in a large queue, against the linear scan of the queue
+     * items they replace. Only the results are checked, not the timings.
+     */
+    @Test
+    public void benchmarkLookupsAgainstScan() {
+        List<String> musicIds = new ArrayList<>(BENCHMARK_QUEUE_SIZE);
+        for (int i = 0; i < BENCHMARK_QUEUE_SIZE; i++) {
+            musicIds.add(String.valueOf(i));
+        }
+        mQueue.set(PARENT_ID, musicIds);
+        List<MediaSessionCompat.QueueItem> items = mQueue.subList(0, BENCHMARK_QUEUE_SIZE);
+        Random random = new Random(42);
+        String[] lookups = new String[BENCHMARK_LOOKUPS];
+        for (int i = 0; i < lookups.length; i++) {
+            lookups[i] = mediaIdOf(String.valueOf(random.nextInt(BENCHMARK_QUEUE_SIZE)));
+        }
+
+        long start = System.nanoTime();
+        long checksum = 0;
+        for (String mediaId : lookups) {
+            checksum += scanIndexOf(items, mediaId);
+        }
+        long scanNs = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (String mediaId : lookups) {
+            checksum -= mQueue.indexOf(mediaId);
+        }
+        long indexedNs = System.nanoTime() - start;
+
+        assertEquals(0, checksum);
+        System.out.println(String.format("%d lookups in a queue of %d: scan=%dus indexed=%dus",
+                BENCHMARK_LOOKUPS, BENCHMARK_QUEUE_SIZE, scanNs / 1000, indexedNs / 1000));
+    }
+
+    private List<String> musicIds() {
+        List<String> musicIds = new ArrayList<>();
+        for (int i = 0; i < mQueue.size(); i++) {
+            musicIds.add(mQueue.getMusicId(i));
+        }
+        return musicIds;
+    }
+
+    private static String mediaIdOf(String musicId) {
+        return MediaIDHelper.createMediaID(musicId, MEDIA_ID_MUSICS_BY_GENRE, GENRE);
+    }
+
+    /**
+     * The lookup queues were searched with before they were indexed.
+     */
+    private static int scanIndexOf(List<MediaSessionCompat.QueueItem> items, String mediaId) {
+        for (int i = 0; i < items.size(); i++) {
+            if (mediaId.equals(items.get(i).getDescription().getMediaId())) {
+                return i;
+            }
+        }
+        return PlayingQueue.NOT_FOUND;
+    }
+}
@@ -0,0 +1,115 @@
+package com.example.course.musicplayer.playback;
+
+import android.os.SystemClock;
+
+import com.example.course.musicplayer.BuildConfig;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+
+// Robolectric's SystemClock only moves on when the test sleeps, which stands for the time
+// passing between calls.
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class PositionClockTest {
+
+    private PositionClock mClock;
+
+    @Before
+    public void setUp() {
+        mClock = new PositionClock(1.0f);
+    }
+
+    @Test
+    public void startsStillAtZero() {
+        SystemClock.sleep(1000);
+
+        assertEquals(0, mClock.getPosition());
+    }
+
+    @Test
+    public void setAdvancesWithRealTimeOnlyWhenPlaying() {
+        mClock.set(5000, false);
+        SystemClock.sleep(1000);
+        assertEquals(5000, mClock.getPosition());
+
+        mClock.set(5000, true);
+        SystemClock.sleep(1000);
+        assertEquals(6000, mClock.getPosition());
+        SystemClock.sleep(250);
+        assertEquals(6250, mClock.getPosition());
+    }
+
+    @Test
+    public void setClampsNegativePositions() {
+        mClock.set(-100, true);
+
+        assertEquals(0, mClock.getPosition());
+    }
+
+    @Test
+    public void advancesWithSpeed() {
+        mClock = new PositionClock(1.5f);
+        mClock.set(1000, true);
+        SystemClock.sleep(2000);
+
+        assertEquals(4000, mClock.getPosition());
+    }
+
+    @Test
+    public void freezeKeepsPositionReached() {
+        mClock.set(1000, true);
+        SystemClock.sleep(3000);
+        mClock.freeze();
+        SystemClock.sleep(5000);
+        assertEquals(4000, mClock.getPosition());
+
+        // Frozen twice, the position stays the same.
+        mClock.freeze();
+        assertEquals(4000, mClock.getPosition());
+    }
+
+    @Test
+    public void resyncReplacesDriftedPosition() {
+        mClock.set(0, true);
+        SystemClock.sleep(10000);
+        assertEquals(10000, mClock.getPosition());
+
+        // The player lags behind real time.
+        mClock.resync(9800, true);
+        assertEquals(9800, mClock.getPosition());
+        SystemClock.sleep(1000);
+        assertEquals(10800, mClock.getPosition());
+    }
+
+    @Test
+    public void resyncWhilePausedStaysStill() {
+        mClock.set(0, true);
+        SystemClock.sleep(2000);
+        mClock.resync(2100, false);
+        SystemClock.sleep(2000);
+
+        assertEquals(2100, mClock.getPosition());
+    }
+
+    @Test
+    public void driftStaysBoundedByResyncsOverLongPlayback() {
+        // Each second the player plays 1% slower than real time, and is read back every 10s.
+        long playerPosition = 0;
+        mClock.set(0, true);
+        for (int second = 1; second <= 600; second++) {
+            SystemClock.sleep(1000);
+            playerPosition += 990;
+            if (second % 10 == 0) {
+                mClock.resync(playerPosition, true);
+            }
+            long drift = mClock.getPosition() - playerPosition;
+            assertEquals(0, drift, 100);
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package com.example.course.musicplayer.playback;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class ResumeStateStoreTest {
+
+    private static final String QUEUE_FILE_NAME = "resume_queue.bin";
+    private static final String POSITION_FILE_NAME = "resume_position.bin";
+    // Writes happen behind, on the store's own thread.
+    private static final long WRITE_TIMEOUT_MS = 5000;
+
+    private static final List<String> QUEUE = Arrays.asList("11", "12", "13");
+    private static final List<String> OTHER_QUEUE = Arrays.asList("21", "22");
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mDir;
+    private ResumeStateStore mStore;
+
+    @Before
+    public void setUp() {
+        mDir = mFolder.getRoot();
+        mStore = new ResumeStateStore(mDir);
+    }
+
+    @After
+    public void tearDown() {
+        mStore.close();
+    }
+
+    @Test
+    public void readsNothingWithoutState() {
+        assertNull(mStore.read());
+    }
+
+    @Test
+    public void restoresQueueAndPosition() throws Exception {
+        mStore.saveQueue("Rock", "__BY_GENRE__/Rock", QUEUE);
+        mStore.savePosition(2, "13", 45000);
+        mStore.flush();
+
+        ResumeStateStore.ResumeState state = awaitState(QUEUE, 2);
+        assertEquals("Rock", state.title);
+        assertEquals("__BY_GENRE__/Rock", state.parentId);
+        assertEquals(45000, state.positionMs);
+    }
+
+    @Test
+    public void replacesFilesWithoutLeavingTemporaryFiles() throws Exception {
+        mStore.saveQueue("Rock", null, QUEUE);
+        mStore.savePosition(1, "12", 1000);
+        mStore.flush();
+        awaitState(QUEUE, 1);
+        mStore.savePosition(2, "13", 2000);
+        mStore.flush();
+        awaitState(QUEUE, 2);
+
+        assertFalse(new File(mDir, QUEUE_FILE_NAME + ".tmp").exists());
+        assertFalse(new File(mDir, POSITION_FILE_NAME + ".tmp").exists());
+    }
+
+    @Test
+    public void ignoresPositionOfAnotherQueue() throws Exception {
+        mStore.saveQueue("Rock", null, QUEUE);
+        mStore.savePosition(1, "12", 1000);
+        mStore.flush();
+        awaitState(QUEUE, 1);
+
+        // Only the queue file is rewritten; the position file still refers to the old queue.
+        mStore.saveQueue("Jazz", null, OTHER_QUEUE);
+        mStore.flush();
+        ResumeStateStore.ResumeState state = awaitState(OTHER_QUEUE, 0);
+        assertEquals(0, state.positionMs);
+    }
+
+    @Test
+    public void ignoresPositionNotMatchingItsMusicId() throws Exception {
+        mStore.saveQueue("Rock", null, QUEUE);
+        mStore.savePosition(1, "99", 1000);
+        mStore.flush();
+        waitForFile(POSITION_FILE_NAME);
+
+        ResumeStateStore.ResumeState state = awaitState(QUEUE, 0);
+        assertEquals(0, state.positionMs);
+    }
+
+    @Test
+    public void continuesGenerationsOfPersistedState() throws Exception {
+        mStore.saveQueue("Rock", null, QUEUE);
+        mStore.savePosition(1, "12", 1000);
+        mStore.close();
+        awaitState(QUEUE, 1);
+
+        // A restarted service reads the state before saving a new queue, whose position must
+        // then not be confused with the one of the old queue.
+        mStore = new ResumeStateStore(mDir);
+        mStore.read();
+        mStore.saveQueue("Jazz", null, OTHER_QUEUE);
+        mStore.savePosition(1, "22", 3000);
+        mStore.flush();
+        ResumeStateStore.ResumeState state = awaitState(OTHER_QUEUE, 1);
+        assertEquals(3000, state.positionMs);
+    }
+
+    @Test
+    public void ignoresCorruptPositionFile() throws Exception {
+        mStore.saveQueue("Rock", null, QUEUE);
+        mStore.savePosition(2, "13", 1000);
+        mStore.flush();
+        awaitState(QUEUE, 2);
+
+        corruptLastByte(new File(mDir, POSITION_FILE_NAME));
+        ResumeStateStore.ResumeState state = mStore.read();
+        assertEquals(QUEUE, state.musicIds);
+        assertEquals(0, state.index);
+    }
+
+    @Test
+    public void ignoresCorruptQueueFile() throws Exception {
+        mStore.saveQueue("Rock", null, QUEUE);
+        mStore.flush();
+        awaitState(QUEUE, 0);
+
+        corruptLastByte(new File(mDir, QUEUE_FILE_NAME));
+        assertNull(mStore.read());
+    }
+
+    @Test
+    public void ignoresLeftoverTemporaryFile() throws Exception {
+        mStore.saveQueue("Rock", null, QUEUE);
+        mStore.flush();
+        awaitState(QUEUE, 0);
+
+        // As left by a crash in the middle of the next write.
+        FileOutputStream out = new FileOutputStream(new File(mDir, QUEUE_FILE_NAME + ".tmp"));
+        try {
+            out.write(new byte[] {1, 2, 3});
+        } finally {
+            out.close();
+        }
+        assertEquals(QUEUE, mStore.read().musicIds);
+    }
+
+    /**
+     * Wait until the persisted state, read by another store as after a restart, has the given
+     * queue and current index.
+     */
+    private ResumeStateStore.ResumeState awaitState(List<String> musicIds, int index)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + WRITE_TIMEOUT_MS;
+        while (true) {
+            ResumeStateStore.ResumeState state = new ResumeStateStore(mDir).read();
+            if (state != null && state.musicIds.equals(musicIds) && state.index == index) {
+                return state;
+            }
+            if (System.currentTimeMillis() > deadline) {
+                fail("Resume state not written");
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    private void waitForFile(String name) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + WRITE_TIMEOUT_MS;
+        while (!new File(mDir, name).isFile()) {
+            if (System.currentTimeMillis() > deadline) {
+                fail(name + " not written");
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    private static void corruptLastByte(File file) throws IOException {
+        RandomAccessFile data = new RandomAccessFile(file, "rw");
+        try {
+            long last = data.length() - 1;
+            data.seek(last);
+            int value = data.read();
+            data.seek(last);
+            data.write(value ^ 0xff);
+        } finally {
+            data.close();
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.example.course.musicplayer.playback;
+
+import java.util.Iterator;
+import java.util.PriorityQueue;
+
+/**
+ * Scheduler running tasks in virtual time, on the thread that advances it. Time only moves
+ * when the test advances it, and the tasks due by then run in order of their due time, then of
+ * posting, each with the clock set to its due time.
+ */
+class VirtualScheduler implements Scheduler {
+
+    private final PriorityQueue<Task> mTasks = new PriorityQueue<>();
+    private long mNow;
+    private long mPosted;
+
+    long now() {
+        return mNow;
+    }
+
+    @Override
+    public void post(Runnable task) {
+        postDelayed(task, 0);
+    }
+
+    @Override
+    public void postDelayed(Runnable task, long delayMs) {
+        mTasks.add(new Task(mNow + Math.max(delayMs, 0), mPosted++, task));
+    }
+
+    @Override
+    public void cancel(Runnable task) {
+        Iterator<Task> it = mTasks.iterator();
+        while (it.hasNext()) {
+            if (it.next().runnable == task) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Move the clock forward, running the tasks that come due on the way, including those they
+     * post themselves.
+     */
+    void advanceBy(long delayMs) {
+        long end = mNow + delayMs;
+        while (!mTasks.isEmpty() && mTasks.peek().dueTime <= end) {
+            Task task = mTasks.poll();
+            mNow = task.dueTime;
+            task.runnable.run();
+        }
+        mNow = end;
+    }
+
+    private static final class Task implements Comparable<Task> {
+        final long dueTime;
+        final long sequence;
+        final Runnable runnable;
+
+        Task(long dueTime, long sequence, Runnable runnable) {
+            this.dueTime = dueTime;
+            this.sequence = sequence;
+            this.runnable = runnable;
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            if (dueTime != other.dueTime) {
+                return dueTime < other.dueTime ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+}
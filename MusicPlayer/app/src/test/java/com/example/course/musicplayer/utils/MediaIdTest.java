@@ -0,0 +1,106 @@
+package com.example.course.musicplayer.utils;
+
+import com.example.course.musicplayer.BuildConfig;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static com.example.course.musicplayer.utils.MediaIDHelper.MEDIA_ID_MUSICS_BY_ARTIST;
+import static com.example.course.musicplayer.utils.MediaIDHelper.MEDIA_ID_MUSICS_BY_GENRE;
+import static com.example.course.musicplayer.utils.MediaIDHelper.MEDIA_ID_ROOT;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+// Robolectric provides the LruCache interning parsed IDs.
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class MediaIdTest {
+
+    @Test
+    public void parsesPlayableId() {
+        String mediaId = MediaIDHelper.createMediaID("42", MEDIA_ID_MUSICS_BY_GENRE, "Rock");
+        MediaId parsed = MediaId.parse(mediaId);
+
+        assertEquals("42", parsed.getMusicId());
+        assertFalse(parsed.isBrowseable());
+        assertArrayEquals(new String[] {MEDIA_ID_MUSICS_BY_GENRE, "Rock"},
+                parsed.getHierarchy());
+        assertEquals(MEDIA_ID_MUSICS_BY_GENRE + "/Rock", parsed.getHierarchyId());
+        assertEquals(parsed.getHierarchyId(), parsed.getParentId());
+        assertEquals(mediaId, parsed.toString());
+    }
+
+    @Test
+    public void parsesBrowsableIds() {
+        MediaId genre = MediaId.parse(
+                MediaIDHelper.createMediaID(null, MEDIA_ID_MUSICS_BY_GENRE, "Rock"));
+        assertNull(genre.getMusicId());
+        assertTrue(genre.isBrowseable());
+        assertEquals(2, genre.getHierarchyLength());
+        assertEquals(MEDIA_ID_MUSICS_BY_GENRE, genre.getParentId());
+
+        MediaId genres = MediaId.parse(MediaIDHelper.createMediaID(null, MEDIA_ID_MUSICS_BY_GENRE));
+        assertEquals(1, genres.getHierarchyLength());
+        assertEquals(MEDIA_ID_ROOT, genres.getParentId());
+    }
+
+    @Test
+    public void childIdRoundTrips() {
+        MediaId parent = MediaId.parse(
+                MediaIDHelper.createMediaID(null, MEDIA_ID_MUSICS_BY_GENRE, "Rock"));
+        String childId = parent.childId("7");
+
+        assertEquals(MediaIDHelper.createMediaID("7", MEDIA_ID_MUSICS_BY_GENRE, "Rock"), childId);
+        MediaId child = MediaId.parse(childId);
+        assertEquals("7", child.getMusicId());
+        assertTrue(child.isSameHierarchy(parent));
+        assertEquals(parent.toString(), child.getParentId());
+    }
+
+    @Test
+    public void encodedCategoryValuesRoundTrip() {
+        for (String value : new String[] {"Plain", "AC/DC", "50% | more", "%2F", "/|%"}) {
+            String mediaId = MediaIDHelper.createMediaID("1", MEDIA_ID_MUSICS_BY_ARTIST,
+                    MediaIDHelper.encodeCategoryValue(value));
+            MediaId parsed = MediaId.parse(mediaId);
+
+            assertEquals(2, parsed.getHierarchyLength());
+            assertEquals("1", parsed.getMusicId());
+            assertEquals(value, MediaIDHelper.decodeCategoryValue(parsed.getCategory(1)));
+            assertEquals(value, MediaIDHelper.extractBrowseCategoryValueFromMediaID(mediaId));
+        }
+    }
+
+    @Test
+    public void internsEqualIds() {
+        String mediaId = MediaIDHelper.createMediaID("42", MEDIA_ID_MUSICS_BY_GENRE, "Jazz");
+        MediaId first = MediaId.parse(mediaId);
+        MediaId second = MediaId.parse(new String(mediaId));
+
+        assertSame(first, second);
+        assertEquals(first.hashCode(), second.hashCode());
+    }
+
+    @Test
+    public void differentHierarchiesAreNotSame() {
+        MediaId rock = MediaId.parse(
+                MediaIDHelper.createMediaID("1", MEDIA_ID_MUSICS_BY_GENRE, "Rock"));
+        MediaId artist = MediaId.parse(
+                MediaIDHelper.createMediaID("1", MEDIA_ID_MUSICS_BY_ARTIST, "Rock"));
+
+        assertEquals(rock.getMusicId(), artist.getMusicId());
+        assertFalse(rock.isSameHierarchy(artist));
+        assertFalse(rock.equals(artist));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnencodedSeparators() {
+        MediaIDHelper.createMediaID("1", MEDIA_ID_MUSICS_BY_ARTIST, "AC/DC");
+    }
+}